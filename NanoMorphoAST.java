@@ -0,0 +1,327 @@
+/**
+ * Syntax tree for NanoMorpho as built by NanoMorphoParser.
+ *
+ * Every expression node is a final subclass of Expr and is walked
+ * through a Visitor, so code generators never switch on strings or
+ * cast children. Slot indices and argument counts are plain ints.
+ */
+public final class NanoMorphoAST {
+
+    private NanoMorphoAST() {
+    }
+
+    /**
+     * One function: name, argument count, local variable count
+     * and the expressions of the body.
+     */
+    public static final class Function {
+        public final String name;
+        public final int argCount;
+        public final int varCount;
+        public final Expr[] exprs;
+        /** Line and column of the name in the source, 0 if not known */
+        public final int line;
+        public final int column;
+
+        public Function(String name, int argCount, int varCount, Expr[] exprs) {
+            this(name, argCount, varCount, exprs, 0, 0);
+        }
+
+        public Function(String name, int argCount, int varCount, Expr[] exprs, int line, int column) {
+            this.name = name;
+            this.argCount = argCount;
+            this.varCount = varCount;
+            this.exprs = exprs;
+            this.line = line;
+            this.column = column;
+        }
+    }
+
+    public interface Visitor<R> {
+        R visitFetch(Fetch e);
+        R visitStore(Store e);
+        R visitLiteral(Literal e);
+        R visitIf(If e);
+        R visitWhile(While e);
+        R visitBody(Body e);
+        R visitCall(Call e);
+        R visitReturn(Return e);
+        R visitAnd(And e);
+        R visitOr(Or e);
+        R visitNot(Not e);
+    }
+
+    /**
+     * Visitor that rebuilds a tree bottom up. Subclasses override the
+     * nodes they want to change. A node is only copied when one of its
+     * children changed.
+     */
+    public static class Rewriter implements Visitor<Expr> {
+        public Expr rewrite(Expr e) {
+            return e == null ? null : e.accept(this);
+        }
+
+        public Expr[] rewrite(Expr[] es) {
+            Expr[] res = es;
+            for (int i = 0; i < es.length; i++) {
+                Expr r = rewrite(es[i]);
+                if (r != es[i]) {
+                    if (res == es) res = es.clone();
+                    res[i] = r;
+                }
+            }
+            return res;
+        }
+
+        public Body rewriteBody(Body b) {
+            Expr r = rewrite(b);
+            return r instanceof Body ? (Body) r : new Body(new Expr[] {r});
+        }
+
+        public Function rewrite(Function f) {
+            Expr[] exprs = rewrite(f.exprs);
+            if (exprs == f.exprs) return f;
+            return new Function(f.name, f.argCount, f.varCount, exprs, f.line, f.column);
+        }
+
+        public Expr visitFetch(Fetch e) {
+            return e;
+        }
+
+        public Expr visitStore(Store e) {
+            Expr value = rewrite(e.value);
+            return value == e.value ? e : new Store(e.pos, value);
+        }
+
+        public Expr visitLiteral(Literal e) {
+            return e;
+        }
+
+        public Expr visitIf(If e) {
+            Expr cond = rewrite(e.cond);
+            Body thenPart = rewriteBody(e.thenPart);
+            Expr elsePart = rewrite(e.elsePart);
+            if (cond == e.cond && thenPart == e.thenPart && elsePart == e.elsePart) return e;
+            return new If(cond, thenPart, elsePart);
+        }
+
+        public Expr visitWhile(While e) {
+            Expr cond = rewrite(e.cond);
+            Body body = rewriteBody(e.body);
+            if (cond == e.cond && body == e.body) return e;
+            return new While(cond, body, e.line, e.column);
+        }
+
+        public Expr visitBody(Body e) {
+            Expr[] exprs = rewrite(e.exprs);
+            return exprs == e.exprs ? e : new Body(exprs);
+        }
+
+        public Expr visitCall(Call e) {
+            Expr[] args = rewrite(e.args);
+            return args == e.args ? e : new Call(e.name, args, e.line, e.column);
+        }
+
+        public Expr visitReturn(Return e) {
+            Expr value = rewrite(e.value);
+            return value == e.value ? e : new Return(value);
+        }
+
+        public Expr visitAnd(And e) {
+            Expr left = rewrite(e.left);
+            Expr right = rewrite(e.right);
+            if (left == e.left && right == e.right) return e;
+            return new And(left, right);
+        }
+
+        public Expr visitOr(Or e) {
+            Expr left = rewrite(e.left);
+            Expr right = rewrite(e.right);
+            if (left == e.left && right == e.right) return e;
+            return new Or(left, right);
+        }
+
+        public Expr visitNot(Not e) {
+            Expr value = rewrite(e.value);
+            return value == e.value ? e : new Not(value);
+        }
+    }
+
+    public abstract static class Expr {
+        public abstract <R> R accept(Visitor<R> v);
+    }
+
+    public static final class Fetch extends Expr {
+        public final int pos;
+
+        public Fetch(int pos) {
+            this.pos = pos;
+        }
+
+        public <R> R accept(Visitor<R> v) {
+            return v.visitFetch(this);
+        }
+    }
+
+    public static final class Store extends Expr {
+        public final int pos;
+        public final Expr value;
+
+        public Store(int pos, Expr value) {
+            this.pos = pos;
+            this.value = value;
+        }
+
+        public <R> R accept(Visitor<R> v) {
+            return v.visitStore(this);
+        }
+    }
+
+    public static final class Literal extends Expr {
+        public final String value;
+
+        public Literal(String value) {
+            this.value = value;
+        }
+
+        /** true if the literal is false or null, the only false values in Morpho */
+        public boolean isFalse() {
+            return value.equals("false") || value.equals("null");
+        }
+
+        public <R> R accept(Visitor<R> v) {
+            return v.visitLiteral(this);
+        }
+    }
+
+    /**
+     * if/elsif/else. elsePart is null, a Body for else, or another If
+     * for an elsif chain.
+     */
+    public static final class If extends Expr {
+        public final Expr cond;
+        public final Body thenPart;
+        public final Expr elsePart;
+
+        public If(Expr cond, Body thenPart, Expr elsePart) {
+            this.cond = cond;
+            this.thenPart = thenPart;
+            this.elsePart = elsePart;
+        }
+
+        public <R> R accept(Visitor<R> v) {
+            return v.visitIf(this);
+        }
+    }
+
+    public static final class While extends Expr {
+        public final Expr cond;
+        public final Body body;
+        /** Line and column of 'while' in the source, 0 if not known */
+        public final int line;
+        public final int column;
+
+        public While(Expr cond, Body body) {
+            this(cond, body, 0, 0);
+        }
+
+        public While(Expr cond, Body body, int line, int column) {
+            this.cond = cond;
+            this.body = body;
+            this.line = line;
+            this.column = column;
+        }
+
+        public <R> R accept(Visitor<R> v) {
+            return v.visitWhile(this);
+        }
+    }
+
+    public static final class Body extends Expr {
+        public final Expr[] exprs;
+
+        public Body(Expr[] exprs) {
+            this.exprs = exprs;
+        }
+
+        public <R> R accept(Visitor<R> v) {
+            return v.visitBody(this);
+        }
+    }
+
+    /** Call of a named function or an operator, e.g. "+" */
+    public static final class Call extends Expr {
+        public final String name;
+        public final Expr[] args;
+        /** Line and column of the name or operator in the source, 0 if not known */
+        public final int line;
+        public final int column;
+
+        public Call(String name, Expr[] args) {
+            this(name, args, 0, 0);
+        }
+
+        public Call(String name, Expr[] args, int line, int column) {
+            this.name = name;
+            this.args = args;
+            this.line = line;
+            this.column = column;
+        }
+
+        public <R> R accept(Visitor<R> v) {
+            return v.visitCall(this);
+        }
+    }
+
+    public static final class Return extends Expr {
+        public final Expr value;
+
+        public Return(Expr value) {
+            this.value = value;
+        }
+
+        public <R> R accept(Visitor<R> v) {
+            return v.visitReturn(this);
+        }
+    }
+
+    public static final class And extends Expr {
+        public final Expr left;
+        public final Expr right;
+
+        public And(Expr left, Expr right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public <R> R accept(Visitor<R> v) {
+            return v.visitAnd(this);
+        }
+    }
+
+    public static final class Or extends Expr {
+        public final Expr left;
+        public final Expr right;
+
+        public Or(Expr left, Expr right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public <R> R accept(Visitor<R> v) {
+            return v.visitOr(this);
+        }
+    }
+
+    public static final class Not extends Expr {
+        public final Expr value;
+
+        public Not(Expr value) {
+            this.value = value;
+        }
+
+        public <R> R accept(Visitor<R> v) {
+            return v.visitNot(this);
+        }
+    }
+}
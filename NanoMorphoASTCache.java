@@ -0,0 +1,547 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the parsed tree of every source file in a binary file next to
+ * it, file.s.nmast, so that an unchanged source is not lexed or parsed
+ * again. The file is keyed by the SHA-256 of the bytes of the source and
+ * is read through a memory mapping.
+ *
+ * The tree is written as int records in post-order, children before
+ * their parent, with names and literals as indexes into one table of
+ * strings. Loading it needs no recursion and makes each string once. The
+ * calls the parser recorded are kept too, so calls are checked as after
+ * a parse, with the same errors.
+ *
+ *   header    MAGIC, VERSION, the SHA-256 as 8 ints, number of strings,
+ *             bytes of strings, number of calls, number of node ints
+ *   offsets   where each string starts in the bytes, and where they end
+ *   calls     string, arity, line, column of the first call of every
+ *             name and arity, as NanoMorphoSymbols.forEachCall gives them
+ *   nodes     the records below, ints
+ *   strings   the UTF-8 bytes of the strings, one after another
+ *
+ * Records, with the children they take from the ones before them:
+ *   FETCH pos                          STORE pos              (value)
+ *   LITERAL string                     RETURN, NOT            (value)
+ *   IF                (cond, then)     IF_ELSE                (cond, then, else)
+ *   WHILE line column (cond, body)     AND, OR                (left, right)
+ *   BODY n            (n exprs)        CALL string n line column  (n args)
+ *   FUNCTION string argCount varCount line column n           (n exprs)
+ *
+ * Used by NanoMorphoCompiler.parse with --ast-cache.
+ *
+ *   java NanoMorphoASTCache file.s ...
+ *
+ * checks that the tree and calls of every file that parses come back the
+ * same from its encoding, positions included.
+ */
+public final class NanoMorphoASTCache {
+
+    private static final int MAGIC = 0x4e4d4131;   // "NMA1"
+    // Changes whenever the tree, the records or the parser do
+    private static final int VERSION = 1;
+    private static final int HEADER = 4 * 14;
+    public static final String SUFFIX = ".nmast";
+
+    private static final int FETCH = 0;
+    private static final int STORE = 1;
+    private static final int LITERAL = 2;
+    private static final int IF = 3;
+    private static final int IF_ELSE = 4;
+    private static final int WHILE = 5;
+    private static final int BODY = 6;
+    private static final int CALL = 7;
+    private static final int RETURN = 8;
+    private static final int AND = 9;
+    private static final int OR = 10;
+    private static final int NOT = 11;
+    private static final int FUNCTION = 12;
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    public String statsReport() {
+        return "ast cache: " + hits.get() + " hits, " + misses.get() + " misses";
+    }
+
+    /** The cache file of @fileName, next to it */
+    public static Path cacheFile(String fileName) {
+        return Paths.get(fileName + SUFFIX);
+    }
+
+    /**
+     * Parses @fileName with @parser, or loads its tree from the cache file
+     * if the source has not changed since it was written. The calls of the
+     * program are recorded in @symbols either way. A tree that is parsed
+     * is written to the cache file; if that cannot be done the next parse
+     * just cannot be skipped. Hashing the source and loading the tree are
+     * timed as the read phase into @stats, unless it is null.
+     */
+    public NanoMorphoAST.Function[] parse(String fileName, NanoMorphoParser parser, NanoMorphoSymbols symbols,
+            NanoMorphoStats stats) throws IOException {
+        long t0 = System.nanoTime();
+        byte[] hash = hash(fileName);
+        Path file = cacheFile(fileName);
+        NanoMorphoAST.Function[] program = load(file, hash, symbols);
+        if (stats != null) stats.add(NanoMorphoStats.Phase.READ, System.nanoTime() - t0);
+        if (program != null) {
+            hits.incrementAndGet();
+            return program;
+        }
+        misses.incrementAndGet();
+        program = parser.parse(fileName);
+        NanoMorphoSymbols parsed = parser.getSymbols();
+        List<String> callNames = new ArrayList<>();
+        List<int[]> calls = new ArrayList<>();
+        parsed.forEachCall((name, arity, line, column) -> {
+            callNames.add(name);
+            calls.add(new int[] {arity, line, column});
+        });
+        replay(program, callNames, calls, symbols);
+        try {
+            save(file, hash, program, callNames, calls);
+        } catch (IOException e) {
+            // A source in a directory that cannot be written to is parsed every time
+        }
+        return program;
+    }
+
+    // SHA-256 of the bytes of @fileName, which are always read as UTF-8
+    private static byte[] hash(String fileName) throws IOException {
+        MessageDigest digest = sha256();
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName))) {
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // The defines and calls of @program into @symbols, calls first so they
+    // keep their order, which is the order errors are listed in
+    private static void replay(NanoMorphoAST.Function[] program, List<String> callNames, List<int[]> calls,
+            NanoMorphoSymbols symbols) {
+        for (int i = 0; i < callNames.size(); i++) {
+            int[] c = calls.get(i);
+            symbols.call(callNames.get(i), c[0], c[1], c[2]);
+        }
+        for (NanoMorphoAST.Function f : program) symbols.define(f.name, f.argCount);
+    }
+
+    /*
+        The tree in @file if it was written for the source with @hash,
+        else null. A damaged file is treated as missing.
+    */
+    private static NanoMorphoAST.Function[] load(Path file, byte[] hash, NanoMorphoSymbols symbols) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            if (in.getInt(0) != MAGIC || in.getInt(4) != VERSION) return null;
+            for (int i = 0; i < hash.length; i++)
+                if (in.get(8 + i) != hash[i]) return null;
+            return decode(in, symbols);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the tree of a cache file held in @in, recording its calls
+     * in @symbols. Does not check what the file was written for.
+     */
+    public static NanoMorphoAST.Function[] decode(ByteBuffer in, NanoMorphoSymbols symbols) {
+        int stringCount = in.getInt(40);
+        int stringBytes = in.getInt(44);
+        int callCount = in.getInt(48);
+        int nodeCount = in.getInt(52);
+        IntBuffer ints = in.duplicate().position(HEADER).slice().asIntBuffer();
+        int offsets = 0;
+        int calls = offsets + stringCount + 1;
+        int nodes = calls + 4 * callCount;
+        int end = nodes + nodeCount;
+        if (stringCount < 0 || callCount < 0 || nodeCount < 0 || stringBytes < 0
+                || HEADER + 4L * stringCount + 4 + 16L * callCount + 4L * nodeCount + stringBytes != in.capacity())
+            throw new IllegalStateException("Bad sizes");
+
+        byte[] bytes = new byte[stringBytes];
+        in.duplicate().position(HEADER + 4 * end).get(bytes);
+        String[] strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            int start = ints.get(offsets + i);
+            strings[i] = new String(bytes, start, ints.get(offsets + i + 1) - start, StandardCharsets.UTF_8);
+        }
+
+        List<String> callNames = new ArrayList<>(callCount);
+        List<int[]> callList = new ArrayList<>(callCount);
+        for (int i = calls; i < nodes; i += 4) {
+            callNames.add(strings[ints.get(i)]);
+            callList.add(new int[] {ints.get(i + 1), ints.get(i + 2), ints.get(i + 3)});
+        }
+
+        List<NanoMorphoAST.Function> program = new ArrayList<>();
+        NanoMorphoAST.Expr[] stack = new NanoMorphoAST.Expr[64];
+        int sp = 0;
+        for (int i = nodes; i < end; ) {
+            int kind = ints.get(i++);
+            NanoMorphoAST.Expr e;
+            switch (kind) {
+                case FETCH:
+                    e = new NanoMorphoAST.Fetch(ints.get(i++));
+                    break;
+                case STORE:
+                    e = new NanoMorphoAST.Store(ints.get(i++), stack[--sp]);
+                    break;
+                case LITERAL:
+                    e = new NanoMorphoAST.Literal(strings[ints.get(i++)]);
+                    break;
+                case IF:
+                    sp -= 2;
+                    e = new NanoMorphoAST.If(stack[sp], (NanoMorphoAST.Body) stack[sp + 1], null);
+                    break;
+                case IF_ELSE:
+                    sp -= 3;
+                    e = new NanoMorphoAST.If(stack[sp], (NanoMorphoAST.Body) stack[sp + 1], stack[sp + 2]);
+                    break;
+                case WHILE:
+                    sp -= 2;
+                    e = new NanoMorphoAST.While(stack[sp], (NanoMorphoAST.Body) stack[sp + 1], ints.get(i), ints.get(i + 1));
+                    i += 2;
+                    break;
+                case BODY: {
+                    int n = ints.get(i++);
+                    sp -= n;
+                    e = new NanoMorphoAST.Body(Arrays.copyOfRange(stack, sp, sp + n));
+                    break;
+                }
+                case CALL: {
+                    String name = strings[ints.get(i)];
+                    int n = ints.get(i + 1);
+                    sp -= n;
+                    e = new NanoMorphoAST.Call(name, Arrays.copyOfRange(stack, sp, sp + n), ints.get(i + 2), ints.get(i + 3));
+                    i += 4;
+                    break;
+                }
+                case RETURN:
+                    e = new NanoMorphoAST.Return(stack[--sp]);
+                    break;
+                case AND:
+                    sp -= 2;
+                    e = new NanoMorphoAST.And(stack[sp], stack[sp + 1]);
+                    break;
+                case OR:
+                    sp -= 2;
+                    e = new NanoMorphoAST.Or(stack[sp], stack[sp + 1]);
+                    break;
+                case NOT:
+                    e = new NanoMorphoAST.Not(stack[--sp]);
+                    break;
+                case FUNCTION: {
+                    int n = ints.get(i + 5);
+                    sp -= n;
+                    program.add(new NanoMorphoAST.Function(strings[ints.get(i)], ints.get(i + 1), ints.get(i + 2),
+                        Arrays.copyOfRange(stack, sp, sp + n), ints.get(i + 3), ints.get(i + 4)));
+                    i += 6;
+                    Arrays.fill(stack, sp, sp + n, null);
+                    continue;
+                }
+                default:
+                    throw new IllegalStateException("Bad node " + kind);
+            }
+            if (sp == stack.length) stack = Arrays.copyOf(stack, 2 * sp);
+            stack[sp++] = e;
+        }
+        if (sp != 0) throw new IllegalStateException("Expressions outside a function");
+        NanoMorphoAST.Function[] res = program.toArray(new NanoMorphoAST.Function[0]);
+        replay(res, callNames, callList, symbols);
+        return res;
+    }
+
+    /**
+     * The cache file for @program, parsed from the source with @hash, with
+     * the calls @callNames made with the {arity, line, column} of @calls.
+     */
+    public static byte[] encode(byte[] hash, NanoMorphoAST.Function[] program, List<String> callNames, List<int[]> calls) {
+        Encoder enc = new Encoder();
+        for (int i = 0; i < callNames.size(); i++) {
+            int[] c = calls.get(i);
+            enc.calls.add(enc.string(callNames.get(i)), c[0], c[1], c[2]);
+        }
+        for (NanoMorphoAST.Function f : program) {
+            for (NanoMorphoAST.Expr e : f.exprs) e.accept(enc);
+            enc.nodes.add(FUNCTION, enc.string(f.name), f.argCount, f.varCount, f.line, f.column, f.exprs.length);
+        }
+
+        int[] offsets = new int[enc.strings.size() + 1];
+        byte[][] utf8 = new byte[enc.strings.size()][];
+        for (int i = 0; i < utf8.length; i++) {
+            utf8[i] = enc.strings.get(i).getBytes(StandardCharsets.UTF_8);
+            offsets[i + 1] = offsets[i] + utf8[i].length;
+        }
+        int ints = offsets.length + enc.calls.size + enc.nodes.size;
+        ByteBuffer out = ByteBuffer.allocate(HEADER + 4 * ints + offsets[utf8.length]);
+        out.putInt(MAGIC).putInt(VERSION).put(hash);
+        out.putInt(utf8.length).putInt(offsets[utf8.length]).putInt(enc.calls.size / 4).putInt(enc.nodes.size);
+        IntBuffer body = out.asIntBuffer();
+        body.put(offsets);
+        body.put(enc.calls.values, 0, enc.calls.size);
+        body.put(enc.nodes.values, 0, enc.nodes.size);
+        out.position(HEADER + 4 * ints);
+        for (byte[] b : utf8) out.put(b);
+        return out.array();
+    }
+
+    // A growing int[]
+    private static final class Ints {
+        int[] values = new int[256];
+        int size;
+
+        void add(int... vs) {
+            if (size + vs.length > values.length) values = Arrays.copyOf(values, Math.max(2 * values.length, size + vs.length));
+            System.arraycopy(vs, 0, values, size, vs.length);
+            size += vs.length;
+        }
+    }
+
+    // Writes the records of the expressions it visits
+    private static final class Encoder implements NanoMorphoAST.Visitor<Void> {
+        final Ints nodes = new Ints();
+        final Ints calls = new Ints();
+        final List<String> strings = new ArrayList<>();
+        private final Map<String, Integer> index = new HashMap<>();
+
+        int string(String s) {
+            Integer i = index.get(s);
+            if (i != null) return i;
+            index.put(s, strings.size());
+            strings.add(s);
+            return strings.size() - 1;
+        }
+
+        private void all(NanoMorphoAST.Expr[] exprs) {
+            for (NanoMorphoAST.Expr e : exprs) e.accept(this);
+        }
+
+        public Void visitFetch(NanoMorphoAST.Fetch e) {
+            nodes.add(FETCH, e.pos);
+            return null;
+        }
+
+        public Void visitStore(NanoMorphoAST.Store e) {
+            e.value.accept(this);
+            nodes.add(STORE, e.pos);
+            return null;
+        }
+
+        public Void visitLiteral(NanoMorphoAST.Literal e) {
+            nodes.add(LITERAL, string(e.value));
+            return null;
+        }
+
+        public Void visitIf(NanoMorphoAST.If e) {
+            e.cond.accept(this);
+            e.thenPart.accept(this);
+            if (e.elsePart == null) {
+                nodes.add(IF);
+            } else {
+                e.elsePart.accept(this);
+                nodes.add(IF_ELSE);
+            }
+            return null;
+        }
+
+        public Void visitWhile(NanoMorphoAST.While e) {
+            e.cond.accept(this);
+            e.body.accept(this);
+            nodes.add(WHILE, e.line, e.column);
+            return null;
+        }
+
+        public Void visitBody(NanoMorphoAST.Body e) {
+            all(e.exprs);
+            nodes.add(BODY, e.exprs.length);
+            return null;
+        }
+
+        public Void visitCall(NanoMorphoAST.Call e) {
+            all(e.args);
+            nodes.add(CALL, string(e.name), e.args.length, e.line, e.column);
+            return null;
+        }
+
+        public Void visitReturn(NanoMorphoAST.Return e) {
+            e.value.accept(this);
+            nodes.add(RETURN);
+            return null;
+        }
+
+        public Void visitAnd(NanoMorphoAST.And e) {
+            e.left.accept(this);
+            e.right.accept(this);
+            nodes.add(AND);
+            return null;
+        }
+
+        public Void visitOr(NanoMorphoAST.Or e) {
+            e.left.accept(this);
+            e.right.accept(this);
+            nodes.add(OR);
+            return null;
+        }
+
+        public Void visitNot(NanoMorphoAST.Not e) {
+            e.value.accept(this);
+            nodes.add(NOT);
+            return null;
+        }
+    }
+
+    // Every field of a tree, positions included, as text
+    private static final class Dump implements NanoMorphoAST.Visitor<Void> {
+        final StringBuilder sb = new StringBuilder();
+
+        private Void node(String head, NanoMorphoAST.Expr... children) {
+            sb.append('(').append(head);
+            for (NanoMorphoAST.Expr e : children) {
+                sb.append(' ');
+                if (e == null) sb.append('-');
+                else e.accept(this);
+            }
+            sb.append(')');
+            return null;
+        }
+
+        void function(NanoMorphoAST.Function f) {
+            node("function " + f.name + " " + f.argCount + " " + f.varCount + " " + f.line + ":" + f.column, f.exprs);
+            sb.append('\n');
+        }
+
+        public Void visitFetch(NanoMorphoAST.Fetch e) {
+            return node("fetch " + e.pos);
+        }
+
+        public Void visitStore(NanoMorphoAST.Store e) {
+            return node("store " + e.pos, e.value);
+        }
+
+        public Void visitLiteral(NanoMorphoAST.Literal e) {
+            return node("literal " + e.value);
+        }
+
+        public Void visitIf(NanoMorphoAST.If e) {
+            return node("if", e.cond, e.thenPart, e.elsePart);
+        }
+
+        public Void visitWhile(NanoMorphoAST.While e) {
+            return node("while " + e.line + ":" + e.column, e.cond, e.body);
+        }
+
+        public Void visitBody(NanoMorphoAST.Body e) {
+            return node("body", e.exprs);
+        }
+
+        public Void visitCall(NanoMorphoAST.Call e) {
+            return node("call " + e.name + " " + e.line + ":" + e.column, e.args);
+        }
+
+        public Void visitReturn(NanoMorphoAST.Return e) {
+            return node("return", e.value);
+        }
+
+        public Void visitAnd(NanoMorphoAST.And e) {
+            return node("and", e.left, e.right);
+        }
+
+        public Void visitOr(NanoMorphoAST.Or e) {
+            return node("or", e.left, e.right);
+        }
+
+        public Void visitNot(NanoMorphoAST.Not e) {
+            return node("not", e.value);
+        }
+    }
+
+    // The trees of @program and the calls in @symbols as text
+    private static String dump(NanoMorphoAST.Function[] program, NanoMorphoSymbols symbols) {
+        Dump d = new Dump();
+        for (NanoMorphoAST.Function f : program) d.function(f);
+        symbols.forEachCall((name, arity, line, column) ->
+            d.sb.append("call ").append(name).append(' ').append(arity).append(' ').append(line).append(':').append(column).append('\n'));
+        return d.sb.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int failed = 0;
+        for (String fileName : args) {
+            NanoMorphoParser parser = new NanoMorphoParser();
+            NanoMorphoAST.Function[] program;
+            try {
+                program = parser.parse(fileName);
+            } catch (NanoMorphoParser.SyntaxError e) {
+                System.out.println(fileName + ": does not parse, not cached");
+                continue;
+            }
+            List<String> callNames = new ArrayList<>();
+            List<int[]> calls = new ArrayList<>();
+            parser.getSymbols().forEachCall((name, arity, line, column) -> {
+                callNames.add(name);
+                calls.add(new int[] {arity, line, column});
+            });
+            byte[] data = encode(hash(fileName), program, callNames, calls);
+            NanoMorphoSymbols symbols = new NanoMorphoSymbols();
+            NanoMorphoAST.Function[] decoded = decode(ByteBuffer.wrap(data), symbols);
+            boolean same = dump(program, parser.getSymbols()).equals(dump(decoded, symbols));
+            System.out.println(fileName + ": " + (same ? "same" : "DIFFERENT") + " after a round trip, "
+                + data.length + " bytes");
+            if (!same) failed++;
+        }
+        if (failed > 0) System.exit(1);
+    }
+
+    // Written to a temporary file first, so readers never see half a file
+    private static void save(Path file, byte[] hash, NanoMorphoAST.Function[] program, List<String> callNames,
+            List<int[]> calls) throws IOException {
+        byte[] data = encode(hash, program, callNames, calls);
+        Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, data);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
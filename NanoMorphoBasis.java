@@ -0,0 +1,50 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The functions BASIS exports, as the Morpho linker knows them, e.g.
+ * "writeln[f1]", so calls in .masm output can be checked without
+ * morpho.jar on the class path.
+ *
+ * They are read from FILE, next to the classes, one name per line.
+ * NanoMorphoMexe --exports writes it from the BASIS in morpho.jar:
+ *
+ *   make basis.exports
+ */
+public final class NanoMorphoBasis {
+
+    /** Resource with the exports, one per line */
+    public static final String FILE = "basis.exports";
+
+    private NanoMorphoBasis() {
+    }
+
+    // Read on first use and only read afterwards
+    private static final class Exports {
+        static final Set<String> names = load();
+
+        private static Set<String> load() {
+            InputStream in = NanoMorphoBasis.class.getResourceAsStream(FILE);
+            if (in == null) throw new IllegalStateException("Cannot find " + FILE + ", run make " + FILE);
+            Set<String> res = new HashSet<>();
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                for (String line; (line = r.readLine()) != null; )
+                    if (!line.isEmpty()) res.add(line);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return res;
+        }
+    }
+
+    /** True if BASIS exports @name, e.g. "writeln[f1]" */
+    public static boolean exports(String name) {
+        return Exports.names.contains(name);
+    }
+}
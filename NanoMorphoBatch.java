@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compiles many NanoMorpho files concurrently on a fork-join pool.
+ *
+ * Every file gets its own lexer, parser, compiler and output file, so the
+ * workers share no state. One .masm is written per input, next to the
+ * source or in the directory given with -d. If two inputs would be
+ * written to the same .masm, e.g. a/x.s and b/x.s with -d, nothing is
+ * compiled.
+ *
+ * With --stats the NanoMorphoStats of every file compiled are printed
+ * after the results, as one line of JSON each.
+ *
+ * Usage: java NanoMorphoBatch [-O] [--stats] [-d outdir] [-j threads] (file.s | dir) ...
+ */
+public class NanoMorphoBatch {
+
+    /** Outcome of compiling one file */
+    public static final class Result {
+        public final Path source;
+        public final Path output;
+        public final String error;
+        public final long nanos;
+        /** What the compile did, with --stats, else null */
+        public final NanoMorphoStats stats;
+
+        Result(Path source, Path output, String error, long nanos, NanoMorphoStats stats) {
+            this.source = source;
+            this.output = output;
+            this.error = error;
+            this.nanos = nanos;
+            this.stats = stats;
+        }
+
+        public boolean ok() {
+            return error == null;
+        }
+
+        public String toString() {
+            if (ok()) return String.format("ok    %s -> %s (%.1f ms)", source, output, nanos / 1e6);
+            return String.format("error %s: %s", source, error);
+        }
+    }
+
+    // Splits the file range in halves until single files remain
+    private static final class CompileTask extends RecursiveAction {
+        private final List<Path> sources;
+        private final Path outDir;
+        private final NanoMorphoCompiler.Options options;
+        private final Result[] results;
+        private final int from;
+        private final int to;
+
+        CompileTask(List<Path> sources, Path outDir, NanoMorphoCompiler.Options options,
+                Result[] results, int from, int to) {
+            this.sources = sources;
+            this.outDir = outDir;
+            this.options = options;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from == 1) {
+                results[from] = compileOne(sources.get(from), outDir, options);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new CompileTask(sources, outDir, options, results, from, mid),
+                new CompileTask(sources, outDir, options, results, mid, to));
+        }
+    }
+
+    /** Output file for @source: same name with .masm, in @outDir if given */
+    public static Path outputFor(Path source, Path outDir) {
+        String masm = NanoMorphoCompiler.moduleName(source.getFileName().toString()) + ".masm";
+        Path dir = outDir != null ? outDir : source.toAbsolutePath().getParent();
+        return dir.resolve(masm);
+    }
+
+    /** Compiles one file, never throws */
+    public static Result compileOne(Path source, Path outDir, NanoMorphoCompiler.Options options) {
+        Path output = outputFor(source, outDir);
+        long t0 = System.nanoTime();
+        String error = null;
+        NanoMorphoStats stats = NanoMorphoStats.create(options.stats);
+        try (NanoMorphoEmitter out = NanoMorphoEmitter.toFile(output)) {
+            NanoMorphoCompiler.compile(source.toString(), out, options, stats);
+        } catch (NanoMorphoParser.SyntaxError e) {
+            error = e.getMessage();
+        } catch (IOException | UncheckedIOException e) {
+            error = e.toString();
+        } catch (StackOverflowError e) {
+            error = "nested too deeply to compile";
+        } catch (RuntimeException e) {
+            error = e.toString();
+        }
+        if (error != null) {
+            try {
+                Files.deleteIfExists(output);
+            } catch (IOException e) {
+                // The error for the source is reported anyway
+            }
+        }
+        return new Result(source, output, error, System.nanoTime() - t0, options.stats && error == null ? stats : null);
+    }
+
+    /**
+     * The sources among @sources whose output file is that of an earlier
+     * one, as messages, e.g. "b/x.s: out/x.masm is also the output of a/x.s".
+     * compileAll writes such files from two workers at once.
+     */
+    public static List<String> clashes(List<Path> sources, Path outDir) {
+        Map<Path, Path> first = new HashMap<>();
+        List<String> res = new ArrayList<>();
+        for (Path source : sources) {
+            Path output = outputFor(source, outDir);
+            Path earlier = first.putIfAbsent(output.toAbsolutePath().normalize(), source);
+            if (earlier != null) res.add(source + ": " + output + " is also the output of " + earlier);
+        }
+        return res;
+    }
+
+    /** Compiles all @sources on @pool, results in the same order; their outputs must differ, see clashes */
+    public static Result[] compileAll(List<Path> sources, Path outDir,
+            NanoMorphoCompiler.Options options, ForkJoinPool pool) {
+        Result[] results = new Result[sources.size()];
+        if (!sources.isEmpty())
+            pool.invoke(new CompileTask(sources, outDir, options, results, 0, sources.size()));
+        return results;
+    }
+
+    /** Expands directories in @args to the .s files they contain */
+    public static List<Path> collectSources(List<String> args) throws IOException {
+        List<Path> sources = new ArrayList<>();
+        for (String arg : args) {
+            Path p = Paths.get(arg);
+            if (Files.isDirectory(p)) {
+                try (Stream<Path> files = Files.walk(p)) {
+                    sources.addAll(files
+                        .filter(f -> Files.isRegularFile(f) && f.toString().endsWith(".s"))
+                        .sorted()
+                        .collect(Collectors.toList()));
+                }
+            } else {
+                sources.add(p);
+            }
+        }
+        return sources;
+    }
+
+    public static void main(String[] args) throws IOException {
+        NanoMorphoCompiler.Options options = new NanoMorphoCompiler.Options();
+        Path outDir = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-d") && i + 1 < args.length) outDir = Paths.get(args[++i]);
+            else if (args[i].equals("-j") && i + 1 < args.length) threads = Integer.parseInt(args[++i]);
+            else if (options.set(args[i])) continue;
+            else if (args[i].startsWith("--")) NanoMorphoCompiler.unknownOption(args[i]);
+            else inputs.add(args[i]);
+        }
+        if (inputs.isEmpty()) {
+            System.err.println("Usage: java NanoMorphoBatch [-O] [--stats] [-d outdir] [-j threads] (file.s | dir) ...");
+            System.exit(1);
+        }
+
+        List<Path> sources = collectSources(inputs);
+        List<String> clashes = clashes(sources, outDir);
+        if (!clashes.isEmpty()) {
+            for (String clash : clashes) System.err.println("error " + clash);
+            System.exit(1);
+        }
+        if (outDir != null) Files.createDirectories(outDir);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long t0 = System.nanoTime();
+        Result[] results = compileAll(sources, outDir, options, pool);
+        long elapsed = System.nanoTime() - t0;
+        pool.shutdown();
+
+        int failed = 0;
+        for (Result r : results) {
+            System.out.println(r);
+            if (!r.ok()) failed++;
+        }
+        System.out.printf("%d files, %d failed, %.1f ms on %d threads%n",
+            results.length, failed, elapsed / 1e6, threads);
+        if (options.cacheStats && options.cache != null)
+            System.out.println(options.cache.statsReport());
+        if (options.cacheStats && options.astCache != null)
+            System.out.println(options.astCache.statsReport());
+        if (options.stats)
+            for (Result r : results)
+                if (r.stats != null) System.out.println(r.stats.toJson());
+        if (failed > 0) System.exit(1);
+    }
+}
@@ -0,0 +1,103 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Simple timing harness for the code generator.
+ *
+ * Writes a large synthetic program, parses it once and then runs
+ * code generation repeatedly with the output thrown away, so only
+ * the code generator itself is measured.
+ *
+ * Usage: java NanoMorphoBenchmark [functions] [rounds]
+ */
+public class NanoMorphoBenchmark {
+
+    /**
+     * Writes a synthetic program with @functions functions to @out.
+     * Every function uses locals, if/elsif/else, while, calls and operators.
+     */
+    public static void writeSynthetic(Writer out, int functions) throws IOException {
+        out.write("main () {\n    writeln(f0(10, 20));\n}\n\n");
+        for (int i = 0; i < functions; i++) {
+            out.write("f" + i + "(a, b) {\n");
+            out.write("    var x, y, z;\n");
+            out.write("    x = a * 3 + b - 1;\n");
+            out.write("    y = 0;\n");
+            out.write("    while (y < x && !(y == 100)) {\n");
+            out.write("        y = y + 1;\n");
+            out.write("        z = y : z;\n");
+            out.write("    };\n");
+            out.write("    if (x < 0 || a == b) {\n");
+            out.write("        return a - b;\n");
+            out.write("    } elsif (x == 1) {\n");
+            out.write("        writeln(x + y);\n");
+            out.write("    } else {\n");
+            out.write("        z = null;\n");
+            out.write("    };\n");
+            if (i + 1 < functions)
+                out.write("    return f" + (i + 1) + "(x, y) + a % 7;\n");
+            else
+                out.write("    return x / 2;\n");
+            out.write("}\n\n");
+        }
+    }
+
+    /**
+     * Writes a program of @functions functions that are mostly operators:
+     * chains at every precedence level, long cons lists, && and || chains
+     * and prefix operators, for timing the expression parser.
+     */
+    public static void writeExpressions(Writer out, int functions) throws IOException {
+        out.write("main () {\n    writeln(e0(1, 2));\n}\n\n");
+        for (int i = 0; i < functions; i++) {
+            out.write("e" + i + "(a, b) {\n");
+            out.write("    var x, y;\n");
+            out.write("    x = a * b + a / 2 - b % 3 * (a + b) - -a + b * b * b - a;\n");
+            out.write("    y = a < b || a == b && !(b >= a) || !!x != y && a <= b + 1 || a > b - 1;\n");
+            out.write("    x = a + 1");
+            for (int k = 0; k < 100; k++) out.write(k % 10 == 9 ? "\n        : a * " + k : " : b - " + k);
+            out.write(" : null;\n");
+            out.write("    y = a == 1");
+            for (int k = 0; k < 50; k++) out.write(k % 2 == 0 ? " || a == " + k : " && b != " + k);
+            out.write(";\n");
+            out.write("    x = (a + (b * (a - (b / (a % (b + 1)))))) : (x | y & a ^ b ~ -b ? (!a));\n");
+            if (i + 1 < functions)
+                out.write("    return e" + (i + 1) + "(a + 1, b - 1) + x * y;\n");
+            else
+                out.write("    return x + y;\n");
+            out.write("}\n\n");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int functions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        File src = File.createTempFile("nanomorpho-bench", ".s");
+        src.deleteOnExit();
+        try (Writer w = new FileWriter(src)) {
+            writeSynthetic(w, functions);
+        }
+
+        NanoMorphoParser parser = new NanoMorphoParser();
+        var program = parser.parse(src.getPath());
+
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int r = 0; r < rounds; r++) {
+            long t0 = System.nanoTime();
+            new NanoMorphoCompiler(NanoMorphoEmitter.toNull()).generateProgram("bench", program);
+            long t = System.nanoTime() - t0;
+            // First half of the rounds is warmup
+            if (r >= rounds / 2) {
+                total += t;
+                best = Math.min(best, t);
+            }
+        }
+        int measured = rounds - rounds / 2;
+        System.out.printf("codegen: %d functions, best %.3f ms, mean %.3f ms, %.0f functions/s%n",
+            functions, best / 1e6, total / 1e6 / measured, functions / (best / 1e9));
+    }
+}
@@ -0,0 +1,572 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent cache of compiled functions, for compiling large sources
+ * where only a few functions change between builds.
+ *
+ * The source is split into functions by scanning it for the top level
+ * NAME ( ... ) { ... } spans, without parsing. Each span is keyed by the
+ * SHA-256 of its text and the compiler options. A function whose key is
+ * in the cache is not parsed or compiled again; its instructions are
+ * written out from the cache, only the labels renumbered for the module.
+ * Other functions are parsed and compiled on their own and stored.
+ *
+ * Cached functions keep their calls, with positions relative to the start
+ * of the function, so calls are checked as in a full compile.
+ *
+ * One file per source file is kept in the cache directory, holding the
+ * functions of the last compile of that source.
+ */
+public final class NanoMorphoCache {
+
+    private static final int MAGIC = 0x4e4d4331;   // "NMC1"
+    private static final int VERSION = 8;
+    private static final NanoMorphoInstr.Op[] OPS = NanoMorphoInstr.Op.values();
+
+    private final Path dir;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /** Cache kept in the directory @dir, made when first written */
+    public NanoMorphoCache(Path dir) {
+        this.dir = dir;
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    public String statsReport() {
+        return "cache: " + hits.get() + " hits, " + misses.get() + " misses";
+    }
+
+    /*
+        A compiled function as stored: its name, argument and label counts,
+        the strings it uses, its calls and its code, with names given as
+        indexes into the strings. Calls have their line relative to the
+        function, and their column too when on its first line. Numbers are
+        written in 7 bit groups, low first, the high bit set on all but the
+        last group; zigzag coded where they may be negative.
+
+        These are kept as bytes, read and written whole, so functions
+        that are found are copied to the new cache file as they are.
+        Only what is written out is ever decoded.
+    */
+    private static final class Stored {
+        final byte[] data;
+        final String name;
+        final int argCount;
+        final int labels;
+        final String[] strings;
+        // Offset of the calls in data, then of the code
+        final int calls;
+        final int code;
+        private int pos;
+
+        Stored(byte[] data) {
+            this.data = data;
+            int name = number();
+            argCount = number();
+            labels = number();
+            strings = new String[number()];
+            for (int i = 0; i < strings.length; i++) {
+                int length = number();
+                strings[i] = new String(data, pos, length, StandardCharsets.UTF_8);
+                pos += length;
+            }
+            this.name = strings[name];
+            calls = pos;
+            for (int c = number(); c > 0; c--) {
+                number(); number(); number(); number();
+            }
+            code = pos;
+        }
+
+        // Gives @symbols the calls, for the function at @span
+        void replayCalls(NanoMorphoSymbols symbols, Span span) {
+            pos = calls;
+            for (int c = number(); c > 0; c--) {
+                String name = strings[number()];
+                int arity = number();
+                int line = number();
+                int column = zigzag(number());
+                symbols.call(name, arity, span.line + line, line == 0 ? span.column + column : column);
+            }
+        }
+
+        // The functions called, e.g. "fibo[f1]", as NanoMorphoCallGraph wants them
+        List<String> called() {
+            pos = calls;
+            List<String> res = new ArrayList<>();
+            for (int c = number(); c > 0; c--) {
+                String name = strings[number()];
+                res.add(NanoMorphoCallGraph.key(name, number()));
+                number(); number();
+            }
+            return res;
+        }
+
+        List<NanoMorphoInstr> code() {
+            pos = code;
+            int size = number();
+            List<NanoMorphoInstr> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                NanoMorphoInstr.Op op = OPS[data[pos++]];
+                switch (op.arg) {
+                    case NONE: list.add(NanoMorphoInstr.op(op)); break;
+                    case INT: list.add(NanoMorphoInstr.op(op, number())); break;
+                    case LITERAL: list.add(NanoMorphoInstr.op(op, strings[number()])); break;
+                    case CALL: list.add(NanoMorphoInstr.call(op, strings[number()], number())); break;
+                    default:
+                        int label = number();
+                        list.add(op == NanoMorphoInstr.Op.LABEL ? NanoMorphoInstr.label(label) : NanoMorphoInstr.op(op, label));
+                }
+            }
+            return list;
+        }
+
+        private int number() {
+            int n = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = data[pos++];
+                n |= (b & 0x7f) << shift;
+                if (b >= 0) return n;
+            }
+        }
+    }
+
+    private static int zigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    // A function in the source: its chars and where its name is
+    private static final class Span {
+        final int start;
+        final int end;
+        final int line;
+        final int column;
+
+        Span(int start, int end, int line, int column) {
+            this.start = start;
+            this.end = end;
+            this.line = line;
+            this.column = column;
+        }
+    }
+
+    /**
+     * Compiles @fileName to @out as NanoMorphoCompiler.compile does, using
+     * and updating the cache. The output is the same as without the cache.
+     * @stats, unless null, gets the times of reading the source and the
+     * cache, of the functions compiled and of writing them all.
+     */
+    public void compile(String fileName, NanoMorphoEmitter out, NanoMorphoCompiler.Options options,
+            NanoMorphoStats stats) throws IOException {
+        long t0 = System.nanoTime();
+        CharBuffer source = NanoMorphoLexer.readSource(fileName);
+        List<Span> spans = split(source);
+        if (spans == null) {
+            // Not a sequence of functions; a full parse reports why
+            NanoMorphoAST.Function[] program = NanoMorphoCompiler.parse(fileName, options);
+            NanoMorphoCompiler.create(out, options).generateProgram(NanoMorphoCompiler.moduleName(fileName), program);
+            return;
+        }
+
+        Path file = cacheFile(fileName);
+        Map<ByteBuffer, byte[]> cached = load(file);
+        if (stats != null) stats.add(NanoMorphoStats.Phase.READ, System.nanoTime() - t0);
+        Map<ByteBuffer, byte[]> used = new HashMap<>();
+        MessageDigest digest = sha256();
+        byte[] prefix = fingerprint(options).getBytes(StandardCharsets.UTF_8);
+        NanoMorphoSymbols symbols = new NanoMorphoSymbols();
+        NanoMorphoParser parser = new NanoMorphoParser();
+        parser.setStats(stats);
+        NanoMorphoCompiler compiler = NanoMorphoCompiler.create(out, options);
+        compiler.setStats(stats);
+        List<NanoMorphoParser.Diagnostic> errors = new ArrayList<>();
+        Stored[] compiled = new Stored[spans.size()];
+        boolean changed = false;
+
+        for (int i = 0; i < compiled.length; i++) {
+            Span span = spans.get(i);
+            ByteBuffer key = key(digest, prefix, source, span);
+            byte[] data = used.get(key);
+            if (data == null) data = cached.get(key);
+            if (data != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                changed = true;
+                try {
+                    data = compileFunction(parser, compiler, options, source, span, stats);
+                } catch (NanoMorphoParser.SyntaxError err) {
+                    errors.addAll(err.getDiagnostics());
+                    continue;
+                }
+            }
+            used.put(key, data);
+            Stored r = new Stored(data);
+            compiled[i] = r;
+            symbols.define(r.name, r.argCount);
+            r.replayCalls(symbols, span);
+        }
+        if (!errors.isEmpty()) throw new NanoMorphoParser.SyntaxError(errors);
+        long t1 = System.nanoTime();
+        symbols.checkArities(NanoMorphoBasis::exports);
+        if (stats != null) {
+            stats.add(NanoMorphoStats.Phase.CHECK, System.nanoTime() - t1);
+            stats.functions += compiled.length;
+        }
+
+        // Every function is checked and kept in the cache, but only those
+        // main can reach are written
+        boolean[] keep = null;
+        if (options.prune != null) {
+            List<String> functions = new ArrayList<>(compiled.length);
+            List<List<String>> calls = new ArrayList<>(compiled.length);
+            for (Stored r : compiled) {
+                functions.add(NanoMorphoCallGraph.key(r.name, r.argCount));
+                calls.add(r.called());
+            }
+            keep = options.prune.keep(fileName, new NanoMorphoCallGraph(functions, calls));
+        }
+        compiler.startProgram(NanoMorphoCompiler.moduleName(fileName));
+        for (int i = 0; i < compiled.length; i++) {
+            Stored r = compiled[i];
+            if (keep == null || keep[i]) compiler.writeFunction(r.name, r.argCount, r.code(), r.labels);
+        }
+        compiler.finishProgram();
+        // Nothing to write when every function was found and none dropped
+        if (changed || used.size() != cached.size()) save(file, used);
+    }
+
+    // Parses and compiles the function at @span on its own
+    private static byte[] compileFunction(NanoMorphoParser parser, NanoMorphoCompiler compiler,
+            NanoMorphoCompiler.Options options, CharBuffer source, Span span, NanoMorphoStats stats) {
+        NanoMorphoSymbols symbols = new NanoMorphoSymbols();
+        CharSequence text = source.subSequence(span.start, span.end);
+        NanoMorphoAST.Function f = parser.parseFunction(text, span.line, span.column, symbols);
+        long t0 = System.nanoTime();
+        if (options.optimize) f = new NanoMorphoConstantFolder().fold(new NanoMorphoAST.Function[] {f})[0];
+        if (options.deadCode != null) f = options.deadCode.eliminate(f);
+        if (options.optimize) f = NanoMorphoSlots.allocate(f);
+        long t1 = System.nanoTime();
+        List<NanoMorphoInstr> code = compiler.generateCode(f);
+        if (stats != null) {
+            stats.add(NanoMorphoStats.Phase.FOLD, t1 - t0);
+            stats.add(NanoMorphoStats.Phase.CODEGEN, System.nanoTime() - t1);
+            // Only functions compiled have a tree to count
+            stats.count(new NanoMorphoAST.Function[] {f});
+        }
+        List<String> names = new ArrayList<>();
+        List<Integer> calls = new ArrayList<>();
+        symbols.forEachCall((name, arity, line, column) -> {
+            names.add(name);
+            calls.add(arity);
+            calls.add(line - span.line);
+            calls.add(line == span.line ? column - span.column : column);
+        });
+        int[] c = new int[calls.size()];
+        for (int i = 0; i < c.length; i++) c[i] = calls.get(i);
+        return encode(f.name, f.argCount, compiler.getLabelCount(), code, names.toArray(new String[0]), c);
+    }
+
+    /*
+        The top level functions of @source, from their name to their closing
+        brace, or null if the tokens are not NAME ( ... ) { ... } repeated:
+        the parser then has to say what is wrong.
+    */
+    private static List<Span> split(CharBuffer source) throws IOException {
+        List<Span> scanned = new Scanner(source).spans();
+        if (scanned != null) return scanned;
+        NanoMorphoLexer lexer = NanoMorphoLexer.newLexer(source);
+        List<Span> spans = new ArrayList<>();
+        try {
+            while (lexer.getToken() != NanoMorphoLexer.EOF) {
+                if (lexer.getToken() != NanoMorphoLexer.NAME) return null;
+                int start = lexer.getOffset();
+                int line = lexer.getLine();
+                int column = lexer.getColumn();
+                lexer.next();
+                if (lexer.getToken() != NanoMorphoLexer.LPAREN) return null;
+                while (lexer.getToken() != NanoMorphoLexer.LBRACE) {
+                    if (lexer.getToken() == NanoMorphoLexer.EOF) return null;
+                    lexer.next();
+                }
+                int depth = 0;
+                do {
+                    int token = lexer.getToken();
+                    if (token == NanoMorphoLexer.EOF) return null;
+                    if (token == NanoMorphoLexer.LBRACE) depth++;
+                    else if (token == NanoMorphoLexer.RBRACE) depth--;
+                    if (depth > 0) lexer.next();
+                } while (depth > 0);
+                spans.add(new Span(start, lexer.getEndOffset(), line, column));
+                lexer.next();
+            }
+            return spans;
+        } finally {
+            lexer.yyclose();
+        }
+    }
+
+    /*
+        Finds the spans of split straight from the characters, much faster
+        than lexing them: skips strings, character literals and comments
+        and counts braces. Gives up on anything it cannot be sure the lexer
+        reads the same way, such as a {;;; comment, leaving it to split.
+    */
+    private static final class Scanner {
+        private final CharBuffer src;
+        private final int end;
+        private int pos;
+        // Lines are counted up to @counted, which trails @pos
+        private int counted;
+        private int line = 1;
+        private int lineStart;
+
+        Scanner(CharBuffer src) {
+            this.src = src;
+            this.end = src.limit();
+        }
+
+        List<Span> spans() {
+            List<Span> spans = new ArrayList<>();
+            for (skip(); pos < end; skip()) {
+                if (!Character.isLetter(src.get(pos))) return null;
+                int start = pos;
+                while (pos < end && (Character.isLetter(src.get(pos)) || isDigit(src.get(pos)))) pos++;
+                skip();
+                if (pos == end || src.get(pos) != '(') return null;
+                for (int depth = 0; ; ) {
+                    if (pos == end) return null;
+                    char c = src.get(pos);
+                    if (c == '"' || c == '\'') {
+                        if (!quoted(c)) return null;
+                        continue;
+                    }
+                    if (comment()) continue;
+                    if (c == '{') {
+                        if (at("{;;;")) return null;
+                        depth++;
+                    } else if (c == '}' && --depth <= 0) {
+                        if (depth < 0) return null;
+                        pos++;
+                        break;
+                    }
+                    pos++;
+                }
+                count(start);
+                spans.add(new Span(start, pos, line, start - lineStart + 1));
+            }
+            return spans;
+        }
+
+        // Past whitespace and comments
+        private void skip() {
+            while (pos < end) {
+                char c = src.get(pos);
+                if (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\f') pos++;
+                else if (!comment()) return;
+            }
+        }
+
+        // Past a ;;; comment if one starts at pos
+        private boolean comment() {
+            if (!at(";;;")) return false;
+            while (pos < end && !isLineEnd(src.get(pos))) pos++;
+            return true;
+        }
+
+        // Past the string or character literal at pos, false if it is not closed
+        private boolean quoted(char quote) {
+            pos++;
+            while (pos < end) {
+                char c = src.get(pos);
+                if (c == '\\') pos += 2;
+                else if (c == quote) {
+                    pos++;
+                    return true;
+                } else if (quote == '\'' && isLineEnd(c)) return false;
+                else pos++;
+            }
+            return false;
+        }
+
+        private boolean at(String s) {
+            if (pos + s.length() > end) return false;
+            for (int i = 0; i < s.length(); i++)
+                if (src.get(pos + i) != s.charAt(i)) return false;
+            return true;
+        }
+
+        // Counts lines up to @to as the lexer does
+        private void count(int to) {
+            for (; counted < to; counted++) {
+                char c = src.get(counted);
+                if (c == '\r' && counted + 1 < end && src.get(counted + 1) == '\n') continue;
+                if (isLineEnd(c)) {
+                    line++;
+                    lineStart = counted + 1;
+                }
+            }
+        }
+
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
+
+        private static boolean isLineEnd(char c) {
+            switch (c) {
+                case '\n': case '\r': case '\u000B': case '\f': case '\u0085': case '\u2028': case '\u2029':
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    // Everything besides the text of a function that its code depends on
+    private static String fingerprint(NanoMorphoCompiler.Options options) {
+        String peephole = options.peephole == null ? "" : String.join(",", options.peephole.getStats().keySet());
+        return VERSION + " " + options.optimize + " " + options.tailCalls + " " + peephole + "\n";
+    }
+
+    private static ByteBuffer key(MessageDigest digest, byte[] prefix, CharBuffer source, Span span) {
+        digest.update(prefix);
+        byte[] bytes = new byte[2 * (span.end - span.start)];
+        for (int i = span.start, j = 0; i < span.end; i++) {
+            char c = source.get(i);
+            bytes[j++] = (byte) (c >> 8);
+            bytes[j++] = (byte) c;
+        }
+        digest.update(bytes);
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // One file per source file, named after the module and its full path
+    private Path cacheFile(String fileName) {
+        String path = Path.of(fileName).toAbsolutePath().normalize().toString();
+        return dir.resolve(NanoMorphoCompiler.moduleName(fileName) + "-"
+            + String.format("%08x", path.hashCode()) + ".cache");
+    }
+
+    private static Map<ByteBuffer, byte[]> load(Path file) throws IOException {
+        Map<ByteBuffer, byte[]> records = new HashMap<>();
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) return records;
+            for (int n = in.getInt(); n > 0; n--) {
+                byte[] key = new byte[32];
+                in.get(key);
+                byte[] data = new byte[in.getInt()];
+                in.get(data);
+                records.put(ByteBuffer.wrap(key), data);
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing cached yet
+        } catch (IOException | RuntimeException e) {
+            // A damaged cache file only costs a full compile
+            records.clear();
+        }
+        return records;
+    }
+
+    // The bytes of a function, see Stored
+    private static byte[] encode(String name, int argCount, int labels, List<NanoMorphoInstr> code,
+            String[] callNames, int[] calls) {
+        Map<String, Integer> index = new LinkedHashMap<>();
+        index.put(name, 0);
+        for (String s : callNames) index.putIfAbsent(s, index.size());
+        for (NanoMorphoInstr in : code)
+            if (in.name != null) index.putIfAbsent(in.name, index.size());
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + 4 * code.size());
+        number(out, 0);
+        number(out, argCount);
+        number(out, labels);
+        number(out, index.size());
+        for (String s : index.keySet()) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            number(out, b.length);
+            out.write(b, 0, b.length);
+        }
+        number(out, callNames.length);
+        for (int c = 0; c < callNames.length; c++) {
+            number(out, index.get(callNames[c]));
+            number(out, calls[3 * c]);
+            number(out, calls[3 * c + 1]);
+            int column = calls[3 * c + 2];
+            number(out, (column << 1) ^ (column >> 31));
+        }
+        number(out, code.size());
+        for (NanoMorphoInstr in : code) {
+            out.write(in.op.ordinal());
+            switch (in.op.arg) {
+                case NONE: break;
+                case LITERAL: number(out, index.get(in.name)); break;
+                case CALL: number(out, index.get(in.name)); number(out, in.arg); break;
+                default: number(out, in.arg);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void number(ByteArrayOutputStream out, int n) {
+        while ((n & ~0x7f) != 0) {
+            out.write((n & 0x7f) | 0x80);
+            n >>>= 7;
+        }
+        out.write(n);
+    }
+
+    // Written to a temporary file first, so readers never see half a file
+    private static void save(Path file, Map<ByteBuffer, byte[]> records) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(records.size());
+                for (Map.Entry<ByteBuffer, byte[]> e : records.entrySet()) {
+                    out.write(e.getKey().array());
+                    out.writeInt(e.getValue().length);
+                    out.write(e.getValue());
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
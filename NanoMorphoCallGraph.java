@@ -0,0 +1,230 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which functions of a program call which, from the calls in their
+ * trees. Functions are known by name and arity as the linker knows them,
+ * e.g. "fibo[f1]", and numbered in the order of the program.
+ *
+ * An edge goes from a function to every function of the program it has
+ * a call of, once however many calls there are. Calls of functions the
+ * program does not define, builtins and BASIS, are kept apart as the
+ * external calls of the function. reachable gives the functions some
+ * chain of calls leads to from a root, ROOT for a whole program.
+ *
+ * Pruner, set by --prune, drops the functions main can never reach
+ * before anything else is done with them.
+ */
+public final class NanoMorphoCallGraph {
+
+    /** The function a program starts in */
+    public static final String ROOT = "main[f0]";
+
+    private final String[] functions;
+    private final Map<String, Integer> index = new HashMap<>();
+    private final int[][] callees;
+    private final String[][] external;
+    private int[][] callers;
+
+    /**
+     * Graph of the functions @functions, where @calls.get(i) has the
+     * functions that function i calls, each at least once, in any order.
+     */
+    public NanoMorphoCallGraph(List<String> functions, List<? extends Iterable<String>> calls) {
+        this.functions = functions.toArray(new String[0]);
+        for (int i = 0; i < this.functions.length; i++)
+            index.putIfAbsent(this.functions[i], i);
+        callees = new int[this.functions.length][];
+        external = new String[this.functions.length][];
+        for (int i = 0; i < this.functions.length; i++) {
+            Set<Integer> in = new LinkedHashSet<>();
+            Set<String> out = new LinkedHashSet<>();
+            for (String callee : calls.get(i)) {
+                Integer j = index.get(callee);
+                if (j != null) in.add(j);
+                else out.add(callee);
+            }
+            callees[i] = in.stream().mapToInt(Integer::intValue).toArray();
+            external[i] = out.toArray(new String[0]);
+        }
+    }
+
+    /** Graph of the calls in the trees of @program */
+    public static NanoMorphoCallGraph of(NanoMorphoAST.Function[] program) {
+        List<String> functions = new ArrayList<>(program.length);
+        List<Set<String>> calls = new ArrayList<>(program.length);
+        for (NanoMorphoAST.Function f : program) {
+            functions.add(key(f.name, f.argCount));
+            Set<String> called = new LinkedHashSet<>();
+            Calls visitor = new Calls(called);
+            for (NanoMorphoAST.Expr e : f.exprs) e.accept(visitor);
+            calls.add(called);
+        }
+        return new NanoMorphoCallGraph(functions, calls);
+    }
+
+    /** The name of the function @name with @arity arguments, e.g. "fibo[f1]" */
+    public static String key(String name, int arity) {
+        return name + "[f" + arity + "]";
+    }
+
+    /** Number of functions */
+    public int size() {
+        return functions.length;
+    }
+
+    /** Name of function @i, e.g. "fibo[f1]" */
+    public String function(int i) {
+        return functions[i];
+    }
+
+    /** Number of the function @name, e.g. "fibo[f1]", -1 if the program has none */
+    public int indexOf(String name) {
+        Integer i = index.get(name);
+        return i == null ? -1 : i;
+    }
+
+    /** Functions of the program that function @i calls, in the order first called */
+    public int[] callees(int i) {
+        return callees[i].clone();
+    }
+
+    /** Functions of the program that call function @i, in program order */
+    public int[] callers(int i) {
+        if (callers == null) {
+            int[] counts = new int[functions.length];
+            for (int[] cs : callees)
+                for (int c : cs) counts[c]++;
+            int[][] res = new int[functions.length][];
+            for (int j = 0; j < res.length; j++) res[j] = new int[counts[j]];
+            int[] next = new int[functions.length];
+            for (int j = 0; j < callees.length; j++)
+                for (int c : callees[j]) res[c][next[c]++] = j;
+            callers = res;
+        }
+        return callers[i].clone();
+    }
+
+    /** Functions outside the program that function @i calls, e.g. "writeln[f1]" */
+    public String[] externalCalls(int i) {
+        return external[i].clone();
+    }
+
+    /** Number of edges between functions of the program */
+    public int edges() {
+        int n = 0;
+        for (int[] cs : callees) n += cs.length;
+        return n;
+    }
+
+    /**
+     * The functions that @root, or a function it calls, calls, @root
+     * included. None if the program has no @root.
+     */
+    public boolean[] reachable(String root) {
+        boolean[] seen = new boolean[functions.length];
+        int start = indexOf(root);
+        if (start < 0) return seen;
+        int[] stack = new int[functions.length];
+        int top = 0;
+        seen[start] = true;
+        stack[top++] = start;
+        while (top > 0) {
+            for (int c : callees[stack[--top]]) {
+                if (seen[c]) continue;
+                seen[c] = true;
+                stack[top++] = c;
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * One line per function with the functions of the program it calls:
+     *   main[f0] -> fun3[f1], fun1[f2]
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < functions.length; i++) {
+            if (i > 0) sb.append(String.format("%n"));
+            sb.append(functions[i]);
+            for (int j = 0; j < callees[i].length; j++)
+                sb.append(j == 0 ? " -> " : ", ").append(functions[callees[i][j]]);
+        }
+        return sb.toString();
+    }
+
+    // Adds the name of every call to a set
+    private static final class Calls extends NanoMorphoAST.Rewriter {
+        private final Set<String> called;
+
+        Calls(Set<String> called) {
+            this.called = called;
+        }
+
+        public NanoMorphoAST.Expr visitCall(NanoMorphoAST.Call e) {
+            called.add(key(e.name, e.args.length));
+            return super.visitCall(e);
+        }
+    }
+
+    /**
+     * Drops the functions of a program that main cannot reach, with
+     * --prune. A program without main is left as it is, so the linker
+     * can say what is missing. What was dropped from each program, with
+     * its call graph, is listed by report, which --prune-report prints.
+     */
+    public static final class Pruner {
+        private final List<String> pruned = new ArrayList<>();
+        private int totalFunctions = 0;
+        private int totalDropped = 0;
+
+        /** The functions of @graph to keep, counting the rest as dropped from @program, a file name */
+        public boolean[] keep(String program, NanoMorphoCallGraph graph) {
+            boolean[] keep = graph.reachable(ROOT);
+            if (graph.indexOf(ROOT) < 0) Arrays.fill(keep, true);
+            StringBuilder sb = new StringBuilder(program).append(": ");
+            List<String> dropped = new ArrayList<>();
+            for (int i = 0; i < keep.length; i++)
+                if (!keep[i]) dropped.add(graph.function(i));
+            if (graph.indexOf(ROOT) < 0) sb.append("no ").append(ROOT).append(", all ").append(keep.length).append(" functions kept");
+            else sb.append(keep.length - dropped.size()).append(" of ").append(keep.length).append(" functions reachable from ").append(ROOT);
+            sb.append(", ").append(graph.edges()).append(" call edges");
+            for (String line : graph.toString().split(String.format("%n")))
+                if (!line.isEmpty()) sb.append(String.format("%n    %s", line));
+            if (!dropped.isEmpty()) sb.append(String.format("%n    dropped: %s", String.join(", ", dropped)));
+            // One pruner may be shared by the workers of NanoMorphoBatch
+            synchronized (pruned) {
+                pruned.add(sb.toString());
+                totalFunctions += keep.length;
+                totalDropped += dropped.size();
+            }
+            return keep;
+        }
+
+        /** @program, from the file @fileName, without the functions main cannot reach */
+        public NanoMorphoAST.Function[] prune(String fileName, NanoMorphoAST.Function[] program) {
+            boolean[] keep = keep(fileName, of(program));
+            List<NanoMorphoAST.Function> res = new ArrayList<>(program.length);
+            for (int i = 0; i < program.length; i++)
+                if (keep[i]) res.add(program[i]);
+            return res.size() == program.length ? program : res.toArray(new NanoMorphoAST.Function[0]);
+        }
+
+        public String report() {
+            StringBuilder sb = new StringBuilder("call graph:");
+            synchronized (pruned) {
+                for (String lines : pruned) sb.append(String.format("%n  %s", lines));
+                sb.append(String.format("%n  total: %d of %d function%s dropped", totalDropped, totalFunctions,
+                    totalFunctions == 1 ? "" : "s"));
+            }
+            return sb.toString();
+        }
+    }
+}
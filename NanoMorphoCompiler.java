@@ -1,245 +1,1342 @@
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
 
 public class NanoMorphoCompiler {
 
+    // Labels are numbered from 1 in every function, so the code of a
+    // function does not depend on the functions before it. The Morpho
+    // assembler wants labels unique in the module, so they are written
+    // out offset by the labels of the functions already written.
     private int labelCount = 0;
+    private int labelBase = 0;
+    private final NanoMorphoEmitter out;
+    // Body of the function being generated
+    private List<NanoMorphoInstr> code;
+    private NanoMorphoPeephole peephole = null;
+    private boolean tailCalls = false;
+    private NanoMorphoStats stats = null;
+    // Counters with --profile and result caches with --memo, else null,
+    // and the lines of the source for the report and the annotations
+    private NanoMorphoProfile profile = null;
+    private NanoMorphoMemo memo = null;
+    private List<String> source = null;
+    // "name[fN]" of the functions with a cache, see memoize, and how many
+    private final Set<String> memoized = new HashSet<>();
+    private int memoTables = 0;
+    // Function being generated, its entry label for self tail calls (0 if
+    // none yet) and how many call arguments are being evaluated
+    private NanoMorphoAST.Function function;
+    private int entryLabel;
+    private int argDepth;
+
+    // One visitor per code generation mode, see generateExpression,
+    // generateStatement, generateExpressionR and generateExpressionP.
+    private final ExpressionGenerator plain = new ExpressionGenerator();
+    private final StatementGenerator statement = new StatementGenerator();
+    private final ReturnGenerator ret = new ReturnGenerator();
+    private final PushGenerator push = new PushGenerator();
+
+    /** Compiler that writes Morpho assembly to @out */
+    public NanoMorphoCompiler(NanoMorphoEmitter out) {
+        this.out = out;
+    }
+
+    /** Compiler that writes Morpho assembly to standard output */
+    public NanoMorphoCompiler() {
+        this(NanoMorphoEmitter.toWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+    }
 
     public int newLabel() {
         labelCount++;
         return labelCount;
     }
 
-    public void emit(String line, Object... args) {
-        System.out.println(String.format(line, args));
+    public NanoMorphoEmitter getEmitter() {
+        return out;
+    }
+
+    /** Runs @peephole over every function body before it is written, null to disable */
+    public void setPeephole(NanoMorphoPeephole peephole) {
+        this.peephole = peephole;
+    }
+
+    /** Compiles self calls in tail position to jumps when @tailCalls is set */
+    public void setTailCalls(boolean tailCalls) {
+        this.tailCalls = tailCalls;
+    }
+
+    /** Times code generation and writing into @stats and counts what is written, null to disable */
+    public void setStats(NanoMorphoStats stats) {
+        this.stats = stats;
+    }
+
+    /** Counts calls and loop iterations into @profile, null to disable, see generateSupport */
+    public void setProfile(NanoMorphoProfile profile) {
+        this.profile = profile;
+    }
+
+    /** Gives the functions memoize picks a cache in @memo, null to disable */
+    public void setMemo(NanoMorphoMemo memo) {
+        this.memo = memo;
+    }
+
+    /** Gives the lines of the source, for the report of --profile and the ;;; @memo annotations of --memo */
+    public void setSource(List<String> source) {
+        this.source = source;
     }
 
-    public void generateProgram(String name, Object[] program) {
+    private void emit(NanoMorphoInstr.Op op) {
+        code.add(NanoMorphoInstr.op(op));
+    }
+
+    private void emit(NanoMorphoInstr.Op op, int arg) {
+        code.add(NanoMorphoInstr.op(op, arg));
+    }
+
+    private void emit(NanoMorphoInstr.Op op, String literal) {
+        code.add(NanoMorphoInstr.op(op, literal));
+    }
+
+    private void emitJump(NanoMorphoInstr.Op op, int label) {
+        code.add(NanoMorphoInstr.op(op, label));
+    }
+
+    private void emitCall(NanoMorphoInstr.Op op, String function, int argc) {
+        code.add(NanoMorphoInstr.call(op, function, argc));
+    }
+
+    private void emitLabel(int label) {
+        code.add(NanoMorphoInstr.label(label));
+    }
+
+    public void generateProgram(String name, NanoMorphoAST.Function[] program) {
         // program = {function, ....}
-        emit("\"%s.mexe\" = main in", name);
-        emit("!{{");
+        memoize(program);
+        startProgram(name);
         for (int i = 0; i < program.length; i++)
-            generateFunction((Object[]) program[i]);
-        emit("}}*BASIS;");
-    }
-
-    public void generateFunction(Object[] f) {
-        // f = {name, argcount, varcount, expressions}
-        String name = (String) f[0];
-        int argc = (Integer) f[1];
-        int varc = (Integer) f[2];
-        Object [] exprs = (Object[]) f[3];
-        emit("#\"%s[f%d]\" =", name, argc);
-        emit("[");
-        if (varc > 0) {
-            emit("(MakeVal null)");
-            for (int i = 0; i < varc; i++)
-                emit("(Push)");
-        }
-        for(int i = 0; i < exprs.length; i++)
-            generateExpression((Object[]) exprs[i]);
-        //Expressions
-        emit("(Return)"); //Just in case;
-        emit("];");
-    }
-
-    public void generateExpression(Object[] expr) {
-        String code = (String) expr[0];
-        switch(code) {
-            case "FETCH":
-                emit("(Fetch %d)", expr[1]);
-                return;
-            case "STORE":
-                generateExpression((Object []) expr[2]);
-                emit("(Store %d)", expr[1]);
-                return;
-            case "LITERAL":
-                emit("(MakeVal %s)", (String) expr[1]);
-                return;
-            case "IF":
-                int labElse = newLabel();
-                int labEnd = newLabel();
-                generateJump((Object[]) expr[1], 0, labElse);
-                generateExpression((Object[]) expr[2]);
-                emit("(Go %s)", labEnd);
-                emit("_%d:", labElse);
-                if (null != (Object) expr[3]) {
-                    generateExpression((Object[]) expr[3]);
-                }
-                emit("_%d:", labEnd);
-                return;
-            case "WHILE":
-                int loopLabel = newLabel();
-                int endLabel = newLabel();
-                emit("_%d:", loopLabel);
-                generateExpression((Object[]) expr[1]);
-                emit("(GoFalse _%d)", endLabel);
-                generateExpression((Object[]) expr[2]);
-                emit("(Go _%d)", loopLabel);
-                emit("_%d:", endLabel);
-                return;
-            case "BODY":
-                Object[] exprs = (Object[]) expr[1];
-                for (int i = 0; i < exprs.length; i++) {
-                    generateExpression((Object[]) exprs[i]);
-                }
-                return;
-            case "CALL":
-                Object[] args = (Object[]) expr[2];
-                for(int i = 0; i < args.length; i++) {
-                    if(i==0) generateExpression((Object[]) args[i]);
-                    else generateExpressionP((Object[]) args[i]);
-                }
-                emit("(Call #\"%s[f%d]\" %d)", expr[1], args.length, args.length);
-                return;
-            case "RETURN":
-                generateExpressionR((Object[]) expr[1]);
+            generateFunction(program[i]);
+        finishProgram();
+    }
+
+    /** Starts the module @name; functions follow, then finishProgram */
+    public void startProgram(String name) {
+        labelBase = 0;
+        if (profile != null || memo != null) out.module(name, START);
+        else out.module(name);
+        out.line("!{{");
+    }
+
+    public void finishProgram() {
+        for (NanoMorphoAST.Function f : supportFunctions())
+            writeFunction(f.name, f.argCount, generateSupport(f), labelCount);
+        out.line("}}*BASIS;");
+        out.flush();
+    }
+
+    /** Generates and writes @f, as f$body and f if memoize picked it */
+    public void generateFunction(NanoMorphoAST.Function f) {
+        String name = isMemoized(f) ? memoBody(f.name) : f.name;
+        if (stats == null) {
+            writeFunction(name, f.argCount, generateCode(f), labelCount);
+        } else {
+            long t0 = System.nanoTime();
+            List<NanoMorphoInstr> body = generateCode(f);
+            stats.add(NanoMorphoStats.Phase.CODEGEN, System.nanoTime() - t0);
+            writeFunction(name, f.argCount, body, labelCount);
+        }
+        if (isMemoized(f)) writeFunction(f.name, f.argCount, generateMemo(f), labelCount);
+    }
+
+    /**
+     * Writes @body, code from generateCode, as the function @name with
+     * @argCount arguments. @labels is the number of labels generateCode
+     * numbered for it, see getLabelCount.
+     */
+    public void writeFunction(String name, int argCount, List<NanoMorphoInstr> body, int labels) {
+        long t0 = stats == null ? 0 : System.nanoTime();
+        out.function(name, argCount);
+        out.line("[");
+        for (NanoMorphoInstr in : body)
+            in.emit(out, labelBase);
+        out.line("];");
+        labelBase += labels;
+        if (stats != null) {
+            stats.add(NanoMorphoStats.Phase.EMIT, System.nanoTime() - t0);
+            for (NanoMorphoInstr in : body)
+                if (in.isLabel()) stats.labels++;
+                else stats.instructions++;
+        }
+    }
+
+    /** Number of labels numbered for the function last given to generateCode */
+    public int getLabelCount() {
+        return labelCount;
+    }
+
+    /**
+     * Generates the body of @f as a list of instructions and labels,
+     * after the peephole rules if any. Labels are local to the function and
+     * numbered from 1.
+     */
+    public List<NanoMorphoInstr> generateCode(NanoMorphoAST.Function f) {
+        code = new ArrayList<>();
+        labelCount = 0;
+        function = f;
+        entryLabel = 0;
+        argDepth = 0;
+        if (f.varCount > 0) {
+            emit(NanoMorphoInstr.Op.MAKEVAL, "null");
+            for (int i = 0; i < f.varCount; i++)
+                emit(NanoMorphoInstr.Op.PUSH);
+        }
+        int entry = code.size();
+        count(NanoMorphoProfile.Kind.ENTRY, f.line);
+        int last = f.exprs.length - 1;
+        for(int i = 0; i < last; i++)
+            generateStatement(f.exprs[i]);
+        // The function returns the value of its last expression, so that
+        // one is compiled to return itself instead of being followed by
+        // a (Return) that may never be reached
+        if (last >= 0) generateExpressionR(f.exprs[last]);
+        else emit(NanoMorphoInstr.Op.RETURN);
+        // Self tail calls jump back to just after the locals are pushed
+        if (entryLabel != 0) code.add(entry, NanoMorphoInstr.label(entryLabel));
+        if (peephole != null) code = peephole.optimize(code);
+        List<NanoMorphoInstr> res = code;
+        code = null;
+        function = null;
+        return res;
+    }
+
+    /** Generates @expr leaving its value in the accumulator */
+    public void generateExpression(NanoMorphoAST.Expr expr) {
+        expr.accept(plain);
+    }
+
+    /** Generates @expr for its effects only; its value may be left anywhere */
+    public void generateStatement(NanoMorphoAST.Expr expr) {
+        expr.accept(statement);
+    }
+
+    /** Generates @expr and returns its value from the current function */
+    public void generateExpressionR(NanoMorphoAST.Expr expr) {
+        expr.accept(ret);
+    }
+
+    /** Pushes the accumulator, then generates @expr into the accumulator */
+    public void generateExpressionP(NanoMorphoAST.Expr expr) {
+        expr.accept(push);
+    }
+
+    /**
+     * Generates the condition @expr as jumps: to @labTrue if it is true
+     * and to @labFalse if not, where one of them may be 0 to fall through.
+     * &&, || and ! become jumps too, ! by swapping the labels, so no truth
+     * value is computed for them. The accumulator is left as it was when
+     * the last operand tested was computed.
+     */
+    public void generateJump(NanoMorphoAST.Expr expr, int labTrue, int labFalse) {
+        // The right operand and the operand of ! are taken by the loop, as
+        // && and || nest to the right, so long chains take no stack. The
+        // labels placed after them are kept in @after, innermost last
+        List<Integer> after = new ArrayList<>();
+        for (;;) {
+            if (expr instanceof NanoMorphoAST.Not) {
+                expr = ((NanoMorphoAST.Not) expr).value;
+                int lab = labTrue;
+                labTrue = labFalse;
+                labFalse = lab;
+            }
+            else if (expr instanceof NanoMorphoAST.And) {
+                NanoMorphoAST.And e = (NanoMorphoAST.And) expr;
+                int lab = labFalse != 0 ? labFalse : newLabel();
+                generateJump(e.left, 0, lab);
+                if (labFalse == 0) after.add(lab);
+                expr = e.right;
+            }
+            else if (expr instanceof NanoMorphoAST.Or) {
+                NanoMorphoAST.Or e = (NanoMorphoAST.Or) expr;
+                int lab = labTrue != 0 ? labTrue : newLabel();
+                generateJump(e.left, lab, 0);
+                if (labTrue == 0) after.add(lab);
+                expr = e.right;
+            }
+            else break;
+        }
+        if (expr instanceof NanoMorphoAST.Literal) {
+            if (((NanoMorphoAST.Literal) expr).isFalse()) {
+                if (labFalse != 0) emitJump(NanoMorphoInstr.Op.GO, labFalse);
+            }
+            else if (labTrue != 0) emitJump(NanoMorphoInstr.Op.GO, labTrue);
+        }
+        else {
+            generateExpression(expr);
+            if (labTrue != 0) emitJump(NanoMorphoInstr.Op.GOTRUE, labTrue);
+            if (labFalse !=0) emitJump(NanoMorphoInstr.Op.GOFALSE, labFalse);
+        }
+        for (int i = after.size() - 1; i >= 0; i--)
+            emitLabel(after.get(i));
+    }
+
+    /*
+        As generateJump, but if @value the accumulator holds the value of
+        @expr when it is false, as the value of an if without else or of a
+        while. Jumps leave the value of the last operand tested, which is
+        the value of && and || but not of ! or a literal.
+    */
+    private void generateCondition(NanoMorphoAST.Expr expr, int labTrue, int labFalse, boolean value) {
+        if (value && !keepsValue(expr)) {
+            generateExpression(expr);
+            if (labTrue != 0) emitJump(NanoMorphoInstr.Op.GOTRUE, labTrue);
+            if (labFalse != 0) emitJump(NanoMorphoInstr.Op.GOFALSE, labFalse);
+            return;
+        }
+        generateJump(expr, labTrue, labFalse);
+    }
+
+    // True if generateJump leaves the value of @expr when it is false
+    private static boolean keepsValue(NanoMorphoAST.Expr expr) {
+        for (;;) {
+            if (expr instanceof NanoMorphoAST.Not) return false;
+            if (expr instanceof NanoMorphoAST.Literal) return !((NanoMorphoAST.Literal) expr).isFalse();
+            if (expr instanceof NanoMorphoAST.And) {
+                if (!keepsValue(((NanoMorphoAST.And) expr).left)) return false;
+                expr = ((NanoMorphoAST.And) expr).right;
+            }
+            else if (expr instanceof NanoMorphoAST.Or) {
+                if (!keepsValue(((NanoMorphoAST.Or) expr).left)) return false;
+                expr = ((NanoMorphoAST.Or) expr).right;
+            }
+            else return true;
+        }
+    }
+
+    /*
+        if, leaving its value in the accumulator if @value. The value of
+        an if without else is that of its condition when it is false.
+    */
+    private void generateIf(NanoMorphoAST.If e, boolean value) {
+        int labElse = newLabel();
+        generateCondition(e.cond, 0, labElse, value && e.elsePart == null);
+        if (value) generateExpression(e.thenPart);
+        else generateStatement(e.thenPart);
+        if (e.elsePart == null) {
+            emitLabel(labElse);
+            return;
+        }
+        int labEnd = newLabel();
+        emitJump(NanoMorphoInstr.Op.GO, labEnd);
+        emitLabel(labElse);
+        if (value) generateExpression(e.elsePart);
+        else generateStatement(e.elsePart);
+        emitLabel(labEnd);
+    }
+
+    /*
+        while, with the test after the body so that each pass takes one
+        branch, back to the body while the condition holds. Its value, if
+        @value, is that of the condition when it turned false.
+    */
+    private void generateWhile(NanoMorphoAST.While e, boolean value) {
+        int bodyLabel = newLabel();
+        int testLabel = newLabel();
+        emitJump(NanoMorphoInstr.Op.GO, testLabel);
+        emitLabel(bodyLabel);
+        count(NanoMorphoProfile.Kind.LOOP, e.line);
+        generateStatement(e.body);
+        emitLabel(testLabel);
+        generateCondition(e.cond, bodyLabel, 0, value);
+    }
+
+    public void generateJumpP(NanoMorphoAST.Expr expr, int labTrue, int labFalse) {
+        if (expr instanceof NanoMorphoAST.Literal) {
+            emit(NanoMorphoInstr.Op.PUSH);
+            if (((NanoMorphoAST.Literal) expr).isFalse()) {
+                if (labFalse != 0) emitJump(NanoMorphoInstr.Op.GO, labFalse);
                 return;
-            case "AND":
+            }
+            if (labTrue != 0) emitJump(NanoMorphoInstr.Op.GO, labTrue);
+            return;
+        }
+        generateExpressionP(expr);
+        if (labTrue != 0) emitJump(NanoMorphoInstr.Op.GOTRUE, labTrue);
+        if (labFalse !=0) emitJump(NanoMorphoInstr.Op.GOFALSE, labFalse);
+    }
+
+    // Arguments of a call: first one in the accumulator, the rest pushed
+    private void generateArgs(NanoMorphoAST.Expr[] args) {
+        generateArgs(args, false);
+    }
+
+    /*
+        Arguments of a call, all pushed if @pushed. A call as the last
+        argument, as in the right-nested 1:2:3:null, is generated by the
+        loop rather than by its visitor: its arguments are taken in turn
+        and the calls are made after the innermost one, so long chains
+        take no stack, as in the parser. The code is that of the visitors.
+    */
+    private void generateArgs(NanoMorphoAST.Expr[] args, boolean pushed) {
+        List<NanoMorphoAST.Call> calls = new ArrayList<>();
+        argDepth++;
+        for (;;) {
+            int last = args.length - 1;
+            for (int i = 0; i < last; i++) {
+                if (i == 0 && !pushed) generateExpression(args[i]);
+                else generateExpressionP(args[i]);
+            }
+            if (last < 0) break;
+            boolean inAcc = last == 0 && !pushed;
+            if (!(args[last] instanceof NanoMorphoAST.Call)) {
+                if (inAcc) generateExpression(args[last]);
+                else generateExpressionP(args[last]);
+                break;
+            }
+            // As ExpressionGenerator.visitCall or PushGenerator.visitCall
+            NanoMorphoAST.Call e = (NanoMorphoAST.Call) args[last];
+            if (!inAcc && profile != null) emit(NanoMorphoInstr.Op.PUSH);
+            if (inAcc || profile != null) {
+                count(NanoMorphoProfile.Kind.CALL, e.line);
+                pushed = false;
+            }
+            else {
+                if (e.args.length == 0) emit(NanoMorphoInstr.Op.PUSH);
+                pushed = true;
+            }
+            calls.add(e);
+            args = e.args;
+        }
+        argDepth--;
+        for (int i = calls.size() - 1; i >= 0; i--)
+            emitCall(NanoMorphoInstr.Op.CALL, calls.get(i).name, calls.get(i).args.length);
+    }
+
+    /*
+        && or || into the accumulator: each left operand in turn, jumping
+        past the rest with its value if it decides. The right operands are
+        taken by the loop, so long chains take no stack.
+    */
+    private void generateLogic(NanoMorphoAST.Expr expr) {
+        List<Integer> labels = new ArrayList<>();
+        for (;;) {
+            if (expr instanceof NanoMorphoAST.And) {
+                NanoMorphoAST.And e = (NanoMorphoAST.And) expr;
                 int lab = newLabel();
-                generateExpression((Object[]) expr[1]);
-                emit("(GoFalse _%d)", lab);
-                generateExpression((Object[]) expr[2]);
-                emit("_%d:", lab);
-                return;
-            case "OR":
-                int lab2 = newLabel();
-                generateExpression((Object[]) expr[1]);
-                emit("(GoTrue _%d)", lab2);
-                generateExpression((Object[]) expr[2]);
-                emit("_%d:", lab2);
-                return;
-            case "NOT":
-                generateExpression((Object[]) expr[1]);
-                emit("(Not)");
-                return;
-            default:
-                throw new Error(String.format("Unknown command code: %s", code));
+                generateExpression(e.left);
+                emitJump(NanoMorphoInstr.Op.GOFALSE, lab);
+                labels.add(lab);
+                expr = e.right;
+            }
+            else if (expr instanceof NanoMorphoAST.Or) {
+                NanoMorphoAST.Or e = (NanoMorphoAST.Or) expr;
+                int lab = newLabel();
+                generateExpression(e.left);
+                emitJump(NanoMorphoInstr.Op.GOTRUE, lab);
+                labels.add(lab);
+                expr = e.right;
+            }
+            else break;
         }
+        generateExpression(expr);
+        for (int i = labels.size() - 1; i >= 0; i--)
+            emitLabel(labels.get(i));
     }
 
-    public void generateJump(Object[] expr, int labTrue, int labFalse) {
-        String code = (String) expr[0];
-        switch (code) {
-            case "LITERAL":
-                String literal = (String) expr[1];
-                if (literal.equals("false") || literal.equals("null") ) {
-                    if (labFalse != 0) emit("(Go _%d)", labTrue);
-                    return;
-                }
-                if (labTrue != 0) emit("(Go _%d)", labTrue);
-                return;
-            default:
-                generateExpression(expr);
-                if (labTrue != 0) emit("(GoTrue _%d)", labTrue);
-                if (labFalse !=0) emit("(GoFalse _%d)", labFalse);
+    // A call to the current function in tail position with nothing else
+    // on the stack can reuse the frame
+    private boolean isSelfTailCall(NanoMorphoAST.Call e) {
+        return tailCalls && argDepth == 0 && function != null
+            && e.name.equals(function.name) && e.args.length == function.argCount;
+    }
+
+    /*
+        Self tail call: the new arguments are evaluated as for a call, then
+        popped into the argument slots, the locals are reset to null and
+        control jumps back to the start of the body.
+    */
+    private void generateSelfTailCall(NanoMorphoAST.Call e) {
+        int argc = e.args.length;
+        generateArgs(e.args);
+        if (argc > 0) {
+            emit(NanoMorphoInstr.Op.STORE, argc - 1);
+            for (int i = argc - 2; i >= 0; i--)
+                emit(NanoMorphoInstr.Op.POPINTO, i);
         }
+        if (function.varCount > 0) {
+            emit(NanoMorphoInstr.Op.MAKEVAL, "null");
+            for (int i = 0; i < function.varCount; i++)
+                emit(NanoMorphoInstr.Op.STORE, argc + i);
+        }
+        if (entryLabel == 0) entryLabel = newLabel();
+        emitJump(NanoMorphoInstr.Op.GO, entryLabel);
     }
 
-    public void generateJumpP(Object[] expr, int labTrue, int labFalse) {
-        String code = (String) expr[0];
-        switch (code) {
-            case "LITERAL":
-                String literal = (String) expr[1];
-                emit("(Push)");
-                if (literal.equals("false") || literal.equals("null") ) {
-                    if (labFalse != 0) emit("(Go _%d)", labTrue);
-                    return;
-                }
-                if (labTrue != 0) emit("(Go _%d)", labTrue);
-                return;
+    /*
+        With --profile, adds one to the counter of a new point of @kind at
+        @line of the source. The accumulator is lost:
+            (MakeVal point) (Call #"profile_count[f1]" 1)
+    */
+    private void count(NanoMorphoProfile.Kind kind, int line) {
+        if (profile == null) return;
+        int point = profile.point(kind, function.name + "[f" + function.argCount + "]", line);
+        emit(NanoMorphoInstr.Op.MAKEVAL, Integer.toString(point));
+        emitCall(NanoMorphoInstr.Op.CALL, PROFILE_COUNT, 1);
+    }
+
+    /*
+        The functions --profile and --memo add to the program. NanoMorpho
+        names have no '_', so they cannot clash with its functions. The
+        module starts in nanomorpho_main, which sets up the counters of
+        --profile, a Morpho array of longs in the global variable
+        NanoMorphoProfile.COUNTS, and the result caches of --memo, calls
+        main and then, with --profile, profile_report, which writes the
+        report to standard error.
+    */
+    public static final String START = "nanomorpho_main";
+    private static final String PROFILE_COUNT = "profile_count";
+    private static final String PROFILE_REPORT = "profile_report";
+
+    /** Headers of the functions --profile and --memo add after those of the program, see generateSupport */
+    public NanoMorphoAST.Function[] supportFunctions() {
+        if (profile == null && memo == null) return new NanoMorphoAST.Function[0];
+        NanoMorphoAST.Expr[] none = new NanoMorphoAST.Expr[0];
+        NanoMorphoAST.Function start = new NanoMorphoAST.Function(START, 0, profile != null ? 1 : 0, none);
+        if (profile == null) return new NanoMorphoAST.Function[] {start};
+        return new NanoMorphoAST.Function[] {
+            start,
+            new NanoMorphoAST.Function(PROFILE_COUNT, 1, 0, none),
+            new NanoMorphoAST.Function(PROFILE_REPORT, 0, 2, none)
+        };
+    }
+
+    /**
+     * Generates the body of @f, one of supportFunctions, for the counters
+     * and caches of the functions generated so far. Labels are numbered
+     * from 1.
+     */
+    public List<NanoMorphoInstr> generateSupport(NanoMorphoAST.Function f) {
+        code = new ArrayList<>();
+        labelCount = 0;
+        switch (f.name) {
+            case START:
+                generateStart();
+                break;
+            case PROFILE_COUNT:
+                generateProfileCount();
+                break;
             default:
-                generateExpressionP(expr);
-                if (labTrue != 0) emit("(GoTrue _%d)", labTrue);
-                if (labFalse !=0) emit("(GoFalse _%d)", labFalse);
+                generateProfileReport();
         }
+        List<NanoMorphoInstr> res = code;
+        code = null;
+        return res;
     }
 
-    public void generateExpressionR(Object[] expr) {
-        String code = (String) expr[0];
-        switch(code) {
-            case "FETCH":
-                emit("(FetchR %d)", expr[1]);
-                return;
-            case "STORE":
-                generateExpression((Object []) expr[2]);
-                emit("(StoreR %d)", expr[1]);
-                return;
-            case "LITERAL":
-                emit("(MakeValR %s)", (String) expr[1]);
-                return;
-            case "IF":
-                int labElse = newLabel();
-                int labEnd = newLabel();
-                generateJump((Object[]) expr[1], 0, labElse);
-                generateExpressionR((Object[]) expr[2]);
-                emit("_%d:", labElse);
-                if ((Object) expr[2] != null) {
-                    generateExpressionR((Object[]) expr[3]);
-                }
-                return;
-            case "CALL":
-                Object[] args = (Object[]) expr[2];
-                for(int i = 0; i < args.length; i++) {
-                    if(i==0) generateExpression((Object[]) args[i]);
-                    else generateExpressionP((Object[]) args[i]);
-                }
-                emit("(CallR #\"%s[f%d]\" %d)", expr[1], args.length, args.length);
-                return;
-            default:
-                generateExpression(expr);
-                emit("(Return)");
-                return;
+    /*
+        nanomorpho_main(), with i in slot 0 for --profile:
+            counts = makeArray(n); i = 0;
+            while (i < n) { arraySet(counts, i, long(0)); i = inc(i); }
+            memo_0 = new java.util.LinkedHashMap(16, 0.75f, true); ...
+            main(); return profile_report();
+        or return main() without --profile.
+    */
+    private void generateStart() {
+        if (profile != null) generateCounters();
+        for (int i = 0; i < memoTables; i++) {
+            emit(NanoMorphoInstr.Op.MAKEVAL, "16");
+            emit(NanoMorphoInstr.Op.MAKEVALP, "\"0.75\"");
+            emit(NanoMorphoInstr.Op.CALLCLASSMETHOD1, "java.lang.Float valueOf java.lang.String");
+            emit(NanoMorphoInstr.Op.MAKEVALP, "true");
+            emit(NanoMorphoInstr.Op.NEW3, MAP + " int float boolean");
+            emit(NanoMorphoInstr.Op.STOREGLOBALVAR, NanoMorphoMemo.GLOBAL + i);
+        }
+        if (profile == null) {
+            emitCall(NanoMorphoInstr.Op.CALLR, "main", 0);
+            return;
         }
+        emitCall(NanoMorphoInstr.Op.CALL, "main", 0);
+        emitCall(NanoMorphoInstr.Op.CALLR, PROFILE_REPORT, 0);
     }
 
-    public void generateExpressionP(Object[] expr) {
-        String code = (String) expr[0];
-        switch(code) {
-            case "FETCH":
-                emit("(FetchP %d)", expr[1]);
-                return;
-            case "STORE":
-                generateExpression((Object []) expr[2]);
-                emit("(StoreP %d)", expr[1]);
-                return;
-            case "LITERAL":
-                emit("(MakeValP %s)", (String) expr[1]);
-                return;
-            case "IF":
-                int labElse = newLabel();
-                int labEnd = newLabel();
-                generateJump((Object[]) expr[1], 0, labElse);
-                generateExpression((Object[]) expr[2]);
-                emit("(Go %s)", labEnd);
-                emit("_%d:", labElse);
-                if ((Object) expr[3] != null) {
-                    generateExpression((Object[]) expr[3]);
-                }
-                emit("_%d:", labEnd);
-                return;
-            case "CALL":
-                Object[] args = (Object[]) expr[2];
-                for(int i = 0; i < args.length; i++) 
-                    generateExpressionP((Object[]) args[i]);
-                if (args.length == 0) emit("(Push)");
-                emit("(Call #\"%s[f%d]\" %d)", expr[1], args.length, args.length);
-                return;
+    private void generateCounters() {
+        String n = Integer.toString(profile.size());
+        emit(NanoMorphoInstr.Op.MAKEVAL, n);
+        emitCall(NanoMorphoInstr.Op.CALL, "makeArray", 1);
+        emit(NanoMorphoInstr.Op.STOREGLOBALVAR, NanoMorphoProfile.COUNTS);
+        emit(NanoMorphoInstr.Op.MAKEVAL, "0");
+        emit(NanoMorphoInstr.Op.PUSH);
+        int bodyLabel = newLabel();
+        int testLabel = newLabel();
+        emitJump(NanoMorphoInstr.Op.GO, testLabel);
+        emitLabel(bodyLabel);
+        emit(NanoMorphoInstr.Op.FETCHGLOBALVAR, NanoMorphoProfile.COUNTS);
+        emit(NanoMorphoInstr.Op.FETCHP, 0);
+        emit(NanoMorphoInstr.Op.MAKEVALP, "0");
+        emitCall(NanoMorphoInstr.Op.CALL, "long", 1);
+        emitCall(NanoMorphoInstr.Op.CALL, "arraySet", 3);
+        emit(NanoMorphoInstr.Op.FETCH, 0);
+        emitCall(NanoMorphoInstr.Op.CALL, "inc", 1);
+        emit(NanoMorphoInstr.Op.STORE, 0);
+        emitLabel(testLabel);
+        emit(NanoMorphoInstr.Op.FETCH, 0);
+        emit(NanoMorphoInstr.Op.MAKEVALP, n);
+        emitCall(NanoMorphoInstr.Op.CALL, "<", 2);
+        emitJump(NanoMorphoInstr.Op.GOTRUE, bodyLabel);
+    }
+
+    /*
+        profile_count(i), the longs do not wrap:
+            return arraySet(counts, i, inc(arrayGet(counts, i)));
+    */
+    private void generateProfileCount() {
+        emit(NanoMorphoInstr.Op.FETCHGLOBALVAR, NanoMorphoProfile.COUNTS);
+        emit(NanoMorphoInstr.Op.FETCHP, 0);
+        emit(NanoMorphoInstr.Op.PUSH);
+        emit(NanoMorphoInstr.Op.FETCHGLOBALVAR, NanoMorphoProfile.COUNTS);
+        emit(NanoMorphoInstr.Op.FETCHP, 0);
+        emitCall(NanoMorphoInstr.Op.CALL, "arrayGet", 2);
+        emitCall(NanoMorphoInstr.Op.CALL, "inc", 1);
+        emitCall(NanoMorphoInstr.Op.CALLR, "arraySet", 3);
+    }
+
+    /*
+        profile_report(), with the sums of a row in slots 0 and 1, writes
+        each of NanoMorphoProfile.rows with System.err.println, the rows
+        with counters through format:
+            calls = ...; loops = ...;
+            if (calls + loops > 0) err.println(format("...", calls, loops));
+    */
+    private void generateProfileReport() {
+        emit(NanoMorphoInstr.Op.MAKEVAL, "null");
+        emit(NanoMorphoInstr.Op.PUSH);
+        emit(NanoMorphoInstr.Op.PUSH);
+        for (NanoMorphoProfile.Row row : profile.rows(source)) {
+            if (row.calls == null) {
+                emit(NanoMorphoInstr.Op.GETCLASSFIELD, "java.lang.System err");
+                emit(NanoMorphoInstr.Op.MAKEVALP, quote(row.text));
+                emit(NanoMorphoInstr.Op.CALLINSTANCEMETHOD1, "java.io.PrintStream println java.lang.String");
+                continue;
+            }
+            generateSum(row.calls);
+            emit(NanoMorphoInstr.Op.STORE, 0);
+            generateSum(row.loops);
+            emit(NanoMorphoInstr.Op.STORE, 1);
+            int skip = 0;
+            if (row.optional) {
+                skip = newLabel();
+                emit(NanoMorphoInstr.Op.FETCH, 0);
+                emit(NanoMorphoInstr.Op.FETCHP, 1);
+                emitCall(NanoMorphoInstr.Op.CALL, "+", 2);
+                emit(NanoMorphoInstr.Op.MAKEVALP, "0");
+                emitCall(NanoMorphoInstr.Op.CALL, ">", 2);
+                emitJump(NanoMorphoInstr.Op.GOFALSE, skip);
+            }
+            emit(NanoMorphoInstr.Op.GETCLASSFIELD, "java.lang.System err");
+            emit(NanoMorphoInstr.Op.MAKEVALP, quote(row.text));
+            emit(NanoMorphoInstr.Op.FETCHP, 0);
+            emit(NanoMorphoInstr.Op.FETCHP, 1);
+            emitCall(NanoMorphoInstr.Op.CALL, "format", 3);
+            emit(NanoMorphoInstr.Op.CALLINSTANCEMETHOD1, "java.io.PrintStream println java.lang.String");
+            if (skip != 0) emitLabel(skip);
         }
+        emit(NanoMorphoInstr.Op.RETURN);
     }
 
-    public static void main(String[] args) {
-        NanoMorphoCompiler compiler = new NanoMorphoCompiler();
+    // Sum of the counters numbered @points into the accumulator
+    private void generateSum(int[] points) {
+        if (points.length == 0) emit(NanoMorphoInstr.Op.MAKEVAL, "0");
+        for (int i = 0; i < points.length; i++) {
+            if (i > 0) emit(NanoMorphoInstr.Op.PUSH);
+            emit(NanoMorphoInstr.Op.FETCHGLOBALVAR, NanoMorphoProfile.COUNTS);
+            emit(NanoMorphoInstr.Op.MAKEVALP, Integer.toString(points[i]));
+            emitCall(NanoMorphoInstr.Op.CALL, "arrayGet", 2);
+            if (i > 0) emitCall(NanoMorphoInstr.Op.CALL, "+", 2);
+        }
+    }
+
+    // Class of the result caches of --memo
+    private static final String MAP = "java.util.LinkedHashMap";
+
+    /**
+     * With --memo, picks the functions of @program to give a result cache,
+     * see NanoMorphoPurity.memoize. Must come before they are generated;
+     * generateFunction then writes a picked function f as f$body, the
+     * function as it is written, and f, which looks its arguments up in
+     * the cache first, see generateMemo. Calls, recursive ones included,
+     * go to f; self tail calls stay loops in f$body.
+     */
+    public void memoize(NanoMorphoAST.Function[] program) {
+        if (memo == null) return;
+        // Pairs made by a memoized function would be shared, see NanoMorphoMemo
+        boolean[] picked = NanoMorphoPurity.memoize(program, source,
+            call -> NanoMorphoRuntime.BUILTINS.containsKey(call) && !call.equals(":[f2]"), memo.choices());
+        for (int i = 0; i < program.length; i++)
+            if (picked[i]) memoized.add(program[i].name + "[f" + program[i].argCount + "]");
+    }
+
+    /** True if memoize picked @f */
+    public boolean isMemoized(NanoMorphoAST.Function f) {
+        return memoized.contains(f.name + "[f" + f.argCount + "]");
+    }
+
+    /** Name of the function with the code of the memoized function @name */
+    public static String memoBody(String name) {
+        return name + "$body";
+    }
+
+    /**
+     * Generates the function f of @f, a function memoize picked, with its
+     * cache in the global variable NanoMorphoMemo.GLOBAL followed by a
+     * number, the key in the slot after the arguments and the result in
+     * the one after that:
+     *   key = x, or a java.util.ArrayList of x, y, ... for more arguments;
+     *   result = cache.get(key);
+     *   if (result || cache.containsKey(key)) return result;
+     *   result = f$body(x, y, ...); cache.put(key, result);
+     *   if (cache.size() > n) cache.remove(cache.keySet().iterator().next());
+     *   return result;
+     * The cache is a LinkedHashMap in access order, so the key removed is
+     * the one least recently used, as in NanoMorphoMemo.Table, and keys
+     * compare as there: numbers by type and value, pairs by identity.
+     * Labels are numbered from 1.
+     */
+    public List<NanoMorphoInstr> generateMemo(NanoMorphoAST.Function f) {
+        int n = f.argCount;
+        String cache = NanoMorphoMemo.GLOBAL + memo.table(f.name + "[f" + n + "]");
+        memoTables++;
+        code = new ArrayList<>();
+        labelCount = 0;
+        int hit = newLabel();
+        emit(NanoMorphoInstr.Op.MAKEVAL, "null");
+        emit(NanoMorphoInstr.Op.PUSH);
+        emit(NanoMorphoInstr.Op.PUSH);
+        if (n == 1) {
+            emit(NanoMorphoInstr.Op.FETCH, 0);
+            emit(NanoMorphoInstr.Op.STORE, n);
+        } else {
+            emit(NanoMorphoInstr.Op.NEW0, "java.util.ArrayList");
+            emit(NanoMorphoInstr.Op.STORE, n);
+            for (int i = 0; i < n; i++) {
+                if (i > 0) emit(NanoMorphoInstr.Op.FETCH, n);
+                emit(NanoMorphoInstr.Op.FETCHP, i);
+                emit(NanoMorphoInstr.Op.CALLINSTANCEMETHOD1, "java.util.ArrayList add java.lang.Object");
+            }
+        }
+        emit(NanoMorphoInstr.Op.FETCHGLOBALVAR, cache);
+        emit(NanoMorphoInstr.Op.FETCHP, n);
+        emit(NanoMorphoInstr.Op.CALLINSTANCEMETHOD1, MAP + " get java.lang.Object");
+        emit(NanoMorphoInstr.Op.STORE, n + 1);
+        emitJump(NanoMorphoInstr.Op.GOTRUE, hit);
+        emit(NanoMorphoInstr.Op.FETCHGLOBALVAR, cache);
+        emit(NanoMorphoInstr.Op.FETCHP, n);
+        emit(NanoMorphoInstr.Op.CALLINSTANCEMETHOD1, MAP + " containsKey java.lang.Object");
+        emitJump(NanoMorphoInstr.Op.GOTRUE, hit);
+        for (int i = 0; i < n; i++)
+            emit(i == 0 ? NanoMorphoInstr.Op.FETCH : NanoMorphoInstr.Op.FETCHP, i);
+        emitCall(NanoMorphoInstr.Op.CALL, memoBody(f.name), n);
+        emit(NanoMorphoInstr.Op.STORE, n + 1);
+        emit(NanoMorphoInstr.Op.FETCHGLOBALVAR, cache);
+        emit(NanoMorphoInstr.Op.FETCHP, n);
+        emit(NanoMorphoInstr.Op.FETCHP, n + 1);
+        emit(NanoMorphoInstr.Op.CALLINSTANCEMETHOD2, MAP + " put java.lang.Object java.lang.Object");
+        emit(NanoMorphoInstr.Op.FETCHGLOBALVAR, cache);
+        emit(NanoMorphoInstr.Op.CALLINSTANCEMETHOD0, MAP + " size");
+        emit(NanoMorphoInstr.Op.MAKEVALP, Integer.toString(memo.size()));
+        emitCall(NanoMorphoInstr.Op.CALL, ">", 2);
+        emitJump(NanoMorphoInstr.Op.GOFALSE, hit);
+        emit(NanoMorphoInstr.Op.FETCHGLOBALVAR, cache);
+        emit(NanoMorphoInstr.Op.PUSH);
+        emit(NanoMorphoInstr.Op.FETCHGLOBALVAR, cache);
+        emit(NanoMorphoInstr.Op.CALLINSTANCEMETHOD0, MAP + " keySet");
+        emit(NanoMorphoInstr.Op.CALLINSTANCEMETHOD0, "java.util.Set iterator");
+        emit(NanoMorphoInstr.Op.CALLINSTANCEMETHOD0, "java.util.Iterator next");
+        emit(NanoMorphoInstr.Op.CALLINSTANCEMETHOD1, MAP + " remove java.lang.Object");
+        emitLabel(hit);
+        emit(NanoMorphoInstr.Op.FETCHR, n + 1);
+        List<NanoMorphoInstr> res = code;
+        code = null;
+        return res;
+    }
+
+    // Morpho string literal for @text
+    private static String quote(String text) {
+        return '"' + text.replace("\\", "\\\\").replace("\"", "\\\"").replace("\t", "\\t") + '"';
+    }
+
+    private class ExpressionGenerator implements NanoMorphoAST.Visitor<Void> {
+        public Void visitFetch(NanoMorphoAST.Fetch e) {
+            emit(NanoMorphoInstr.Op.FETCH, e.pos);
+            return null;
+        }
+
+        public Void visitStore(NanoMorphoAST.Store e) {
+            generateExpression(e.value);
+            emit(NanoMorphoInstr.Op.STORE, e.pos);
+            return null;
+        }
+
+        public Void visitLiteral(NanoMorphoAST.Literal e) {
+            emit(NanoMorphoInstr.Op.MAKEVAL, e.value);
+            return null;
+        }
+
+        public Void visitIf(NanoMorphoAST.If e) {
+            generateIf(e, true);
+            return null;
+        }
+
+        public Void visitWhile(NanoMorphoAST.While e) {
+            generateWhile(e, true);
+            return null;
+        }
+
+        public Void visitBody(NanoMorphoAST.Body e) {
+            int last = e.exprs.length - 1;
+            for (int i = 0; i < last; i++) {
+                generateStatement(e.exprs[i]);
+            }
+            if (last >= 0) generateExpression(e.exprs[last]);
+            return null;
+        }
+
+        public Void visitCall(NanoMorphoAST.Call e) {
+            count(NanoMorphoProfile.Kind.CALL, e.line);
+            generateArgs(e.args);
+            emitCall(NanoMorphoInstr.Op.CALL, e.name, e.args.length);
+            return null;
+        }
+
+        public Void visitReturn(NanoMorphoAST.Return e) {
+            generateExpressionR(e.value);
+            return null;
+        }
+
+        public Void visitAnd(NanoMorphoAST.And e) {
+            generateLogic(e);
+            return null;
+        }
+
+        public Void visitOr(NanoMorphoAST.Or e) {
+            generateLogic(e);
+            return null;
+        }
+
+        public Void visitNot(NanoMorphoAST.Not e) {
+            generateExpression(e.value);
+            emit(NanoMorphoInstr.Op.NOT);
+            return null;
+        }
+    }
+
+    private class ReturnGenerator extends ExpressionGenerator {
+        public Void visitFetch(NanoMorphoAST.Fetch e) {
+            emit(NanoMorphoInstr.Op.FETCHR, e.pos);
+            return null;
+        }
+
+        public Void visitStore(NanoMorphoAST.Store e) {
+            generateExpression(e.value);
+            emit(NanoMorphoInstr.Op.STORER, e.pos);
+            return null;
+        }
+
+        public Void visitLiteral(NanoMorphoAST.Literal e) {
+            emit(NanoMorphoInstr.Op.MAKEVALR, e.value);
+            return null;
+        }
+
+        public Void visitIf(NanoMorphoAST.If e) {
+            int labElse = newLabel();
+            generateCondition(e.cond, 0, labElse, e.elsePart == null);
+            generateExpressionR(e.thenPart);
+            emitLabel(labElse);
+            if (e.elsePart != null) {
+                generateExpressionR(e.elsePart);
+            } else {
+                emit(NanoMorphoInstr.Op.RETURN);
+            }
+            return null;
+        }
+
+        public Void visitCall(NanoMorphoAST.Call e) {
+            count(NanoMorphoProfile.Kind.CALL, e.line);
+            if (isSelfTailCall(e)) {
+                generateSelfTailCall(e);
+                return null;
+            }
+            generateArgs(e.args);
+            emitCall(NanoMorphoInstr.Op.CALLR, e.name, e.args.length);
+            return null;
+        }
+
+        public Void visitWhile(NanoMorphoAST.While e) {
+            super.visitWhile(e);
+            emit(NanoMorphoInstr.Op.RETURN);
+            return null;
+        }
+
+        // The last expression of the body is in tail position too, so a
+        // self call there, e.g. in an else part, is a jump as well
+        public Void visitBody(NanoMorphoAST.Body e) {
+            int last = e.exprs.length - 1;
+            for (int i = 0; i < last; i++) {
+                generateStatement(e.exprs[i]);
+            }
+            if (last >= 0) generateExpressionR(e.exprs[last]);
+            else emit(NanoMorphoInstr.Op.RETURN);
+            return null;
+        }
+
+        public Void visitAnd(NanoMorphoAST.And e) {
+            super.visitAnd(e);
+            emit(NanoMorphoInstr.Op.RETURN);
+            return null;
+        }
+
+        public Void visitOr(NanoMorphoAST.Or e) {
+            super.visitOr(e);
+            emit(NanoMorphoInstr.Op.RETURN);
+            return null;
+        }
+
+        public Void visitNot(NanoMorphoAST.Not e) {
+            super.visitNot(e);
+            emit(NanoMorphoInstr.Op.RETURN);
+            return null;
+        }
+    }
+
+    // Values are not kept, so conditions can always be jumps
+    private class StatementGenerator extends ExpressionGenerator {
+        public Void visitIf(NanoMorphoAST.If e) {
+            generateIf(e, false);
+            return null;
+        }
+
+        public Void visitWhile(NanoMorphoAST.While e) {
+            generateWhile(e, false);
+            return null;
+        }
+
+        public Void visitBody(NanoMorphoAST.Body e) {
+            for (int i = 0; i < e.exprs.length; i++) {
+                generateStatement(e.exprs[i]);
+            }
+            return null;
+        }
+    }
+
+    private class PushGenerator extends ExpressionGenerator {
+        public Void visitFetch(NanoMorphoAST.Fetch e) {
+            emit(NanoMorphoInstr.Op.FETCHP, e.pos);
+            return null;
+        }
+
+        public Void visitStore(NanoMorphoAST.Store e) {
+            emit(NanoMorphoInstr.Op.PUSH);
+            super.visitStore(e);
+            return null;
+        }
+
+        public Void visitLiteral(NanoMorphoAST.Literal e) {
+            emit(NanoMorphoInstr.Op.MAKEVALP, e.value);
+            return null;
+        }
+
+        public Void visitIf(NanoMorphoAST.If e) {
+            emit(NanoMorphoInstr.Op.PUSH);
+            super.visitIf(e);
+            return null;
+        }
+
+        public Void visitWhile(NanoMorphoAST.While e) {
+            emit(NanoMorphoInstr.Op.PUSH);
+            super.visitWhile(e);
+            return null;
+        }
+
+        public Void visitBody(NanoMorphoAST.Body e) {
+            emit(NanoMorphoInstr.Op.PUSH);
+            super.visitBody(e);
+            return null;
+        }
+
+        public Void visitCall(NanoMorphoAST.Call e) {
+            if (profile != null) {
+                // Counting takes the accumulator, so it is pushed first
+                emit(NanoMorphoInstr.Op.PUSH);
+                count(NanoMorphoProfile.Kind.CALL, e.line);
+                generateArgs(e.args);
+                emitCall(NanoMorphoInstr.Op.CALL, e.name, e.args.length);
+                return null;
+            }
+            if (e.args.length == 0) emit(NanoMorphoInstr.Op.PUSH);
+            generateArgs(e.args, true);
+            emitCall(NanoMorphoInstr.Op.CALL, e.name, e.args.length);
+            return null;
+        }
+
+        public Void visitAnd(NanoMorphoAST.And e) {
+            emit(NanoMorphoInstr.Op.PUSH);
+            super.visitAnd(e);
+            return null;
+        }
+
+        public Void visitOr(NanoMorphoAST.Or e) {
+            emit(NanoMorphoInstr.Op.PUSH);
+            super.visitOr(e);
+            return null;
+        }
+
+        public Void visitNot(NanoMorphoAST.Not e) {
+            emit(NanoMorphoInstr.Op.PUSH);
+            super.visitNot(e);
+            return null;
+        }
+    }
+
+    /** Settings for one compilation, shared by all the command line drivers */
+    public static class Options {
+        /** -O: fold constants and simplify before code generation */
+        public boolean optimize = false;
+        /** -O: compile self calls in tail position as loops */
+        public boolean tailCalls = false;
+        /** Peephole engine, set by -O or -Xpeephole=rule,rule,... */
+        public NanoMorphoPeephole peephole = null;
+        /** --peephole-stats: print what the peephole rules removed */
+        public boolean peepholeStats = false;
+        /** Dead code pass, set by -O */
+        public NanoMorphoDeadCode deadCode = null;
+        /** --dead-code-report: print what the dead code pass removed */
+        public boolean deadCodeReport = false;
+        /** --prune: drop the functions main cannot reach, see NanoMorphoCallGraph */
+        public NanoMorphoCallGraph.Pruner prune = null;
+        /** --prune-report: print the call graphs and what --prune dropped */
+        public boolean pruneReport = false;
+        /** --cache=DIR: reuse the code of unchanged functions, kept in DIR */
+        public NanoMorphoCache cache = null;
+        /** --cache-stats: print cache hits and misses */
+        public boolean cacheStats = false;
+        /** --ast-cache: keep the parsed tree of every source next to it, see NanoMorphoASTCache */
+        public NanoMorphoASTCache astCache = null;
+        /** --stats: print phase times and counts as JSON, see NanoMorphoStats */
+        public boolean stats = false;
+        /** --stream: write each function as soon as it is parsed, see compileStreaming */
+        public boolean stream = false;
+        /** --profile: count calls and loop iterations, see NanoMorphoProfile */
+        public boolean profile = false;
+        /** --memo or --memo=N: results kept per memoized function, 0 for none, see NanoMorphoMemo */
+        public int memo = 0;
+        /** --memo-stats: print what was memoized, and the hit rates on NanoMorphoJvm */
+        public boolean memoStats = false;
+        /** With --memo-stats, the caches NanoMorphoCompiler planned, for what it memoized */
+        public final List<NanoMorphoMemo> memos = new ArrayList<>();
+
+        /** Applies the flag @arg, returns false if it is not a compiler flag or its value is not valid */
+        public boolean set(String arg) {
+            switch (arg) {
+                case "-O":
+                    optimize = true;
+                    tailCalls = true;
+                    if (peephole == null) peephole = new NanoMorphoPeephole();
+                    if (deadCode == null) deadCode = new NanoMorphoDeadCode();
+                    return true;
+                case "--peephole-stats":
+                    peepholeStats = true;
+                    return true;
+                case "--dead-code-report":
+                    deadCodeReport = true;
+                    return true;
+                case "--prune":
+                    if (prune == null) prune = new NanoMorphoCallGraph.Pruner();
+                    return true;
+                case "--prune-report":
+                    pruneReport = true;
+                    return true;
+                case "--cache-stats":
+                    cacheStats = true;
+                    return true;
+                case "--stats":
+                    stats = true;
+                    return true;
+                case "--stream":
+                    stream = true;
+                    return true;
+                case "--profile":
+                    profile = true;
+                    return true;
+                case "--memo":
+                    memo = NanoMorphoMemo.DEFAULT_SIZE;
+                    return true;
+                case "--memo-stats":
+                    memoStats = true;
+                    return true;
+                case "--ast-cache":
+                    if (astCache == null) astCache = new NanoMorphoASTCache();
+                    return true;
+                default:
+                    if (arg.startsWith("-Xpeephole=")) {
+                        peephole = NanoMorphoPeephole.withRules(arg.substring("-Xpeephole=".length()));
+                        return true;
+                    }
+                    if (arg.startsWith("--memo=")) {
+                        String size = arg.substring("--memo=".length());
+                        if (!size.matches("[0-9]{1,9}")) return false;
+                        memo = Integer.parseInt(size);
+                        return true;
+                    }
+                    if (arg.startsWith("--cache=")) {
+                        cache = new NanoMorphoCache(Paths.get(arg.substring("--cache=".length())));
+                        return true;
+                    }
+                    return false;
+            }
+        }
+    }
+
+    /** Module name for a source file: test/testFIBO.s -> testFIBO */
+    public static String moduleName(String fileName) {
+        int start = fileName.lastIndexOf('/') + 1;
+        int end = fileName.lastIndexOf('.');
+        if (end < start) end = fileName.length();
+        return fileName.substring(start, end);
+    }
+
+    /**
+     * Parses and compiles the source file @fileName into @out using a
+     * fresh parser and compiler, so no state is shared between calls.
+     * With a cache in @options only changed functions are compiled.
+     */
+    public static void compile(String fileName, NanoMorphoEmitter out, Options options) throws IOException {
+        compile(fileName, out, options, NanoMorphoStats.create(false));
+    }
+
+    /**
+     * As compile(@fileName, @out, @options), measuring the compile into
+     * @stats unless it is null.
+     */
+    public static void compile(String fileName, NanoMorphoEmitter out, Options options, NanoMorphoStats stats) throws IOException {
+        if (stats != null) stats.begin(moduleName(fileName));
+        if (options.cache != null && !options.profile && options.memo == 0) {
+            // The counters and caches are numbered across the program, so
+            // with --profile or --memo no function's code stands alone
+            options.cache.compile(fileName, out, options, stats);
+        } else if (options.stream && options.prune == null && options.memo == 0) {
+            // --prune and --memo need every function before the first is written
+            compileStreaming(fileName, out, options, stats);
+        } else {
+            NanoMorphoAST.Function[] program = parse(fileName, options, NanoMorphoBasis::exports, false, stats);
+            NanoMorphoCompiler compiler = create(out, options, fileName);
+            compiler.setStats(stats);
+            compiler.generateProgram(moduleName(fileName), program);
+        }
+        if (stats != null) stats.end();
+    }
+
+    /**
+     * Parses @fileName with a fresh parser and runs the tree passes selected
+     * by @options. Calls of names the program defines must match one of its
+     * arities or a function of BASIS, see NanoMorphoBasis; other names are
+     * left to the linker of morpho.jar.
+     */
+    public static NanoMorphoAST.Function[] parse(String fileName, Options options) throws IOException {
+        return parse(fileName, options, NanoMorphoBasis::exports, false, null);
+    }
+
+    /**
+     * As parse(@fileName, @options), but every call must be of a function
+     * the program defines or one for which @external holds, e.g. "writeln[f1]".
+     */
+    public static NanoMorphoAST.Function[] parse(String fileName, Options options, Predicate<String> external) throws IOException {
+        return parse(fileName, options, external, true, null);
+    }
+
+    /*
+        Compiles @fileName a function at a time: each is folded, compiled and
+        written as soon as the parser has it, and then dropped, so memory
+        holds the source and the largest function instead of the whole tree.
+        Calls can only be checked once every function has been seen, so on
+        an error the functions before it have already been written to @out.
+    */
+    private static void compileStreaming(String fileName, NanoMorphoEmitter out, Options options,
+            NanoMorphoStats stats) throws IOException {
+        NanoMorphoParser parser = new NanoMorphoParser();
+        parser.setStats(stats);
+        NanoMorphoCompiler compiler = create(out, options, fileName);
+        compiler.setStats(stats);
+        NanoMorphoConstantFolder folder = options.optimize ? new NanoMorphoConstantFolder() : null;
+        compiler.startProgram(moduleName(fileName));
+        parser.parse(fileName, f -> {
+            if (folder != null) {
+                long t0 = System.nanoTime();
+                f = folder.rewrite(f);
+                if (options.deadCode != null) f = options.deadCode.eliminate(f);
+                if (options.optimize) f = NanoMorphoSlots.allocate(f);
+                if (stats != null) stats.add(NanoMorphoStats.Phase.FOLD, System.nanoTime() - t0);
+            }
+            if (stats != null) {
+                stats.functions++;
+                stats.count(new NanoMorphoAST.Function[] {f});
+            }
+            compiler.generateFunction(f);
+        });
+        long t0 = System.nanoTime();
+        parser.getSymbols().checkArities(NanoMorphoBasis::exports);
+        if (stats != null) stats.add(NanoMorphoStats.Phase.CHECK, System.nanoTime() - t0);
+        compiler.finishProgram();
+    }
+
+    // Checks all calls if @all, else only those of names the program defines
+    private static NanoMorphoAST.Function[] parse(String fileName, Options options, Predicate<String> external,
+            boolean all, NanoMorphoStats stats) throws IOException {
         NanoMorphoParser parser = new NanoMorphoParser();
-        String name = args[0].substring(args[0].lastIndexOf("/")+1, args[0].lastIndexOf("."));
+        parser.setStats(stats);
+        NanoMorphoAST.Function[] program;
+        NanoMorphoSymbols symbols;
+        if (options.astCache != null) {
+            symbols = new NanoMorphoSymbols();
+            program = options.astCache.parse(fileName, parser, symbols, stats);
+        } else {
+            program = parser.parse(fileName);
+            symbols = parser.getSymbols();
+        }
+        long t0 = System.nanoTime();
+        if (all) symbols.checkCalls(external);
+        else symbols.checkArities(external);
+        long t1 = System.nanoTime();
+        if (options.prune != null) program = options.prune.prune(fileName, program);
+        if (options.optimize) program = new NanoMorphoConstantFolder().fold(program);
+        if (options.deadCode != null) program = options.deadCode.eliminate(program);
+        if (options.optimize) program = NanoMorphoSlots.allocate(program);
+        if (stats != null) {
+            stats.add(NanoMorphoStats.Phase.CHECK, t1 - t0);
+            stats.add(NanoMorphoStats.Phase.FOLD, System.nanoTime() - t1);
+            stats.functions += program.length;
+            stats.count(program);
+        }
+        return program;
+    }
+
+    /** Fresh compiler writing to @out, configured by @options */
+    public static NanoMorphoCompiler create(NanoMorphoEmitter out, Options options) {
+        NanoMorphoCompiler compiler = new NanoMorphoCompiler(out);
+        if (options.peephole != null) compiler.setPeephole(options.peephole);
+        compiler.setTailCalls(options.tailCalls);
+        return compiler;
+    }
+
+    /**
+     * As create(@out, @options), with the counters of --profile and the
+     * caches of --memo for @fileName if @options has them. With
+     * --memo-stats the caches are added to options.memos.
+     */
+    public static NanoMorphoCompiler create(NanoMorphoEmitter out, Options options, String fileName) {
+        NanoMorphoCompiler compiler = create(out, options);
+        if (!options.profile && options.memo == 0) return compiler;
+        String sourceFile = Paths.get(fileName).getFileName().toString();
+        compiler.setSource(readLines(fileName));
+        if (options.profile) compiler.setProfile(new NanoMorphoProfile(sourceFile));
+        if (options.memo > 0) {
+            NanoMorphoMemo memo = new NanoMorphoMemo(sourceFile, options.memo);
+            compiler.setMemo(memo);
+            if (options.memoStats) options.memos.add(memo);
+        }
+        return compiler;
+    }
+
+    /** The lines of @fileName, or null if it cannot be read */
+    public static List<String> readLines(String fileName) {
+        try {
+            return Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static void compile(String fileName, NanoMorphoEmitter out) throws IOException {
+        compile(fileName, out, new Options());
+    }
 
+    /** Says @arg is not an option any driver knows and exits */
+    public static void unknownOption(String arg) {
+        System.err.println("Unknown option: " + arg);
+        System.exit(1);
+    }
+
+    /**
+     * Usage: java NanoMorphoCompiler [-O] [-Xpeephole=rules] [--peephole-stats]
+     *            [--dead-code-report] [--prune] [--prune-report] [--cache=DIR] [--ast-cache] [--cache-stats] [--stats] [--stream] [--profile] [--memo[=N]] [--memo-stats] [-o out.masm] file.s
+     * Without -o the assembly is written to standard output. --stats
+     * prints NanoMorphoStats.toJson to standard error. The output file
+     * is removed when the source has errors. With --profile the program
+     * writes how often each function was called and each loop ran to
+     * standard error when main returns, see NanoMorphoProfile. --memo
+     * gives functions a cache of their results, see memoize; the program
+     * does not count its hits, so --memo-stats only prints what was
+     * memoized.
+     */
+    public static void main(String[] args) {
+        Options options = new Options();
+        String input = null;
+        String output = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o") && i + 1 < args.length) output = args[++i];
+            else if (options.set(args[i])) continue;
+            else if (args[i].startsWith("--")) unknownOption(args[i]);
+            else input = args[i];
+        }
+        if (input == null) {
+            System.err.println("Usage: java NanoMorphoCompiler [-O] [-Xpeephole=rules] [--peephole-stats] [--dead-code-report] [--prune] [--prune-report] [--cache=DIR] [--ast-cache] [--cache-stats] [--stats] [--stream] [--profile] [--memo[=N]] [--memo-stats] [-o out.masm] file.s");
+            System.exit(1);
+        }
+
+        NanoMorphoStats stats = NanoMorphoStats.create(options.stats);
         try {
-            Object[] program = parser.parse(args[0]);
-            compiler.generateProgram(name, program);
+            if (output == null) {
+                compile(input, NanoMorphoEmitter.toWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)), options, stats);
+            } else {
+                try (NanoMorphoEmitter out = NanoMorphoEmitter.toFile(Paths.get(output))) {
+                    compile(input, out, options, stats);
+                }
+            }
+            if (options.stats) System.err.println(stats.toJson());
+            if (options.peepholeStats && options.peephole != null)
+                System.err.println(options.peephole.statsReport());
+            if (options.deadCodeReport && options.deadCode != null)
+                System.err.println(options.deadCode.report());
+            if (options.pruneReport && options.prune != null)
+                System.err.println(options.prune.report());
+            if (options.cacheStats && options.cache != null)
+                System.err.println(options.cache.statsReport());
+            if (options.cacheStats && options.astCache != null)
+                System.err.println(options.astCache.statsReport());
+            for (NanoMorphoMemo memo : options.memos)
+                System.err.println(memo.choicesReport());
+        } catch (NanoMorphoParser.SyntaxError e) {
+            System.err.println(e.getMessage());
+            // Not a program, even if some functions were written (--stream)
+            if (output != null) Paths.get(output).toFile().delete();
+            System.exit(1);
+        } catch (StackOverflowError e) {
+            // Code generation loops over long chains, the other passes recurse
+            System.err.println("Error: nested too deeply to compile");
+            if (output != null) Paths.get(output).toFile().delete();
+            System.exit(1);
         } catch (FileNotFoundException e) {
             System.err.println("File not found");
-        } catch (IOException e) {
+            System.exit(1);
+        } catch (IOException | UncheckedIOException e) {
             System.err.println("Error reading file");
+            System.exit(1);
         }
     }
 }
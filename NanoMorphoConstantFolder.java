@@ -0,0 +1,248 @@
+/**
+ * Constant folding and algebraic simplification on the syntax tree,
+ * run between NanoMorphoParser and NanoMorphoCompiler.
+ *
+ * Folds operator calls whose operands are literals, simplifies the
+ * identities x-0, x*1, 1*x and x/1 where x is a number, x+0 and 0+x where
+ * x is an int, since -0.0+0 is 0.0, and !!x where only the truth of x
+ * matters, and resolves if/while with literal conditions. An operand that
+ * is not known to be a number keeps its operation, which may be the error
+ * the program reports. Integer arithmetic follows
+ * the Morpho VM, which computes on 32 bit ints with wraparound. Division
+ * and remainder by zero are left for the VM to report at run time.
+ * Floating point literals are never folded.
+ */
+public class NanoMorphoConstantFolder extends NanoMorphoAST.Rewriter {
+
+    private int folded = 0;
+
+    /** Number of nodes folded or simplified so far */
+    public int getFolded() {
+        return folded;
+    }
+
+    public NanoMorphoAST.Function[] fold(NanoMorphoAST.Function[] program) {
+        NanoMorphoAST.Function[] res = new NanoMorphoAST.Function[program.length];
+        for (int i = 0; i < program.length; i++)
+            res[i] = rewrite(program[i]);
+        return res;
+    }
+
+    private static NanoMorphoAST.Literal bool(boolean b) {
+        return new NanoMorphoAST.Literal(b ? "true" : "false");
+    }
+
+    private static boolean isLiteral(NanoMorphoAST.Expr e) {
+        return e instanceof NanoMorphoAST.Literal;
+    }
+
+    // Value of an int literal, or null if @e is not one that fits in an int
+    private static Integer intValue(NanoMorphoAST.Expr e) {
+        if (!isLiteral(e)) return null;
+        String v = ((NanoMorphoAST.Literal) e).value;
+        int start = v.startsWith("-") ? 1 : 0;
+        if (v.length() == start || v.length() - start > 10) return null;
+        for (int i = start; i < v.length(); i++) {
+            if (v.charAt(i) < '0' || v.charAt(i) > '9') return null;
+        }
+        try {
+            return Integer.parseInt(v);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private static boolean isInt(NanoMorphoAST.Expr e, int n) {
+        Integer v = intValue(e);
+        return v != null && v == n;
+    }
+
+    // Comparisons and ! always produce true or false
+    private static boolean isBoolean(NanoMorphoAST.Expr e) {
+        if (e instanceof NanoMorphoAST.Not) return true;
+        if (e instanceof NanoMorphoAST.Literal) {
+            String v = ((NanoMorphoAST.Literal) e).value;
+            return v.equals("true") || v.equals("false");
+        }
+        if (e instanceof NanoMorphoAST.Call) {
+            NanoMorphoAST.Call c = (NanoMorphoAST.Call) e;
+            if (c.args.length != 2) return false;
+            switch (c.name) {
+                case "==": case "!=": case "<": case "<=": case ">": case ">=":
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    // Literals, arithmetic and negation that give numbers or fail. Calls
+    // by name, such as inc, are not counted, as the program may define
+    // its own, and streamed functions are folded before the rest is read
+    private static boolean isNumber(NanoMorphoAST.Expr e) {
+        if (e instanceof NanoMorphoAST.Literal) {
+            String v = ((NanoMorphoAST.Literal) e).value;
+            int start = v.startsWith("-") ? 1 : 0;
+            return v.length() > start && v.charAt(start) >= '0' && v.charAt(start) <= '9';
+        }
+        if (!(e instanceof NanoMorphoAST.Call)) return false;
+        NanoMorphoAST.Call c = (NanoMorphoAST.Call) e;
+        if (c.args.length == 1) return c.name.equals("-");
+        if (c.args.length != 2) return false;
+        switch (c.name) {
+            case "+": case "-": case "*": case "/": case "%":
+                return true;
+        }
+        return false;
+    }
+
+    // As isNumber, but only ints: int literals and arithmetic on them
+    private static boolean isInteger(NanoMorphoAST.Expr e) {
+        if (intValue(e) != null) return true;
+        if (!isNumber(e) || !(e instanceof NanoMorphoAST.Call)) return false;
+        NanoMorphoAST.Call c = (NanoMorphoAST.Call) e;
+        for (NanoMorphoAST.Expr arg : c.args)
+            if (!isInteger(arg)) return false;
+        return true;
+    }
+
+    /**
+     * Rewrites @e where its truth value matters, as in the condition of
+     * an if or a while: there !!x is the same as x if @valueUsed is false
+     * or x is true or false. An if without else and a while have their
+     * condition as their value when it is false, so there the value of
+     * !!x is used.
+     */
+    public NanoMorphoAST.Expr condition(NanoMorphoAST.Expr e, boolean valueUsed) {
+        NanoMorphoAST.Expr r = rewrite(e);
+        while (r instanceof NanoMorphoAST.Not && ((NanoMorphoAST.Not) r).value instanceof NanoMorphoAST.Not
+                && (!valueUsed || isBoolean(((NanoMorphoAST.Not) ((NanoMorphoAST.Not) r).value).value))) {
+            r = ((NanoMorphoAST.Not) ((NanoMorphoAST.Not) r).value).value;
+            folded++;
+        }
+        return r;
+    }
+
+    public NanoMorphoAST.Expr visitCall(NanoMorphoAST.Call e) {
+        NanoMorphoAST.Call call = (NanoMorphoAST.Call) super.visitCall(e);
+        NanoMorphoAST.Expr res = simplify(call);
+        if (res != call) folded++;
+        return res;
+    }
+
+    private NanoMorphoAST.Expr simplify(NanoMorphoAST.Call call) {
+        NanoMorphoAST.Expr[] args = call.args;
+        if (args.length == 1) {
+            Integer a = intValue(args[0]);
+            if (a != null && call.name.equals("-")) return new NanoMorphoAST.Literal(Integer.toString(-a));
+            return call;
+        }
+        if (args.length != 2) return call;
+
+        NanoMorphoAST.Expr x = args[0];
+        NanoMorphoAST.Expr y = args[1];
+        Integer a = intValue(x);
+        Integer b = intValue(y);
+        if (a != null && b != null) {
+            NanoMorphoAST.Expr r = foldInts(call.name, a, b);
+            if (r != null) return r;
+        }
+
+        switch (call.name) {
+            case "+":
+                if (isInt(y, 0) && isInteger(x)) return x;
+                if (isInt(x, 0) && isInteger(y)) return y;
+                break;
+            case "-":
+                if (isInt(y, 0) && isNumber(x)) return x;
+                break;
+            case "*":
+                if (isInt(y, 1) && isNumber(x)) return x;
+                if (isInt(x, 1) && isNumber(y)) return y;
+                break;
+            case "/":
+                if (isInt(y, 1) && isNumber(x)) return x;
+                break;
+        }
+        return call;
+    }
+
+    private static NanoMorphoAST.Expr foldInts(String op, int a, int b) {
+        switch (op) {
+            case "+": return new NanoMorphoAST.Literal(Integer.toString(a + b));
+            case "-": return new NanoMorphoAST.Literal(Integer.toString(a - b));
+            case "*": return new NanoMorphoAST.Literal(Integer.toString(a * b));
+            case "/": return b == 0 ? null : new NanoMorphoAST.Literal(Integer.toString(a / b));
+            case "%": return b == 0 ? null : new NanoMorphoAST.Literal(Integer.toString(a % b));
+            case "==": return bool(a == b);
+            case "!=": return bool(a != b);
+            case "<": return bool(a < b);
+            case "<=": return bool(a <= b);
+            case ">": return bool(a > b);
+            case ">=": return bool(a >= b);
+            default: return null;
+        }
+    }
+
+    public NanoMorphoAST.Expr visitAnd(NanoMorphoAST.And e) {
+        NanoMorphoAST.Expr left = rewrite(e.left);
+        NanoMorphoAST.Expr right = rewrite(e.right);
+        if (isLiteral(left)) {
+            folded++;
+            // x && y is x if x is false, otherwise y
+            return ((NanoMorphoAST.Literal) left).isFalse() ? left : right;
+        }
+        if (left == e.left && right == e.right) return e;
+        return new NanoMorphoAST.And(left, right);
+    }
+
+    public NanoMorphoAST.Expr visitOr(NanoMorphoAST.Or e) {
+        NanoMorphoAST.Expr left = rewrite(e.left);
+        NanoMorphoAST.Expr right = rewrite(e.right);
+        if (isLiteral(left)) {
+            folded++;
+            // x || y is x if x is true, otherwise y
+            return ((NanoMorphoAST.Literal) left).isFalse() ? right : left;
+        }
+        if (left == e.left && right == e.right) return e;
+        return new NanoMorphoAST.Or(left, right);
+    }
+
+    public NanoMorphoAST.Expr visitNot(NanoMorphoAST.Not e) {
+        NanoMorphoAST.Expr value = rewrite(e.value);
+        if (isLiteral(value)) {
+            folded++;
+            return bool(((NanoMorphoAST.Literal) value).isFalse());
+        }
+        // !!x is x when x is already true or false
+        if (value instanceof NanoMorphoAST.Not && isBoolean(((NanoMorphoAST.Not) value).value)) {
+            folded++;
+            return ((NanoMorphoAST.Not) value).value;
+        }
+        return value == e.value ? e : new NanoMorphoAST.Not(value);
+    }
+
+    public NanoMorphoAST.Expr visitIf(NanoMorphoAST.If e) {
+        NanoMorphoAST.Expr cond = condition(e.cond, e.elsePart == null);
+        if (isLiteral(cond)) {
+            folded++;
+            if (!((NanoMorphoAST.Literal) cond).isFalse()) return rewrite(e.thenPart);
+            // Without else the value of the if is the value of the condition
+            return e.elsePart != null ? rewrite(e.elsePart) : cond;
+        }
+        NanoMorphoAST.Body thenPart = rewriteBody(e.thenPart);
+        NanoMorphoAST.Expr elsePart = rewrite(e.elsePart);
+        if (cond == e.cond && thenPart == e.thenPart && elsePart == e.elsePart) return e;
+        return new NanoMorphoAST.If(cond, thenPart, elsePart);
+    }
+
+    public NanoMorphoAST.Expr visitWhile(NanoMorphoAST.While e) {
+        NanoMorphoAST.Expr cond = condition(e.cond, true);
+        if (isLiteral(cond) && ((NanoMorphoAST.Literal) cond).isFalse()) {
+            folded++;
+            return cond;
+        }
+        NanoMorphoAST.Body body = rewriteBody(e.body);
+        if (cond == e.cond && body == e.body) return e;
+        return new NanoMorphoAST.While(cond, body, e.line, e.column);
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+/**
+ * Long running compile server. Keeps the lexer, parser and compiler
+ * loaded and JIT compiled so many files can be compiled without paying
+ * JVM startup for each one.
+ *
+ * Protocol, one request per line:
+ *
+ *   compile SOURCE            -> ok N, followed by N chars of .masm text
+ *   compile SOURCE OUTPUT     -> ok OUTPUT, the .masm is written to OUTPUT
+ *   quit                      -> closes the connection
+ *
+ * Failures are answered with a single line: error MESSAGE. When a file
+ * has several syntax errors they are all on that line, separated by "; ".
+ * A request that fails in any other way, e.g. a program nested too deeply
+ * to compile, is answered the same way and the daemon goes on serving.
+ *
+ * Usage: java NanoMorphoDaemon [-O]              (requests on stdin)
+ *        java NanoMorphoDaemon [-O] --port PORT  (requests on localhost:PORT)
+ *
+ * Compiler flags such as -O apply to every request.
+ */
+public class NanoMorphoDaemon {
+
+    private final NanoMorphoCompiler.Options options;
+
+    public NanoMorphoDaemon(NanoMorphoCompiler.Options options) {
+        this.options = options;
+    }
+
+    /** Serves requests from @in until quit or end of input */
+    public void serve(BufferedReader in, Writer out) throws IOException {
+        String request;
+        while ((request = in.readLine()) != null) {
+            request = request.trim();
+            if (request.isEmpty()) continue;
+            if (request.equals("quit")) break;
+            out.write(handle(request));
+            out.flush();
+        }
+    }
+
+    /** Handles one request line and returns the complete response, never throws for a bad source */
+    public String handle(String request) {
+        String[] words = request.split("\\s+");
+        if (!words[0].equals("compile") || words.length < 2 || words.length > 3) {
+            return "error unknown request: " + request + "\n";
+        }
+        String source = words[1];
+        try {
+            if (words.length == 3) {
+                try (NanoMorphoEmitter out = NanoMorphoEmitter.toFile(Paths.get(words[2]))) {
+                    NanoMorphoCompiler.compile(source, out, options);
+                }
+                return "ok " + words[2] + "\n";
+            }
+            StringBuilder masm = new StringBuilder();
+            NanoMorphoCompiler.compile(source, NanoMorphoEmitter.toStringBuilder(masm), options);
+            return "ok " + masm.length() + "\n" + masm;
+        } catch (NanoMorphoParser.SyntaxError e) {
+            return failed(words, source + ": " + e.getMessage().replace("\n", "; "));
+        } catch (IOException | UncheckedIOException e) {
+            return failed(words, source + ": " + e);
+        } catch (StackOverflowError e) {
+            return failed(words, source + ": nested too deeply to compile");
+        } catch (RuntimeException e) {
+            return failed(words, source + ": " + e);
+        }
+    }
+
+    // The error response @message, after removing the output of the request @words if any
+    private static String failed(String[] words, String message) {
+        // Not a program, even if some functions were written (--stream)
+        if (words.length == 3) Paths.get(words[2]).toFile().delete();
+        return "error " + message + "\n";
+    }
+
+    private void serveSocket(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("NanoMorphoDaemon listening on " + server.getLocalSocketAddress());
+            for (;;) {
+                Socket client = server.accept();
+                Thread t = new Thread(() -> {
+                    try (Socket s = client) {
+                        serve(new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8)),
+                            new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)));
+                    } catch (IOException e) {
+                        System.err.println("NanoMorphoDaemon: " + e);
+                    }
+                });
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        NanoMorphoCompiler.Options options = new NanoMorphoCompiler.Options();
+        int port = -1;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port") && i + 1 < args.length) port = Integer.parseInt(args[++i]);
+            else if (!options.set(args[i])) NanoMorphoCompiler.unknownOption(args[i]);
+        }
+        NanoMorphoDaemon daemon = new NanoMorphoDaemon(options);
+        if (port >= 0) {
+            daemon.serveSocket(port);
+        } else {
+            daemon.serve(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+                new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+        }
+    }
+}
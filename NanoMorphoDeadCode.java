@@ -0,0 +1,176 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Removes code that can never run, and locals that are never read, from
+ * the syntax tree. Runs with -O after NanoMorphoConstantFolder, which has
+ * already resolved branches on constant conditions.
+ *
+ * An expression completes when control can go on to whatever follows it.
+ * A return never completes, nor does a while whose condition is a true
+ * literal, since NanoMorpho has no break. Neither does an if whose
+ * branches all return, or any expression with such a part that is always
+ * evaluated. Expressions after one that does not complete, in a body or
+ * at the top level of a function, are dropped.
+ *
+ * A local that no Fetch reads is dropped. Stores into it become just the
+ * stored value, which is also the value of the store, and the slots of
+ * the locals after it move down. Arguments are never dropped.
+ *
+ * What was removed from each function is listed by report, which
+ * --dead-code-report prints.
+ */
+public class NanoMorphoDeadCode {
+
+    // What was removed, one line per function that lost something
+    private final List<String> removed = new ArrayList<>();
+    private int totalUnreachable = 0;
+    private int totalLocals = 0;
+
+    public NanoMorphoAST.Function[] eliminate(NanoMorphoAST.Function[] program) {
+        NanoMorphoAST.Function[] res = new NanoMorphoAST.Function[program.length];
+        for (int i = 0; i < program.length; i++)
+            res[i] = eliminate(program[i]);
+        return res;
+    }
+
+    /** @f without unreachable expressions and unread locals */
+    public NanoMorphoAST.Function eliminate(NanoMorphoAST.Function f) {
+        Reachable reachable = new Reachable();
+        NanoMorphoAST.Expr[] exprs = reachable.reachable(reachable.rewrite(f.exprs));
+        int unreachable = reachable.unreachable;
+
+        // Locals no Fetch reads, and the new slot of every slot, -1 if dropped
+        boolean[] read = new boolean[f.argCount + f.varCount];
+        Reads reads = new Reads(read);
+        for (NanoMorphoAST.Expr e : exprs) e.accept(reads);
+        int[] slots = new int[read.length];
+        int next = 0;
+        StringBuilder locals = new StringBuilder();
+        for (int i = 0; i < read.length; i++) {
+            if (i < f.argCount || read[i]) {
+                slots[i] = next++;
+            } else {
+                slots[i] = -1;
+                locals.append(locals.length() == 0 ? "" : ", ").append(i);
+            }
+        }
+        int dropped = read.length - next;
+        if (dropped > 0) exprs = new Renumber(slots).rewrite(exprs);
+
+        if (unreachable > 0 || dropped > 0) {
+            StringBuilder sb = new StringBuilder(f.name).append("[f").append(f.argCount).append("]:");
+            if (unreachable > 0) sb.append(' ').append(unreachable).append(" unreachable expression").append(unreachable > 1 ? "s" : "");
+            if (unreachable > 0 && dropped > 0) sb.append(',');
+            if (dropped > 0) sb.append(" unread local").append(dropped > 1 ? "s" : "").append(" in slot").append(dropped > 1 ? "s " : " ").append(locals);
+            // One pass may be shared by the workers of NanoMorphoBatch
+            synchronized (removed) {
+                removed.add(sb.toString());
+                totalUnreachable += unreachable;
+                totalLocals += dropped;
+            }
+        }
+        if (exprs == f.exprs && dropped == 0) return f;
+        return new NanoMorphoAST.Function(f.name, f.argCount, f.varCount - dropped, exprs, f.line, f.column);
+    }
+
+    /** True if control can go on after @e, false if @e always returns or loops forever */
+    public static boolean completes(NanoMorphoAST.Expr e) {
+        if (e == null || e instanceof NanoMorphoAST.Fetch || e instanceof NanoMorphoAST.Literal) return true;
+        if (e instanceof NanoMorphoAST.Return) return false;
+        if (e instanceof NanoMorphoAST.Store) return completes(((NanoMorphoAST.Store) e).value);
+        if (e instanceof NanoMorphoAST.Not) return completes(((NanoMorphoAST.Not) e).value);
+        // The right operand may be skipped
+        if (e instanceof NanoMorphoAST.And) return completes(((NanoMorphoAST.And) e).left);
+        if (e instanceof NanoMorphoAST.Or) return completes(((NanoMorphoAST.Or) e).left);
+        if (e instanceof NanoMorphoAST.Call) return all(((NanoMorphoAST.Call) e).args);
+        if (e instanceof NanoMorphoAST.Body) return all(((NanoMorphoAST.Body) e).exprs);
+        if (e instanceof NanoMorphoAST.If) {
+            NanoMorphoAST.If i = (NanoMorphoAST.If) e;
+            return completes(i.cond)
+                && (i.elsePart == null || completes(i.thenPart) || completes(i.elsePart));
+        }
+        NanoMorphoAST.While w = (NanoMorphoAST.While) e;
+        if (w.cond instanceof NanoMorphoAST.Literal && !((NanoMorphoAST.Literal) w.cond).isFalse()) return false;
+        return completes(w.cond);
+    }
+
+    private static boolean all(NanoMorphoAST.Expr[] exprs) {
+        for (NanoMorphoAST.Expr e : exprs)
+            if (!completes(e)) return false;
+        return true;
+    }
+
+    /**
+     * What was removed, one line per function:
+     *   dead code:
+     *     fibo[f1]: 1 unreachable expression
+     *     total: 1 unreachable expression, 0 unread locals
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder("dead code:");
+        synchronized (removed) {
+            for (String line : removed) sb.append(String.format("%n  %s", line));
+            sb.append(String.format("%n  total: %d unreachable expression%s, %d unread local%s", totalUnreachable,
+                totalUnreachable == 1 ? "" : "s", totalLocals, totalLocals == 1 ? "" : "s"));
+        }
+        return sb.toString();
+    }
+
+    // Drops what follows an expression that does not complete, counting it
+    private static final class Reachable extends NanoMorphoAST.Rewriter {
+        int unreachable = 0;
+
+        // @exprs up to and including the first that does not complete
+        NanoMorphoAST.Expr[] reachable(NanoMorphoAST.Expr[] exprs) {
+            for (int i = 0; i < exprs.length - 1; i++) {
+                if (!completes(exprs[i])) {
+                    unreachable += exprs.length - i - 1;
+                    NanoMorphoAST.Expr[] res = new NanoMorphoAST.Expr[i + 1];
+                    System.arraycopy(exprs, 0, res, 0, i + 1);
+                    return res;
+                }
+            }
+            return exprs;
+        }
+
+        public NanoMorphoAST.Expr visitBody(NanoMorphoAST.Body e) {
+            NanoMorphoAST.Expr[] exprs = reachable(rewrite(e.exprs));
+            return exprs == e.exprs ? e : new NanoMorphoAST.Body(exprs);
+        }
+    }
+
+    // Marks the slots that are fetched
+    private static final class Reads extends NanoMorphoAST.Rewriter {
+        private final boolean[] read;
+
+        Reads(boolean[] read) {
+            this.read = read;
+        }
+
+        public NanoMorphoAST.Expr visitFetch(NanoMorphoAST.Fetch e) {
+            read[e.pos] = true;
+            return e;
+        }
+    }
+
+    // Moves every slot to slots[slot], stores into dropped slots become their value
+    static final class Renumber extends NanoMorphoAST.Rewriter {
+        private final int[] slots;
+
+        Renumber(int[] slots) {
+            this.slots = slots;
+        }
+
+        public NanoMorphoAST.Expr visitFetch(NanoMorphoAST.Fetch e) {
+            return slots[e.pos] == e.pos ? e : new NanoMorphoAST.Fetch(slots[e.pos]);
+        }
+
+        public NanoMorphoAST.Expr visitStore(NanoMorphoAST.Store e) {
+            NanoMorphoAST.Expr value = rewrite(e.value);
+            if (slots[e.pos] < 0) return value;
+            if (value == e.value && slots[e.pos] == e.pos) return e;
+            return new NanoMorphoAST.Store(slots[e.pos], value);
+        }
+    }
+}
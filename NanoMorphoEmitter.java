@@ -0,0 +1,324 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Output sink for Morpho assembly text.
+ *
+ * Instructions are appended through specialized methods straight into a
+ * char buffer, so no format strings are parsed and no varargs arrays or
+ * boxed ints are created per instruction. When the buffer fills it is
+ * handed to the concrete sink: a StringBuilder, a Writer, a FileChannel
+ * or nothing at all.
+ *
+ * Characters outside ASCII, which only occur in the quoted names and
+ * literals of the program, are written as escapes: a backslash, 'u' and
+ * four hex digits. morpho.jar reads a .masm as ISO-8859-1 but reads the
+ * escapes back as the characters themselves, so the text is ASCII and
+ * the same in every sink, whatever its charset.
+ *
+ * I/O errors are thrown as UncheckedIOException so code generators do not
+ * need to declare them.
+ */
+public abstract class NanoMorphoEmitter implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final char[] buf = new char[BUFFER_SIZE];
+    private int pos = 0;
+
+    /** Writes @len chars from @chars to the underlying sink */
+    protected abstract void drain(char[] chars, int len) throws IOException;
+
+    /** Flushes the underlying sink after the buffer has been drained */
+    protected void flushSink() throws IOException {
+    }
+
+    /** Closes the underlying sink after the buffer has been drained */
+    protected void closeSink() throws IOException {
+    }
+
+    private void drainBuffer() {
+        try {
+            drain(buf, pos);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        pos = 0;
+    }
+
+    private NanoMorphoEmitter append(char c) {
+        if (pos == BUFFER_SIZE) drainBuffer();
+        buf[pos++] = c;
+        return this;
+    }
+
+    private NanoMorphoEmitter append(String s) {
+        int len = s.length();
+        int off = 0;
+        while (off < len) {
+            if (pos == BUFFER_SIZE) drainBuffer();
+            int end = Math.min(len, off + BUFFER_SIZE - pos);
+            int ascii = off;
+            while (ascii < end && s.charAt(ascii) < 0x80) ascii++;
+            s.getChars(off, ascii, buf, pos);
+            pos += ascii - off;
+            off = ascii;
+            if (off < end) escape(s.charAt(off++));
+        }
+        return this;
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // Escape for @c, each half of a surrogate pair on its own
+    private void escape(char c) {
+        if (BUFFER_SIZE - pos < 6) drainBuffer();
+        buf[pos++] = '\\';
+        buf[pos++] = 'u';
+        for (int shift = 12; shift >= 0; shift -= 4)
+            buf[pos++] = HEX[c >> shift & 0xf];
+    }
+
+    private NanoMorphoEmitter append(int n) {
+        if (n < 0) {
+            if (n == Integer.MIN_VALUE) return append(Integer.toString(n));
+            append('-');
+            n = -n;
+        }
+        if (BUFFER_SIZE - pos < 10) drainBuffer();
+        int digits = 1;
+        for (int t = n; t >= 10; t /= 10) digits++;
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            buf[i] = (char) ('0' + n % 10);
+            n /= 10;
+        }
+        pos += digits;
+        return this;
+    }
+
+    private void newline() {
+        append('\n');
+    }
+
+    /** Raw line of text */
+    public void line(String text) {
+        append(text);
+        newline();
+    }
+
+    /** Label definition: _n: */
+    public void label(int label) {
+        append('_').append(label).append(':');
+        newline();
+    }
+
+    /** Instruction without arguments, e.g. (Push) */
+    public void op(String name) {
+        append('(').append(name).append(')');
+        newline();
+    }
+
+    /** Instruction with an int argument, e.g. (Fetch 3) */
+    public void op(String name, int arg) {
+        append('(').append(name).append(' ').append(arg).append(')');
+        newline();
+    }
+
+    /** Instruction with a literal argument, e.g. (MakeVal "x") */
+    public void op(String name, String arg) {
+        append('(').append(name).append(' ').append(arg).append(')');
+        newline();
+    }
+
+    /** Jump instruction to a label, e.g. (Go _4) */
+    public void jump(String name, int label) {
+        append('(').append(name).append(" _").append(label).append(')');
+        newline();
+    }
+
+    /** Call instruction, e.g. (Call #"f[f2]" 2) */
+    public void call(String name, String function, int argc) {
+        append('(').append(name).append(" #\"").append(function).append("[f")
+            .append(argc).append("]\" ").append(argc).append(')');
+        newline();
+    }
+
+    /** Global variable instruction, e.g. (FetchGlobalVar ##"counts[vg]") */
+    public void global(String name, String variable) {
+        append('(').append(name).append(" ##\"").append(variable).append("[vg]\")");
+        newline();
+    }
+
+    /** Java instruction with quoted names, e.g. (GetClassField "java.lang.System" "err") */
+    public void java(String name, String... names) {
+        append('(').append(name);
+        for (String n : names)
+            append(" \"").append(n).append('"');
+        append(')');
+        newline();
+    }
+
+    /** Start of a function definition: #"f[f2]" = */
+    public void function(String function, int argc) {
+        append("#\"").append(function).append("[f").append(argc).append("]\" =");
+        newline();
+    }
+
+    /** Start of a module definition: "name.mexe" = main in */
+    public void module(String name) {
+        module(name, "main");
+    }
+
+    /** Start of a module definition starting in @entry: "name.mexe" = entry in */
+    public void module(String name, String entry) {
+        append('"').append(name).append(".mexe\" = ").append(entry).append(" in");
+        newline();
+    }
+
+    public void flush() {
+        drainBuffer();
+        try {
+            flushSink();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void close() {
+        drainBuffer();
+        try {
+            closeSink();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Emitter that appends to @sb */
+    public static NanoMorphoEmitter toStringBuilder(StringBuilder sb) {
+        return new StringBuilderEmitter(sb);
+    }
+
+    /** Emitter that writes to @w in large blocks. Closing it closes @w. */
+    public static NanoMorphoEmitter toWriter(Writer w) {
+        return new WriterEmitter(w);
+    }
+
+    /** Emitter that writes UTF-8 to the file @path through a FileChannel */
+    public static NanoMorphoEmitter toFile(Path path) throws IOException {
+        return new ChannelEmitter(FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /** Emitter that discards everything, for measurements */
+    public static NanoMorphoEmitter toNull() {
+        return new NullEmitter();
+    }
+
+    private static final class StringBuilderEmitter extends NanoMorphoEmitter {
+        private final StringBuilder sb;
+
+        StringBuilderEmitter(StringBuilder sb) {
+            this.sb = sb;
+        }
+
+        protected void drain(char[] chars, int len) {
+            sb.append(chars, 0, len);
+        }
+    }
+
+    private static final class WriterEmitter extends NanoMorphoEmitter {
+        private final Writer w;
+
+        WriterEmitter(Writer w) {
+            this.w = w;
+        }
+
+        protected void drain(char[] chars, int len) throws IOException {
+            w.write(chars, 0, len);
+        }
+
+        protected void flushSink() throws IOException {
+            w.flush();
+        }
+
+        protected void closeSink() throws IOException {
+            w.close();
+        }
+    }
+
+    private static final class ChannelEmitter extends NanoMorphoEmitter {
+        private final FileChannel channel;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE * 2);
+
+        // High surrogate left over when the buffer split a surrogate pair
+        private char pending;
+        private boolean hasPending = false;
+
+        ChannelEmitter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        protected void drain(char[] chars, int len) throws IOException {
+            CharBuffer in;
+            if (hasPending) {
+                in = CharBuffer.allocate(len + 1);
+                in.put(pending).put(chars, 0, len).flip();
+                hasPending = false;
+            } else {
+                in = CharBuffer.wrap(chars, 0, len);
+            }
+            encode(in, false);
+            if (in.hasRemaining()) {
+                pending = in.get();
+                hasPending = true;
+            }
+        }
+
+        private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+            for (;;) {
+                CoderResult r = encoder.encode(in, bytes, endOfInput);
+                if (r.isError()) r.throwException();
+                if (r.isUnderflow()) return;
+                writeBytes();
+            }
+        }
+
+        private void writeBytes() throws IOException {
+            bytes.flip();
+            while (bytes.hasRemaining()) channel.write(bytes);
+            bytes.clear();
+        }
+
+        protected void flushSink() throws IOException {
+            writeBytes();
+        }
+
+        protected void closeSink() throws IOException {
+            try {
+                CharBuffer rest = CharBuffer.allocate(hasPending ? 1 : 0);
+                if (hasPending) rest.put(pending).flip();
+                encode(rest, true);
+                while (encoder.flush(bytes).isOverflow()) writeBytes();
+                writeBytes();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private static final class NullEmitter extends NanoMorphoEmitter {
+        protected void drain(char[] chars, int len) {
+        }
+    }
+}
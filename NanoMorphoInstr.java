@@ -0,0 +1,157 @@
+/**
+ * One Morpho instruction or label in a function body.
+ *
+ * NanoMorphoCompiler collects the body of each function as a list of
+ * these before it is written out, so passes such as NanoMorphoPeephole
+ * can rewrite the instruction stream.
+ */
+public final class NanoMorphoInstr {
+
+    /** What kind of argument an instruction takes */
+    public enum Arg { NONE, INT, LITERAL, LABEL, CALL, GLOBAL, JAVA }
+
+    public enum Op {
+        LABEL(null, Arg.LABEL),
+        FETCH("Fetch", Arg.INT),
+        FETCHP("FetchP", Arg.INT),
+        FETCHR("FetchR", Arg.INT),
+        STORE("Store", Arg.INT),
+        STOREP("StoreP", Arg.INT),
+        STORER("StoreR", Arg.INT),
+        POPINTO("PopInto", Arg.INT),
+        MAKEVAL("MakeVal", Arg.LITERAL),
+        MAKEVALP("MakeValP", Arg.LITERAL),
+        MAKEVALR("MakeValR", Arg.LITERAL),
+        CALL("Call", Arg.CALL),
+        CALLR("CallR", Arg.CALL),
+        PUSH("Push", Arg.NONE),
+        NOT("Not", Arg.NONE),
+        RETURN("Return", Arg.NONE),
+        GO("Go", Arg.LABEL),
+        GOTRUE("GoTrue", Arg.LABEL),
+        GOFALSE("GoFalse", Arg.LABEL),
+        FETCHGLOBALVAR("FetchGlobalVar", Arg.GLOBAL),
+        STOREGLOBALVAR("StoreGlobalVar", Arg.GLOBAL),
+        GETCLASSFIELD("GetClassField", Arg.JAVA),
+        NEW0("New0", Arg.JAVA),
+        NEW3("New3", Arg.JAVA),
+        CALLCLASSMETHOD1("CallClassMethod1", Arg.JAVA),
+        CALLINSTANCEMETHOD0("CallInstanceMethod0", Arg.JAVA),
+        CALLINSTANCEMETHOD1("CallInstanceMethod1", Arg.JAVA),
+        CALLINSTANCEMETHOD2("CallInstanceMethod2", Arg.JAVA);
+
+        public final String text;
+        public final Arg arg;
+
+        Op(String text, Arg arg) {
+            this.text = text;
+            this.arg = arg;
+        }
+
+        /** true for instructions that jump to a label */
+        public boolean isJump() {
+            return this == GO || this == GOTRUE || this == GOFALSE;
+        }
+
+        /** true if control never falls through to the next instruction */
+        public boolean endsBlock() {
+            switch (this) {
+                case GO: case RETURN: case FETCHR: case STORER: case MAKEVALR: case CALLR:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    public final Op op;
+    /** Slot, label number or argument count depending on op */
+    public final int arg;
+    /**
+     * Literal for MakeVal*, function name for Call*, variable name for
+     * *GlobalVar, class, member and argument type names separated by
+     * spaces for the Java ops, GetClassField to CallInstanceMethod2
+     */
+    public final String name;
+
+    private NanoMorphoInstr(Op op, int arg, String name) {
+        this.op = op;
+        this.arg = arg;
+        this.name = name;
+    }
+
+    public static NanoMorphoInstr op(Op op) {
+        return new NanoMorphoInstr(op, 0, null);
+    }
+
+    public static NanoMorphoInstr op(Op op, int arg) {
+        return new NanoMorphoInstr(op, arg, null);
+    }
+
+    public static NanoMorphoInstr op(Op op, String literal) {
+        return new NanoMorphoInstr(op, 0, literal);
+    }
+
+    public static NanoMorphoInstr call(Op op, String function, int argc) {
+        return new NanoMorphoInstr(op, argc, function);
+    }
+
+    public static NanoMorphoInstr label(int label) {
+        return new NanoMorphoInstr(Op.LABEL, label, null);
+    }
+
+    /** Same instruction with a different op, e.g. Fetch to FetchP */
+    public NanoMorphoInstr withOp(Op op) {
+        return new NanoMorphoInstr(op, arg, name);
+    }
+
+    /** Same jump to a different label */
+    public NanoMorphoInstr withLabel(int label) {
+        return new NanoMorphoInstr(op, label, name);
+    }
+
+    public boolean isLabel() {
+        return op == Op.LABEL;
+    }
+
+    /** Writes this instruction as Morpho assembly text */
+    public void emit(NanoMorphoEmitter out) {
+        emit(out, 0);
+    }
+
+    /** As emit(@out), with @labelBase added to label numbers */
+    public void emit(NanoMorphoEmitter out, int labelBase) {
+        switch (op.arg) {
+            case NONE:
+                out.op(op.text);
+                break;
+            case INT:
+                out.op(op.text, arg);
+                break;
+            case LITERAL:
+                out.op(op.text, name);
+                break;
+            case CALL:
+                out.call(op.text, name, arg);
+                break;
+            case GLOBAL:
+                out.global(op.text, name);
+                break;
+            case JAVA:
+                out.java(op.text, name.split(" "));
+                break;
+            case LABEL:
+                if (op == Op.LABEL) out.label(labelBase + arg);
+                else out.jump(op.text, labelBase + arg);
+                break;
+        }
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        NanoMorphoEmitter out = NanoMorphoEmitter.toStringBuilder(sb);
+        emit(out);
+        out.flush();
+        return sb.toString().trim();
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Interning table for lexemes, looked up straight from a character
+ * buffer: a String is only made the first time a sequence of characters
+ * is seen, after that every occurrence gets that same instance.
+ *
+ * Open addressing with linear probing, kept at most half full.
+ */
+public final class NanoMorphoInterner {
+
+    private String[] strings = new String[1024];
+    private int[] hashes = new int[1024];
+    private int size;
+
+    /** The String with the characters @buf[@start..@start+@length) */
+    public String intern(char[] buf, int start, int length) {
+        // Same hash as String.hashCode
+        int h = 0;
+        for (int i = start; i < start + length; i++) h = 31 * h + buf[i];
+        int mask = strings.length - 1;
+        int i = (h ^ (h >>> 16)) & mask;
+        for (String s = strings[i]; s != null; s = strings[i]) {
+            if (hashes[i] == h && matches(s, buf, start, length)) return s;
+            i = (i + 1) & mask;
+        }
+        String s = new String(buf, start, length);
+        strings[i] = s;
+        hashes[i] = h;
+        if (++size * 2 > strings.length) grow();
+        return s;
+    }
+
+    /** Number of distinct strings in the table */
+    public int size() {
+        return size;
+    }
+
+    private static boolean matches(String s, char[] buf, int start, int length) {
+        if (s.length() != length) return false;
+        for (int i = 0; i < length; i++)
+            if (s.charAt(i) != buf[start + i]) return false;
+        return true;
+    }
+
+    private void grow() {
+        String[] oldStrings = strings;
+        int[] oldHashes = hashes;
+        strings = new String[oldStrings.length * 2];
+        hashes = new int[oldStrings.length * 2];
+        int mask = strings.length - 1;
+        for (int j = 0; j < oldStrings.length; j++) {
+            if (oldStrings[j] == null) continue;
+            int h = oldHashes[j];
+            int i = (h ^ (h >>> 16)) & mask;
+            while (strings[i] != null) i = (i + 1) & mask;
+            strings[i] = oldStrings[j];
+            hashes[i] = h;
+        }
+    }
+}
@@ -0,0 +1,1087 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles a NanoMorpho program to a JVM class and runs it in the same
+ * process, so the functions are compiled by HotSpot instead of being
+ * interpreted by the Morpho VM.
+ *
+ * A function f with n arguments becomes a method
+ *
+ *   public static Object f(Object, ..., Object)
+ *
+ * of the class nanomorpho.<module>, with the arguments and local variables
+ * in the JVM local slots of the same numbers. Every expression leaves its
+ * value on the operand stack, builtins such as + and writeln are calls to
+ * the static methods of NanoMorphoRuntime, and numbers and characters in
+ * literals are created once, in static fields of the class.
+ *
+ * The class file is written here directly. It has version 49, so the JVM
+ * verifies it by type inference and no stack map frames are needed.
+ *
+ *   java NanoMorphoJvm [-O] [--profile] [--memo[=N]] [--memo-stats] [-d dir] file.s
+ *
+ * runs main() of file.s, -d also writes the class file to dir. -O folds
+ * constants and compiles self tail calls as jumps, as for NanoMorphoCompiler.
+ *
+ * Methods have a LineNumberTable for the calls and loops of the source,
+ * and -d writes the same table with columns, see getLineTable. --profile
+ * counts calls and loop iterations while the program runs and prints
+ * NanoMorphoProfile.report to standard error when it exits.
+ *
+ * --memo gives the pure functions that call themselves, or are annotated
+ * with a ";;; @memo" comment line above their name, a cache of their
+ * results by arguments, see NanoMorphoPurity and NanoMorphoMemo; --memo=N
+ * keeps N results per function. --memo-stats prints what was memoized and
+ * the hit rates when the program exits.
+ */
+public class NanoMorphoJvm {
+
+    /** A call that neither the program nor NanoMorphoRuntime defines, or a function too large for a method */
+    public static class LinkError extends RuntimeException {
+        public LinkError(String message) {
+            super(message);
+        }
+    }
+
+    public static final String PACKAGE = "nanomorpho";
+    // Morpho frames live on the heap, so deep recursion is normal
+    private static final long STACK_SIZE = 1L << 30;
+
+    private static final int CLASS_VERSION = 49;
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int ACONST_NULL = 0x01;
+    private static final int LCONST_1 = 0x0a;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC = 0x12;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int ALOAD = 0x19;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int LALOAD = 0x2f;
+    private static final int ASTORE = 0x3a;
+    private static final int ASTORE_0 = 0x4b;
+    private static final int LASTORE = 0x50;
+    private static final int AASTORE = 0x53;
+    private static final int POP = 0x57;
+    private static final int DUP = 0x59;
+    private static final int DUP2 = 0x5c;
+    private static final int LADD = 0x61;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int IF_ACMPNE = 0xa6;
+    private static final int GOTO = 0xa7;
+    private static final int ARETURN = 0xb0;
+    private static final int RETURN = 0xb1;
+    private static final int GETSTATIC = 0xb2;
+    private static final int PUTSTATIC = 0xb3;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int ANEWARRAY = 0xbd;
+    private static final int WIDE = 0xc4;
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String RUNTIME = "NanoMorphoRuntime";
+    private static final String MEMO = "NanoMorphoMemo";
+    private static final String TABLE = "NanoMorphoMemo$Table";
+
+    private final String className;
+    private final String sourceFile;
+    private final boolean tailCalls;
+    private final ConstantPool pool = new ConstantPool();
+    // "name[fN]" of every function of the program
+    private final Map<String, NanoMorphoAST.Function> functions = new HashMap<>();
+    // Literal value -> number of the static field holding it
+    private final Map<Object, Integer> constants = new LinkedHashMap<>();
+    // Counting points with --profile, else null
+    private final NanoMorphoProfile profile;
+    // Result caches with --memo, else null, and the lines of the source for its annotations
+    private final NanoMorphoMemo memo;
+    private List<String> source;
+    // "name[fN] start-end line:column" for every range of code, see getLineTable
+    private final StringBuilder lineTable = new StringBuilder();
+
+    // Function being generated, its code and the label after the prologue
+    private NanoMorphoAST.Function function;
+    private Code code;
+    private Label entry;
+
+    private final ExpressionGenerator plain = new ExpressionGenerator();
+    private final ReturnGenerator ret = new ReturnGenerator();
+
+    /** Generator for the module @module of the source file @sourceFile */
+    public NanoMorphoJvm(String module, String sourceFile, NanoMorphoCompiler.Options options) {
+        this.className = PACKAGE + "/" + module.replaceAll("[.;\\[/<>]", "_");
+        this.sourceFile = sourceFile;
+        this.tailCalls = options.tailCalls;
+        this.profile = options.profile ? new NanoMorphoProfile(sourceFile) : null;
+        this.memo = options.memo > 0 ? new NanoMorphoMemo(sourceFile, options.memo) : null;
+    }
+
+    /** Gives the lines of the source, for the ;;; @memo annotations of --memo */
+    public void setSource(List<String> source) {
+        this.source = source;
+    }
+
+    /** The counting points of the program with --profile, else null */
+    public NanoMorphoProfile getProfile() {
+        return profile;
+    }
+
+    /** The result caches of the program with --memo, else null */
+    public NanoMorphoMemo getMemo() {
+        return memo;
+    }
+
+    /**
+     * Source positions of the code of the generated methods, one range of
+     * code per line, e.g. "fibo[f1] 0-11 3:1" for the first 11 bytes of
+     * the method fibo, compiled from line 3, column 1 and on.
+     */
+    public String getLineTable() {
+        return lineTable.toString();
+    }
+
+    /** Binary name of the generated class, e.g. nanomorpho.testFIBO */
+    public String getClassName() {
+        return className.replace('/', '.');
+    }
+
+    /** The class file for @program */
+    public byte[] generateProgram(NanoMorphoAST.Function[] program) {
+        for (NanoMorphoAST.Function f : program)
+            functions.put(f.name + "[f" + f.argCount + "]", f);
+        if (!functions.containsKey("main[f0]"))
+            throw new LinkError("A function main() with zero arguments was not found.");
+        // Pairs made by a memoized function would be shared, see NanoMorphoMemo
+        boolean[] memoized = memo == null ? new boolean[program.length] : NanoMorphoPurity.memoize(program, source,
+            call -> NanoMorphoRuntime.BUILTINS.containsKey(call) && !call.equals(":[f2]"), memo.choices());
+        List<byte[]> methods = new ArrayList<>();
+        int tables = 0;
+        for (int i = 0; i < program.length; i++) {
+            NanoMorphoAST.Function f = program[i];
+            if (!memoized[i]) {
+                methods.add(generateFunction(f, f.name));
+                continue;
+            }
+            methods.add(generateFunction(f, f.name + "$body"));
+            methods.add(generateMemo(f, memo.table(f.name + "[f" + f.argCount + "]")));
+            tables++;
+        }
+        if (!constants.isEmpty()) methods.add(generateConstants());
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            int thisClass = pool.classRef(className);
+            int superClass = pool.classRef(OBJECT);
+            int sourceFileAttr = pool.utf8("SourceFile");
+            int sourceFileName = pool.utf8(sourceFile);
+            int objectType = pool.utf8("L" + OBJECT + ";");
+            List<Integer> fieldNames = new ArrayList<>();
+            for (int i = 0; i < constants.size(); i++) fieldNames.add(pool.utf8("k" + i));
+            int profileName = pool.utf8(NanoMorphoProfile.FIELD);
+            int countsType = pool.utf8("[J");
+            List<Integer> tableNames = new ArrayList<>();
+            for (int i = 0; i < tables; i++) tableNames.add(pool.utf8(NanoMorphoMemo.FIELD + i));
+            int tableType = pool.utf8("L" + TABLE + ";");
+
+            data.writeInt(0xCAFEBABE);
+            data.writeShort(0);
+            data.writeShort(CLASS_VERSION);
+            pool.write(data);
+            data.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            data.writeShort(thisClass);
+            data.writeShort(superClass);
+            data.writeShort(0);
+            data.writeShort(fieldNames.size() + (profile != null ? 1 : 0) + tableNames.size());
+            for (int name : fieldNames) {
+                data.writeShort(ACC_PRIVATE | ACC_STATIC | ACC_FINAL);
+                data.writeShort(name);
+                data.writeShort(objectType);
+                data.writeShort(0);
+            }
+            if (profile != null) {
+                data.writeShort(ACC_PUBLIC | ACC_STATIC);
+                data.writeShort(profileName);
+                data.writeShort(countsType);
+                data.writeShort(0);
+            }
+            for (int name : tableNames) {
+                data.writeShort(ACC_PUBLIC | ACC_STATIC);
+                data.writeShort(name);
+                data.writeShort(tableType);
+                data.writeShort(0);
+            }
+            data.writeShort(methods.size());
+            for (byte[] m : methods) data.write(m);
+            data.writeShort(1);
+            data.writeShort(sourceFileAttr);
+            data.writeInt(2);
+            data.writeShort(sourceFileName);
+            data.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String descriptor(int argc) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < argc; i++) sb.append("L" + OBJECT + ";");
+        return sb.append(")L" + OBJECT + ";").toString();
+    }
+
+    // The method @name for @f, which is f.name unless @f is memoized
+    private byte[] generateFunction(NanoMorphoAST.Function f, String name) {
+        int locals = f.argCount + f.varCount;
+        if (f.argCount > 255) throw new LinkError("Function " + f.name + " has more than 255 arguments");
+        function = f;
+        code = new Code();
+        entry = new Label();
+        code.line(f.line, f.column);
+        for (int i = f.argCount; i < locals; i++) {
+            code.op(ACONST_NULL, 1);
+            store(i);
+        }
+        code.place(entry);
+        // After the entry, so self tail calls count as calls
+        count(NanoMorphoProfile.Kind.ENTRY, f.line);
+        if (f.exprs.length == 0) {
+            code.op(ACONST_NULL, 1);
+            code.op(ARETURN, -1);
+        } else {
+            for (int i = 0; i < f.exprs.length - 1; i++) {
+                generateExpression(f.exprs[i]);
+                code.op(POP, -1);
+            }
+            generateExpressionR(f.exprs[f.exprs.length - 1]);
+        }
+        byte[] res = method(ACC_PUBLIC | ACC_STATIC, name, descriptor(f.argCount), locals);
+        function = null;
+        code = null;
+        return res;
+    }
+
+    /*
+        The method f of the memoized function @f, with the result cache in
+        the field MEMO<@table>. The key goes in the slot after the arguments
+        and the result in the one after that:
+            key; astore k; getstatic MEMO; aload k; invokevirtual lookup; dup; astore r
+            getstatic MISS; if_acmpne _hit
+            args; invokestatic f$body; astore r; getstatic MEMO; aload k; aload r; invokevirtual store
+            _hit: aload r; areturn
+        where key is the argument of a function of one, else
+            push n; anewarray Object; (dup; push i; aload i; aastore)...; invokestatic key
+    */
+    private byte[] generateMemo(NanoMorphoAST.Function f, int table) {
+        int n = f.argCount;
+        int field = pool.field(className, NanoMorphoMemo.FIELD + table, "L" + TABLE + ";");
+        code = new Code();
+        Label hit = new Label();
+        if (n == 1) {
+            load(0);
+        } else {
+            pushInt(n);
+            code.op(ANEWARRAY, 0);
+            code.u2(pool.classRef(OBJECT));
+            for (int i = 0; i < n; i++) {
+                code.op(DUP, 1);
+                pushInt(i);
+                load(i);
+                code.op(AASTORE, -3);
+            }
+            invoke(MEMO, "key", "([L" + OBJECT + ";)L" + OBJECT + ";", 0);
+        }
+        store(n);
+        code.op(GETSTATIC, 1);
+        code.u2(field);
+        load(n);
+        code.op(INVOKEVIRTUAL, -1);
+        code.u2(pool.method(TABLE, "lookup", descriptor(1)));
+        code.op(DUP, 1);
+        store(n + 1);
+        code.op(GETSTATIC, 1);
+        code.u2(pool.field(MEMO, "MISS", "L" + OBJECT + ";"));
+        code.jump(IF_ACMPNE, hit, -2);
+        for (int i = 0; i < n; i++) load(i);
+        invoke(className, f.name + "$body", descriptor(n), 1 - n);
+        store(n + 1);
+        code.op(GETSTATIC, 1);
+        code.u2(field);
+        load(n);
+        load(n + 1);
+        code.op(INVOKEVIRTUAL, -3);
+        code.u2(pool.method(TABLE, "store", "(L" + OBJECT + ";L" + OBJECT + ";)V"));
+        code.place(hit);
+        load(n + 1);
+        code.op(ARETURN, -1);
+        byte[] res = method(ACC_PUBLIC | ACC_STATIC, f.name, descriptor(n), n + 2);
+        code = null;
+        return res;
+    }
+
+    // <clinit>: creates the literals held in static fields
+    private byte[] generateConstants() {
+        code = new Code();
+        int field = 0;
+        for (Object value : constants.keySet()) {
+            if (value instanceof Double) {
+                code.op(LDC2_W, 2);
+                code.u2(pool.doubleConst((Double) value));
+                invoke("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", -1);
+            } else if (value instanceof Character) {
+                pushInt((Character) value);
+                invoke("java/lang/Character", "valueOf", "(C)Ljava/lang/Character;", 0);
+            } else {
+                pushInt((Integer) value);
+                invoke("java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;", 0);
+            }
+            code.op(PUTSTATIC, -1);
+            code.u2(pool.field(className, "k" + field++, "L" + OBJECT + ";"));
+        }
+        code.op(RETURN, 0);
+        byte[] res = method(ACC_STATIC, "<clinit>", "()V", 0);
+        code = null;
+        return res;
+    }
+
+    // method_info for the code in @code
+    private byte[] method(int access, String name, String descriptor, int maxLocals) {
+        byte[] body = code.finish(name);
+        // LineNumberTable: a new entry only where the line changes
+        List<int[]> lines = new ArrayList<>();
+        for (int i = 0; i < code.lines.size(); i++) {
+            int[] l = code.lines.get(i);
+            int end = i + 1 < code.lines.size() ? code.lines.get(i + 1)[0] : body.length;
+            if (l[0] == end) continue;
+            if (function != null) lineTable.append(function.name).append("[f").append(function.argCount).append("] ")
+                .append(l[0]).append('-').append(end).append(' ').append(l[1]).append(':').append(l[2]).append('\n');
+            if (l[1] <= 0xFFFF && (lines.isEmpty() || lines.get(lines.size() - 1)[1] != l[1])) lines.add(l);
+        }
+        int lineAttr = lines.isEmpty() ? 0 : 8 + 4 * lines.size();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + lineAttr + 32);
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeShort(access);
+            data.writeShort(pool.utf8(name));
+            data.writeShort(pool.utf8(descriptor));
+            data.writeShort(1);
+            data.writeShort(pool.utf8("Code"));
+            data.writeInt(12 + body.length + lineAttr);
+            data.writeShort(code.maxDepth);
+            data.writeShort(maxLocals);
+            data.writeInt(body.length);
+            data.write(body);
+            data.writeShort(0);
+            if (lines.isEmpty()) {
+                data.writeShort(0);
+            } else {
+                data.writeShort(1);
+                data.writeShort(pool.utf8("LineNumberTable"));
+                data.writeInt(2 + 4 * lines.size());
+                data.writeShort(lines.size());
+                for (int[] l : lines) {
+                    data.writeShort(l[0]);
+                    data.writeShort(l[1]);
+                }
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Generates @expr leaving its value on the operand stack */
+    public void generateExpression(NanoMorphoAST.Expr expr) {
+        expr.accept(plain);
+    }
+
+    /** Generates @expr and returns its value from the function */
+    public void generateExpressionR(NanoMorphoAST.Expr expr) {
+        expr.accept(ret);
+    }
+
+    private void load(int slot) {
+        if (slot <= 3) {
+            code.op(ALOAD_0 + slot, 1);
+        } else if (slot <= 255) {
+            code.op(ALOAD, 1);
+            code.u1(slot);
+        } else {
+            code.op(WIDE, 0);
+            code.op(ALOAD, 1);
+            code.u2(slot);
+        }
+    }
+
+    private void store(int slot) {
+        if (slot <= 3) {
+            code.op(ASTORE_0 + slot, -1);
+        } else if (slot <= 255) {
+            code.op(ASTORE, -1);
+            code.u1(slot);
+        } else {
+            code.op(WIDE, 0);
+            code.op(ASTORE, -1);
+            code.u2(slot);
+        }
+    }
+
+    private void pushInt(int v) {
+        if (v >= -128 && v <= 127) {
+            code.op(BIPUSH, 1);
+            code.u1(v);
+        } else if (v >= -32768 && v <= 32767) {
+            code.op(SIPUSH, 1);
+            code.u2(v);
+        } else {
+            ldc(pool.integer(v));
+        }
+    }
+
+    private void ldc(int index) {
+        if (index <= 255) {
+            code.op(LDC, 1);
+            code.u1(index);
+        } else {
+            code.op(LDC_W, 1);
+            code.u2(index);
+        }
+    }
+
+    // invokestatic, @delta is what the call does to the stack depth
+    private void invoke(String owner, String name, String descriptor, int delta) {
+        code.op(INVOKESTATIC, delta);
+        code.u2(pool.method(owner, name, descriptor));
+    }
+
+    private void generateLiteral(String text) {
+        Object value = NanoMorphoRuntime.literal(text);
+        if (value == null) {
+            code.op(ACONST_NULL, 1);
+        } else if (value instanceof Boolean) {
+            code.op(GETSTATIC, 1);
+            code.u2(pool.field("java/lang/Boolean", value.equals(Boolean.TRUE) ? "TRUE" : "FALSE", "Ljava/lang/Boolean;"));
+        } else if (value instanceof String) {
+            ldc(pool.string((String) value));
+        } else {
+            Integer field = constants.get(value);
+            if (field == null) {
+                field = constants.size();
+                constants.put(value, field);
+            }
+            code.op(GETSTATIC, 1);
+            code.u2(pool.field(className, "k" + field, "L" + OBJECT + ";"));
+        }
+    }
+
+    /*
+        With --profile, adds one to the counter of a new point of @kind at
+        @line of the source:
+            getstatic PROFILE; push point; dup2; laload; lconst_1; ladd; lastore
+    */
+    private void count(NanoMorphoProfile.Kind kind, int line) {
+        if (profile == null) return;
+        int point = profile.point(kind, function.name + "[f" + function.argCount + "]", line);
+        code.op(GETSTATIC, 1);
+        code.u2(pool.field(className, NanoMorphoProfile.FIELD, "[J"));
+        pushInt(point);
+        code.op(DUP2, 2);
+        code.op(LALOAD, 0);
+        code.op(LCONST_1, 2);
+        code.op(LADD, -2);
+        code.op(LASTORE, -4);
+    }
+
+    // Pops the value on the stack and jumps to @target if it is true,
+    // or false if @ifTrue is false
+    private void generateTest(boolean ifTrue, Label target) {
+        invoke(RUNTIME, "truth", "(L" + OBJECT + ";)Z", 0);
+        code.jump(ifTrue ? IFNE : IFEQ, target, -1);
+    }
+
+    private void generateArgs(NanoMorphoAST.Expr[] args) {
+        for (NanoMorphoAST.Expr arg : args) generateExpression(arg);
+    }
+
+    private void generateCall(NanoMorphoAST.Call e) {
+        int argc = e.args.length;
+        String key = e.name + "[f" + argc + "]";
+        code.line(e.line, e.column);
+        generateArgs(e.args);
+        code.line(e.line, e.column);
+        count(NanoMorphoProfile.Kind.CALL, e.line);
+        if (functions.containsKey(key)) {
+            invoke(className, e.name, descriptor(argc), 1 - argc);
+            return;
+        }
+        String builtin = NanoMorphoRuntime.BUILTINS.get(key);
+        if (builtin == null) throw new LinkError("Undefined function " + key);
+        invoke(RUNTIME, builtin, descriptor(argc), 1 - argc);
+    }
+
+    // A call to the current function with nothing else on the stack can
+    // reuse the frame
+    private boolean isSelfTailCall(NanoMorphoAST.Call e) {
+        return tailCalls && code.depth == 0
+            && e.name.equals(function.name) && e.args.length == function.argCount;
+    }
+
+    /*
+        Self tail call: the new arguments are evaluated onto the stack and
+        stored into the argument slots from the last one, the locals are
+        reset to null and control jumps back to the start of the body.
+    */
+    private void generateSelfTailCall(NanoMorphoAST.Call e) {
+        code.line(e.line, e.column);
+        generateArgs(e.args);
+        code.line(e.line, e.column);
+        count(NanoMorphoProfile.Kind.CALL, e.line);
+        for (int i = e.args.length - 1; i >= 0; i--) store(i);
+        for (int i = 0; i < function.varCount; i++) {
+            code.op(ACONST_NULL, 1);
+            store(function.argCount + i);
+        }
+        code.jump(GOTO, entry, 0);
+    }
+
+    private class ExpressionGenerator implements NanoMorphoAST.Visitor<Void> {
+        public Void visitFetch(NanoMorphoAST.Fetch e) {
+            load(e.pos);
+            return null;
+        }
+
+        public Void visitStore(NanoMorphoAST.Store e) {
+            generateExpression(e.value);
+            code.op(DUP, 1);
+            store(e.pos);
+            return null;
+        }
+
+        public Void visitLiteral(NanoMorphoAST.Literal e) {
+            generateLiteral(e.value);
+            return null;
+        }
+
+        /*
+            Without else the value is the false condition:
+                cond; dup; truth; ifeq _else; pop; then; goto _end; _else: _end:
+        */
+        public Void visitIf(NanoMorphoAST.If e) {
+            Label labElse = new Label();
+            Label labEnd = new Label();
+            generateExpression(e.cond);
+            if (e.elsePart == null) code.op(DUP, 1);
+            generateTest(false, labElse);
+            if (e.elsePart == null) code.op(POP, -1);
+            generateExpression(e.thenPart);
+            code.jump(GOTO, labEnd, 0);
+            code.place(labElse);
+            if (e.elsePart != null) generateExpression(e.elsePart);
+            code.place(labEnd);
+            return null;
+        }
+
+        /*
+            The value of a loop is the condition that ended it:
+                _start: cond; dup; truth; ifeq _end; pop; body; pop; goto _start; _end:
+            With --profile the goto back counts the iteration.
+        */
+        public Void visitWhile(NanoMorphoAST.While e) {
+            Label labStart = new Label();
+            Label labEnd = new Label();
+            code.line(e.line, e.column);
+            code.place(labStart);
+            generateExpression(e.cond);
+            code.op(DUP, 1);
+            generateTest(false, labEnd);
+            code.op(POP, -1);
+            generateExpression(e.body);
+            code.op(POP, -1);
+            code.line(e.line, e.column);
+            count(NanoMorphoProfile.Kind.LOOP, e.line);
+            code.jump(GOTO, labStart, 0);
+            code.place(labEnd);
+            return null;
+        }
+
+        public Void visitBody(NanoMorphoAST.Body e) {
+            if (e.exprs.length == 0) {
+                code.op(ACONST_NULL, 1);
+                return null;
+            }
+            for (int i = 0; i < e.exprs.length; i++) {
+                if (i > 0) code.op(POP, -1);
+                generateExpression(e.exprs[i]);
+            }
+            return null;
+        }
+
+        public Void visitCall(NanoMorphoAST.Call e) {
+            generateCall(e);
+            return null;
+        }
+
+        // The code after a return is dead, but is generated as if the
+        // return had left a value
+        public Void visitReturn(NanoMorphoAST.Return e) {
+            generateExpressionR(e.value);
+            code.depth(1);
+            return null;
+        }
+
+        public Void visitAnd(NanoMorphoAST.And e) {
+            Label labEnd = new Label();
+            generateExpression(e.left);
+            code.op(DUP, 1);
+            generateTest(false, labEnd);
+            code.op(POP, -1);
+            generateExpression(e.right);
+            code.place(labEnd);
+            return null;
+        }
+
+        public Void visitOr(NanoMorphoAST.Or e) {
+            Label labEnd = new Label();
+            generateExpression(e.left);
+            code.op(DUP, 1);
+            generateTest(true, labEnd);
+            code.op(POP, -1);
+            generateExpression(e.right);
+            code.place(labEnd);
+            return null;
+        }
+
+        public Void visitNot(NanoMorphoAST.Not e) {
+            generateExpression(e.value);
+            invoke(RUNTIME, "not", descriptor(1), 0);
+            return null;
+        }
+    }
+
+    // Generates the expression and returns its value, leaving nothing on
+    // the stack. Self calls in tail position become jumps.
+    private class ReturnGenerator extends ExpressionGenerator {
+        public Void visitFetch(NanoMorphoAST.Fetch e) {
+            super.visitFetch(e);
+            code.op(ARETURN, -1);
+            return null;
+        }
+
+        public Void visitStore(NanoMorphoAST.Store e) {
+            super.visitStore(e);
+            code.op(ARETURN, -1);
+            return null;
+        }
+
+        public Void visitLiteral(NanoMorphoAST.Literal e) {
+            super.visitLiteral(e);
+            code.op(ARETURN, -1);
+            return null;
+        }
+
+        public Void visitIf(NanoMorphoAST.If e) {
+            Label labElse = new Label();
+            generateExpression(e.cond);
+            if (e.elsePart == null) code.op(DUP, 1);
+            generateTest(false, labElse);
+            if (e.elsePart == null) code.op(POP, -1);
+            generateExpressionR(e.thenPart);
+            code.place(labElse);
+            if (e.elsePart != null) {
+                generateExpressionR(e.elsePart);
+            } else {
+                code.op(ARETURN, -1);
+            }
+            return null;
+        }
+
+        public Void visitWhile(NanoMorphoAST.While e) {
+            super.visitWhile(e);
+            code.op(ARETURN, -1);
+            return null;
+        }
+
+        public Void visitBody(NanoMorphoAST.Body e) {
+            if (e.exprs.length == 0) {
+                code.op(ACONST_NULL, 1);
+                code.op(ARETURN, -1);
+                return null;
+            }
+            for (int i = 0; i < e.exprs.length - 1; i++) {
+                generateExpression(e.exprs[i]);
+                code.op(POP, -1);
+            }
+            generateExpressionR(e.exprs[e.exprs.length - 1]);
+            return null;
+        }
+
+        public Void visitCall(NanoMorphoAST.Call e) {
+            if (isSelfTailCall(e)) {
+                generateSelfTailCall(e);
+                return null;
+            }
+            super.visitCall(e);
+            code.op(ARETURN, -1);
+            return null;
+        }
+
+        public Void visitReturn(NanoMorphoAST.Return e) {
+            generateExpressionR(e.value);
+            return null;
+        }
+
+        public Void visitAnd(NanoMorphoAST.And e) {
+            super.visitAnd(e);
+            code.op(ARETURN, -1);
+            return null;
+        }
+
+        public Void visitOr(NanoMorphoAST.Or e) {
+            super.visitOr(e);
+            code.op(ARETURN, -1);
+            return null;
+        }
+
+        public Void visitNot(NanoMorphoAST.Not e) {
+            super.visitNot(e);
+            code.op(ARETURN, -1);
+            return null;
+        }
+    }
+
+    // A position in the code of one method
+    private static final class Label {
+        int pos = -1;
+        // Stack depth at the label, -1 until a jump or the code reaches it
+        int depth = -1;
+        // Positions of the jump instructions and of their offsets
+        final List<int[]> fixups = new ArrayList<>();
+    }
+
+    // Bytecode of one method with its stack depth
+    private static final class Code {
+        private byte[] bytes = new byte[256];
+        private int length = 0;
+        int depth = 0;
+        int maxDepth = 0;
+        private final List<Label> labels = new ArrayList<>();
+        // {start, line, column} of the code from start on, by start
+        final List<int[]> lines = new ArrayList<>();
+
+        void u1(int v) {
+            if (length == bytes.length) bytes = Arrays.copyOf(bytes, 2 * length);
+            bytes[length++] = (byte) v;
+        }
+
+        void u2(int v) {
+            u1(v >> 8);
+            u1(v);
+        }
+
+        // The code from here on is compiled from @line, @column, unless not known (0)
+        void line(int line, int column) {
+            if (line <= 0) return;
+            int[] last = lines.isEmpty() ? null : lines.get(lines.size() - 1);
+            if (last != null && last[1] == line && last[2] == column) return;
+            if (last != null && last[0] == length) lines.remove(lines.size() - 1);
+            lines.add(new int[] {length, line, column});
+        }
+
+        void depth(int delta) {
+            depth += delta;
+            if (depth > maxDepth) maxDepth = depth;
+        }
+
+        void op(int opcode, int delta) {
+            u1(opcode);
+            depth(delta);
+        }
+
+        void jump(int opcode, Label target, int delta) {
+            int at = length;
+            op(opcode, delta);
+            target.depth = depth;
+            if (target.pos >= 0) {
+                u2(target.pos - at);
+            } else {
+                target.fixups.add(new int[] {at, length});
+                u2(0);
+                if (!labels.contains(target)) labels.add(target);
+            }
+        }
+
+        void place(Label label) {
+            label.pos = length;
+            if (label.depth >= 0) depth = label.depth;
+            else label.depth = depth;
+        }
+
+        // The finished code, with the jumps to labels resolved
+        byte[] finish(String function) {
+            if (length > 65535) throw new LinkError("Function " + function + " is too large for a JVM method");
+            for (Label label : labels) {
+                for (int[] f : label.fixups) {
+                    int offset = label.pos - f[0];
+                    if (offset > Short.MAX_VALUE || offset < Short.MIN_VALUE)
+                        throw new LinkError("Function " + function + " is too large for a JVM method");
+                    bytes[f[1]] = (byte) (offset >> 8);
+                    bytes[f[1] + 1] = (byte) offset;
+                }
+            }
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+
+    // Constant pool of the class, each constant added once
+    private static final class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream data = new DataOutputStream(bytes);
+        private final Map<String, Integer> index = new HashMap<>();
+        private int count = 1;
+
+        private int add(String key, int slots, byte[] entry) {
+            Integer i = index.get(key);
+            if (i != null) return i;
+            int res = count;
+            bytes.write(entry, 0, entry.length);
+            count += slots;
+            if (count > 65535) throw new LinkError("Too many constants for a JVM class");
+            index.put(key, res);
+            return res;
+        }
+
+        private static DataOutputStream entry(ByteArrayOutputStream b, int tag) throws IOException {
+            DataOutputStream d = new DataOutputStream(b);
+            d.writeByte(tag);
+            return d;
+        }
+
+        // Entry of @tag followed by the constant pool indexes @refs
+        private static byte[] entry(int tag, int... refs) {
+            try {
+                ByteArrayOutputStream b = new ByteArrayOutputStream();
+                DataOutputStream d = entry(b, tag);
+                for (int r : refs) d.writeShort(r);
+                return b.toByteArray();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        int utf8(String s) {
+            Integer i = index.get("U" + s);
+            if (i != null) return i;
+            try {
+                ByteArrayOutputStream b = new ByteArrayOutputStream();
+                entry(b, 1).writeUTF(s);
+                return add("U" + s, 1, b.toByteArray());
+            } catch (UTFDataFormatException e) {
+                throw new LinkError("String constant too long for a JVM class");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        int integer(int v) {
+            try {
+                ByteArrayOutputStream b = new ByteArrayOutputStream();
+                entry(b, 3).writeInt(v);
+                return add("I" + v, 1, b.toByteArray());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        int doubleConst(double v) {
+            try {
+                ByteArrayOutputStream b = new ByteArrayOutputStream();
+                entry(b, 6).writeDouble(v);
+                return add("D" + Double.doubleToRawLongBits(v), 2, b.toByteArray());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        int classRef(String name) {
+            int n = utf8(name);
+            return add("C" + name, 1, entry(7, n));
+        }
+
+        int string(String s) {
+            int n = utf8(s);
+            return add("S" + s, 1, entry(8, n));
+        }
+
+        private int nameAndType(String name, String descriptor) {
+            int n = utf8(name);
+            int d = utf8(descriptor);
+            return add("N" + name + " " + descriptor, 1, entry(12, n, d));
+        }
+
+        int field(String owner, String name, String descriptor) {
+            int c = classRef(owner);
+            int nt = nameAndType(name, descriptor);
+            return add("F" + owner + "." + name + " " + descriptor, 1, entry(9, c, nt));
+        }
+
+        int method(String owner, String name, String descriptor) {
+            int c = classRef(owner);
+            int nt = nameAndType(name, descriptor);
+            return add("M" + owner + "." + name + descriptor, 1, entry(10, c, nt));
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeShort(count);
+            bytes.writeTo(out);
+        }
+    }
+
+    // Each program gets a loader of its own, so programs with the same
+    // module name can be loaded side by side
+    private static final class ProgramLoader extends ClassLoader {
+        ProgramLoader() {
+            super(NanoMorphoJvm.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /** Defines the class @name from @bytes in a fresh class loader */
+    public static Class<?> load(String name, byte[] bytes) {
+        return new ProgramLoader().define(name, bytes);
+    }
+
+    /** Parses @fileName and compiles it to a loaded class */
+    public static Class<?> compile(String fileName, NanoMorphoCompiler.Options options) throws IOException {
+        NanoMorphoJvm jvm = create(fileName, options);
+        byte[] bytes = jvm.generateProgram(NanoMorphoCompiler.parse(fileName, options, NanoMorphoRuntime.BUILTINS::containsKey));
+        return jvm.load(bytes);
+    }
+
+    /** Loads @bytes, the class generateProgram gave, with its profile counters and result caches if any */
+    public Class<?> load(byte[] bytes) {
+        Class<?> program = load(getClassName(), bytes);
+        try {
+            if (profile != null) profile.attach(program);
+            if (memo != null) memo.attach(program);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        return program;
+    }
+
+    /** Fresh generator for the source file @fileName */
+    public static NanoMorphoJvm create(String fileName, NanoMorphoCompiler.Options options) {
+        NanoMorphoJvm jvm = new NanoMorphoJvm(NanoMorphoCompiler.moduleName(fileName), Paths.get(fileName).getFileName().toString(), options);
+        if (options.memo > 0) jvm.setSource(NanoMorphoCompiler.readLines(fileName));
+        return jvm;
+    }
+
+    /**
+     * Runs main() of @program on a thread with a large stack and flushes
+     * the output. An error in the program is thrown from here.
+     */
+    public static Object run(Class<?> program) throws Throwable {
+        Method main = program.getMethod("main");
+        Object[] result = new Object[1];
+        Throwable[] failure = new Throwable[1];
+        Thread t = new Thread(null, () -> {
+            try {
+                result[0] = main.invoke(null);
+            } catch (InvocationTargetException e) {
+                failure[0] = e.getCause();
+            } catch (Throwable e) {
+                failure[0] = e;
+            } finally {
+                NanoMorphoRuntime.flush();
+            }
+        }, "morpho-main", STACK_SIZE);
+        t.start();
+        t.join();
+        if (failure[0] != null) throw failure[0];
+        return result[0];
+    }
+
+    public static void main(String[] args) throws Throwable {
+        NanoMorphoCompiler.Options options = new NanoMorphoCompiler.Options();
+        Path classDir = null;
+        String input = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-d") && i + 1 < args.length) classDir = Paths.get(args[++i]);
+            else if (options.set(args[i])) continue;
+            else if (args[i].startsWith("--")) NanoMorphoCompiler.unknownOption(args[i]);
+            else input = args[i];
+        }
+        if (input == null) {
+            System.err.println("Usage: java NanoMorphoJvm [-O] [--profile] [--memo[=N]] [--memo-stats] [-d dir] file.s");
+            System.exit(1);
+        }
+
+        NanoMorphoJvm jvm = create(input, options);
+        Class<?> program;
+        try {
+            byte[] bytes = jvm.generateProgram(NanoMorphoCompiler.parse(input, options, NanoMorphoRuntime.BUILTINS::containsKey));
+            if (classDir != null) {
+                Path file = classDir.resolve(jvm.className + ".class");
+                Files.createDirectories(file.getParent());
+                Files.write(file, bytes);
+                Files.write(classDir.resolve(jvm.className + ".lines"), jvm.getLineTable().getBytes(StandardCharsets.UTF_8));
+            }
+            program = jvm.load(bytes);
+        } catch (FileNotFoundException e) {
+            System.err.println("File not found: " + input);
+            System.exit(1);
+            return;
+        } catch (NanoMorphoParser.SyntaxError | LinkError e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        } catch (StackOverflowError e) {
+            System.err.println("Error: nested too deeply to compile");
+            System.exit(1);
+            return;
+        }
+
+        int status = 0;
+        try {
+            run(program);
+        } catch (StackOverflowError e) {
+            System.err.println("Error: stack overflow");
+            status = 1;
+        } catch (RuntimeException e) {
+            System.err.println("Error: " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+            status = 1;
+        }
+        // Also when the program failed, up to where it failed
+        // The report is still useful without the text of the lines
+        if (jvm.getProfile() != null) System.err.println(jvm.getProfile().report(NanoMorphoCompiler.readLines(input)));
+        if (options.memoStats && jvm.getMemo() != null) System.err.println(jvm.getMemo().report());
+        if (status != 0) System.exit(status);
+    }
+}
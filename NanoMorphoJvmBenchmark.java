@@ -0,0 +1,150 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares running NanoMorpho programs with java -jar morpho.jar against
+ * the JVM backend, NanoMorphoJvm.
+ *
+ * For every program it times, best of the given number of runs:
+ *   morpho.jar   a new JVM running the .mexe made by morpho.jar -c
+ *   jvm process  a new JVM running java NanoMorphoJvm file.s
+ *   jvm first    compiling, loading and running the program in this JVM
+ *   jvm warm     running the loaded program again, after the JIT got to it
+ * and checks that morpho.jar and the JVM backend print the same.
+ *
+ * Without files it uses test/testFIBO.s, test/testNANOMORPHO.s and a
+ * recursive fibo(30) written to a temporary directory.
+ *
+ * Usage: java NanoMorphoJvmBenchmark [-n runs] [-jar morpho.jar] [file.s ...]
+ */
+public class NanoMorphoJvmBenchmark {
+
+    /** Writes a program printing fibo(@n), computed as in test/testFIBO.s */
+    public static void writeFibo(Writer out, int n) throws IOException {
+        out.write("main () {\n    writeln(fibo(" + n + "));\n}\n\n");
+        out.write("fibo(n) {\n");
+        out.write("    if (n <= 2) {\n");
+        out.write("        return 1;\n");
+        out.write("    } else {\n");
+        out.write("        return fibo(n-1) + fibo(n-2);\n");
+        out.write("    };\n");
+        out.write("}\n");
+    }
+
+    private static final String JAVA = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+
+    // Runs @command in @dir, returns its standard output and sets @nanos[0]
+    // to the wall clock time
+    private static String exec(List<String> command, Path dir, long[] nanos) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(command).directory(dir.toFile())
+            .redirectError(ProcessBuilder.Redirect.DISCARD);
+        long t0 = System.nanoTime();
+        Process p = pb.start();
+        String output;
+        try (InputStream in = p.getInputStream()) {
+            output = new String(in.readAllBytes());
+        }
+        int status = p.waitFor();
+        nanos[0] = System.nanoTime() - t0;
+        if (status != 0) throw new IOException(String.join(" ", command) + " exited with status " + status);
+        return output;
+    }
+
+    // Best time of @runs runs of @command, the output of the last run in @output[0]
+    private static long best(List<String> command, Path dir, int runs, String[] output) throws IOException, InterruptedException {
+        long best = Long.MAX_VALUE;
+        long[] t = new long[1];
+        for (int r = 0; r < runs; r++) {
+            output[0] = exec(command, dir, t);
+            best = Math.min(best, t[0]);
+        }
+        return best;
+    }
+
+    // Runs @program in this JVM with its output in @buffer
+    private static long runInProcess(Class<?> program, ByteArrayOutputStream buffer) throws Throwable {
+        buffer.reset();
+        long t0 = System.nanoTime();
+        NanoMorphoJvm.run(program);
+        return System.nanoTime() - t0;
+    }
+
+    public static void main(String[] args) throws Throwable {
+        int runs = 5;
+        Path morphoJar = Paths.get("morpho.jar").toAbsolutePath();
+        List<Path> sources = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n") && i + 1 < args.length) runs = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-jar") && i + 1 < args.length) morphoJar = Paths.get(args[++i]).toAbsolutePath();
+            else sources.add(Paths.get(args[i]).toAbsolutePath());
+        }
+
+        Path dir = Files.createTempDirectory("nanomorpho-jvm-bench");
+        dir.toFile().deleteOnExit();
+        if (sources.isEmpty()) {
+            sources.add(Paths.get("test/testFIBO.s").toAbsolutePath());
+            sources.add(Paths.get("test/testNANOMORPHO.s").toAbsolutePath());
+            Path fibo = dir.resolve("fibo30.s");
+            try (Writer w = new FileWriter(fibo.toFile())) {
+                writeFibo(w, 30);
+            }
+            sources.add(fibo);
+        }
+
+        NanoMorphoCompiler.Options options = new NanoMorphoCompiler.Options();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream stdout = NanoMorphoRuntime.out;
+        // The processes run in the temporary directory
+        List<String> classPath = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator))
+            classPath.add(Paths.get(entry).toAbsolutePath().toString());
+        long[] t = new long[1];
+
+        System.out.printf("%-16s %12s %12s %12s %12s%n", "program", "morpho.jar", "jvm process", "jvm first", "jvm warm");
+        for (Path source : sources) {
+            String module = NanoMorphoCompiler.moduleName(source.toString());
+            Path masm = dir.resolve(module + ".masm");
+            try (NanoMorphoEmitter out = NanoMorphoEmitter.toFile(masm)) {
+                NanoMorphoCompiler.compile(source.toString(), out, options);
+            }
+            List<String> assemble = List.of(JAVA, "-jar", morphoJar.toString(), "-c", masm.getFileName().toString());
+            exec(assemble, dir, t);
+            new File(masm.toString()).deleteOnExit();
+            new File(dir.resolve(module + ".mexe").toString()).deleteOnExit();
+
+            String[] morphoOutput = new String[1];
+            long morpho = best(List.of(JAVA, "-jar", morphoJar.toString(), module), dir, runs, morphoOutput);
+            String[] processOutput = new String[1];
+            long process = best(List.of(JAVA, "-cp", String.join(File.pathSeparator, classPath), "NanoMorphoJvm", source.toString()), dir, runs, processOutput);
+
+            long first, warm = Long.MAX_VALUE;
+            String output;
+            NanoMorphoRuntime.out = new PrintStream(buffer, false);
+            try {
+                long t0 = System.nanoTime();
+                Class<?> program = NanoMorphoJvm.compile(source.toString(), options);
+                runInProcess(program, buffer);
+                first = System.nanoTime() - t0;
+                for (int r = 0; r < runs; r++) warm = Math.min(warm, runInProcess(program, buffer));
+                output = buffer.toString();
+            } finally {
+                NanoMorphoRuntime.out = stdout;
+            }
+
+            System.out.printf("%-16s %9.1f ms %9.1f ms %9.1f ms %9.3f ms%n",
+                module, morpho / 1e6, process / 1e6, first / 1e6, warm / 1e6);
+            if (!output.equals(morphoOutput[0]) || !output.equals(processOutput[0]))
+                System.out.println("  output differs from morpho.jar");
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures time and heap allocation of the lexer and the parser.
+ *
+ * Writes the synthetic program of NanoMorphoBenchmark, then scans it
+ * (tokens only) and parses it repeatedly. Allocation is counted per
+ * thread by the JVM (com.sun.management.ThreadMXBean), so it covers
+ * everything the lexer and parser allocate, including the source buffer.
+ *
+ * Usage: java NanoMorphoLexerBenchmark [functions] [rounds]
+ */
+public class NanoMorphoLexerBenchmark {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Scans @fileName to the end, returns the number of tokens
+    private static int scan(String fileName) throws IOException {
+        NanoMorphoLexer lexer = NanoMorphoLexer.newLexer(fileName);
+        int tokens = 0;
+        while (lexer.getToken() != NanoMorphoLexer.EOF) {
+            lexer.next();
+            tokens++;
+        }
+        lexer.yyclose();
+        return tokens;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int functions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        File src = File.createTempFile("nanomorpho-lex", ".s");
+        src.deleteOnExit();
+        try (Writer w = new FileWriter(src)) {
+            NanoMorphoBenchmark.writeSynthetic(w, functions);
+        }
+        String fileName = src.getPath();
+
+        int tokens = 0;
+        long scanBest = Long.MAX_VALUE, scanBytes = 0;
+        long parseBest = Long.MAX_VALUE, parseBytes = 0;
+        for (int r = 0; r < rounds; r++) {
+            long a0 = allocated();
+            long t0 = System.nanoTime();
+            tokens = scan(fileName);
+            long t1 = System.nanoTime();
+            long a1 = allocated();
+            new NanoMorphoParser().parse(fileName);
+            long t2 = System.nanoTime();
+            long a2 = allocated();
+            // First half of the rounds is warmup
+            if (r >= rounds / 2) {
+                scanBest = Math.min(scanBest, t1 - t0);
+                parseBest = Math.min(parseBest, t2 - t1);
+                scanBytes = a1 - a0;
+                parseBytes = a2 - a1;
+            }
+        }
+        System.out.printf("source: %d functions, %d bytes, %d tokens%n", functions, src.length(), tokens);
+        System.out.printf("scan:   best %.3f ms, %d bytes allocated, %.1f bytes/token%n",
+            scanBest / 1e6, scanBytes, (double) scanBytes / tokens);
+        System.out.printf("parse:  best %.3f ms, %d bytes allocated, %.1f bytes/token%n",
+            parseBest / 1e6, parseBytes, (double) parseBytes / tokens);
+    }
+}
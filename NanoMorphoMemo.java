@@ -0,0 +1,170 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result caches of the functions a program compiled with --memo
+ * memoizes, and the report of their hits and misses.
+ *
+ * A memoized function f is compiled to two methods: f$body, the function
+ * as it is written, and f, which looks its arguments up in the Table held
+ * in a static field of the class, FIELD followed by a number, and calls
+ * f$body only on a miss. Calls, recursive ones included, go to f; self
+ * tail calls stay loops in f$body.
+ *
+ * Arguments are compared as the builtin == compares them, except that
+ * pairs are only the same pair and numbers only the same number of the
+ * same type, so 1 and 1.0 are looked up apart. A function that makes
+ * pairs, by ':' or through a function it calls, is not memoized, since
+ * it would then give the same pair where it gave a new one before.
+ *
+ * Each table holds at most a fixed number of results, set by --memo=N,
+ * and evicts the one least recently used to make room.
+ *
+ * NanoMorphoCompiler memoizes the same functions the same way, with a
+ * java.util.LinkedHashMap in a global variable of the Morpho program,
+ * GLOBAL followed by a number, for each table. Those do not count their
+ * hits, so only choicesReport applies to them.
+ */
+public final class NanoMorphoMemo {
+
+    /** Prefix of the static fields of the generated class holding the tables */
+    public static final String FIELD = "MEMO";
+
+    /** Prefix of the global variables of a Morpho program holding the tables */
+    public static final String GLOBAL = "memo_";
+
+    /** Results kept per function without --memo=N */
+    public static final int DEFAULT_SIZE = 1 << 16;
+
+    /** What Table.lookup gives for arguments it has no result for */
+    public static final Object MISS = new Object();
+
+    /** Results of one function by arguments, the least recently used first */
+    public static final class Table extends LinkedHashMap<Object, Object> {
+        private final String function;
+        private final int size;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        Table(String function, int size) {
+            super(16, 0.75f, true);
+            this.function = function;
+            this.size = size;
+        }
+
+        /** The result for the arguments @key, or MISS */
+        public Object lookup(Object key) {
+            Object value = get(key);
+            if (value != null || containsKey(key)) {
+                hits++;
+                return value;
+            }
+            misses++;
+            return MISS;
+        }
+
+        /** Keeps @value as the result for the arguments @key */
+        public void store(Object key, Object value) {
+            put(key, value);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+            if (size() <= size) return false;
+            evictions++;
+            return true;
+        }
+    }
+
+    // The arguments of a function of two or more, as one key
+    private static final class Key {
+        private final Object[] args;
+        private final int hash;
+
+        Key(Object[] args) {
+            this.args = args;
+            this.hash = Arrays.hashCode(args);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(args, ((Key) o).args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /** The key of @args, the arguments of a function of two or more; one of one argument is the argument */
+    public static Object key(Object[] args) {
+        return new Key(args);
+    }
+
+    private final String sourceFile;
+    private final int size;
+    private final List<Table> tables = new ArrayList<>();
+    // What NanoMorphoPurity.memoize made of each candidate
+    private final List<String> choices = new ArrayList<>();
+
+    /** Caches of a program compiled from @sourceFile, of @size results each */
+    public NanoMorphoMemo(String sourceFile, int size) {
+        this.sourceFile = sourceFile;
+        this.size = size;
+    }
+
+    /** Results kept per function */
+    public int size() {
+        return size;
+    }
+
+    /** Adds a table for @function, e.g. "fibo[f1]", and returns the number of its field */
+    public int table(String function) {
+        tables.add(new Table(function, size));
+        return tables.size() - 1;
+    }
+
+    /** Lines saying which functions were memoized and why, for NanoMorphoPurity.memoize to fill */
+    public List<String> choices() {
+        return choices;
+    }
+
+    /** Gives the loaded class @program, generated with these caches, its tables */
+    public void attach(Class<?> program) throws ReflectiveOperationException {
+        for (int i = 0; i < tables.size(); i++)
+            program.getField(FIELD + i).set(null, tables.get(i));
+    }
+
+    /**
+     * The choices, then lookups of every memoized function, most first:
+     *   memo of testFIBO.s, 65536 results per function:
+     *     fibo[f1]: memoized, calls itself
+     *     function              hits     misses  hit rate  evictions
+     *     fibo[f1]                 4          7     36.4%          0
+     */
+    public String report() {
+        List<Table> sorted = new ArrayList<>(tables);
+        sorted.sort((a, b) -> Long.compare(b.hits + b.misses, a.hits + a.misses));
+        StringBuilder sb = new StringBuilder(choicesReport());
+        sb.append(String.format("%n  %-15s %10s %10s %9s %10s", "function", "hits", "misses", "hit rate", "evictions"));
+        for (Table t : sorted) {
+            long lookups = t.hits + t.misses;
+            sb.append(String.format("%n  %-15s %10d %10d %8.1f%% %10d", t.function, t.hits, t.misses,
+                lookups == 0 ? 0.0 : 100.0 * t.hits / lookups, t.evictions));
+        }
+        return sb.toString();
+    }
+
+    /** The first lines of report, the choices, for tables that do not count their lookups */
+    public String choicesReport() {
+        StringBuilder sb = new StringBuilder("memo of ").append(sourceFile).append(", ")
+            .append(size).append(" results per function:");
+        for (String line : choices) sb.append(String.format("%n  %s", line));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,491 @@
+import is.hi.cs.morpho.DebugInfo;
+import is.hi.cs.morpho.Loader;
+import is.hi.cs.morpho.Morpho;
+import is.hi.cs.morpho.Operation;
+import is.hi.cs.morpho.Operations;
+import is.hi.cs.morpho.Saver;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Writes a NanoMorpho program directly as a Morpho executable (.mexe),
+ * skipping the .masm text and the second JVM running morpho.jar -c.
+ *
+ * The function bodies come from NanoMorphoCompiler as instruction lists.
+ * Labels and calls between functions of the program are resolved here to
+ * the relative offsets the VM uses, other calls go through the export
+ * table of BASIS, and the code is linked the way the Morpho assembler
+ * does it: a start stub that calls main and exits, the functions in
+ * source order, then BASIS. An operation equal to an earlier one is
+ * written as a reference to it.
+ *
+ * The operation classes, BASIS and the serialization of operations are
+ * taken from morpho.jar, so it has to be on the class path:
+ *
+ *   java -cp .:morpho.jar NanoMorphoMexe [-O] [--profile] [--memo[=N]] [-o out.mexe] file.s
+ *   java -cp .:morpho.jar NanoMorphoMexe --compare a.mexe b.mexe
+ *   java -cp .:morpho.jar NanoMorphoMexe --exports
+ *
+ * --compare checks that two executables are the same apart from the
+ * numbering of the BASIS keys and global variables, which morpho.jar
+ * picks at random on every link, and exits with status 1 if they are not. --exports prints the
+ * functions BASIS exports, one per line, for NanoMorphoBasis.
+ */
+public class NanoMorphoMexe {
+
+    /** A call that neither the program nor BASIS defines */
+    public static class LinkError extends RuntimeException {
+        public LinkError(String message) {
+            super(message);
+        }
+    }
+
+    // Executable header, as read by is.hi.cs.morpho.Morpho
+    private static final int MAGIC = 1234567891;
+    private static final String TYPE = "Morpho";
+    private static final int[] VERSION = {2, 0, 0};
+    // Tags in front of each operation: a new one, or the index of an equal earlier one
+    private static final byte NEW_OP = (byte) 0x80;
+    private static final byte SHARED_OP = (byte) 0x81;
+    // BASIS keys are numbered from here when it is linked
+    private static final int FIRST_KEY = 1000000;
+    // What the assembler records as the function of every instruction
+    private static final String UNKNOWN_FUNCTION = "unknown function";
+    // (Call main 0) (MakeVal 0) (CallR exit 1), NanoMorphoCompiler.START
+    // instead of main with --profile or --memo
+    private static final int STUB_SIZE = 3;
+
+    // BASIS is loaded once per JVM and only read afterwards
+    private static final class Basis {
+        static final is.hi.cs.morpho.Module module;
+        static final Operation[] code;
+        static final DebugInfo debug;
+        // First key after those of BASIS, for the global variables of the program
+        static final int nextKey;
+
+        static {
+            try {
+                registerOps();
+                module = Morpho.getBasis();
+                code = module.getCode();
+                debug = module.getDebugInfo();
+                int max = FIRST_KEY - 1;
+                for (Operation op : code) {
+                    if (!keyed(Operations.findOpName(op))) continue;
+                    for (int k = 0; k < op.argCount(); k++)
+                        if (op.getArg(k) instanceof Integer) max = Math.max(max, (Integer) op.getArg(k));
+                }
+                nextKey = max + 1;
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot load BASIS from morpho.jar", e);
+            }
+        }
+    }
+
+    // Operations whose int arguments from FIRST_KEY on are keys, as
+    // opposed to values, offsets and argument counts
+    private static boolean keyed(String name) {
+        return !name.startsWith("MakeVal") && !name.startsWith("Call") && !name.startsWith("Go");
+    }
+
+    // Loader.registerOps fills the name -> class table of Operations but
+    // is not public; morpho.jar calls it itself before loading anything
+    private static void registerOps() throws Exception {
+        Method m = Loader.class.getDeclaredMethod("registerOps");
+        m.setAccessible(true);
+        m.invoke(null);
+    }
+
+    private final List<Operation> code = new ArrayList<>();
+    // "name[fN]" -> index of the first instruction of the function
+    private final Map<String, Integer> functions = new HashMap<>();
+    // Global variable -> its key, numbered after those of BASIS
+    private final Map<String, Integer> globals = new HashMap<>();
+    // File name and line numbers of the program's instructions
+    private final DebugInfo debug = new DebugInfo();
+
+    /**
+     * Links @bodies, the code of the functions of @program, and writes the
+     * executable to @out. Debug information refers to the lines of
+     * @name.masm as NanoMorphoCompiler would write it.
+     */
+    public static void write(String name, NanoMorphoAST.Function[] program, List<List<NanoMorphoInstr>> bodies,
+            OutputStream out) throws IOException {
+        Operation[] basis = Basis.code;
+        NanoMorphoMexe linker = new NanoMorphoMexe();
+        try {
+            linker.link(name + ".masm", program, bodies);
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(out)));
+            Saver saver = new Saver(data);
+            saver.saveInt(MAGIC);
+            saver.saveString(TYPE);
+            for (int v : VERSION) saver.saveInt(v);
+            saver.saveInt(0);   // entry point: the stub
+            int size = linker.code.size();
+            saver.saveInt(size + basis.length);
+            Map<Operation, Integer> first = new HashMap<>();
+            for (int i = 0; i < size + basis.length; i++) {
+                Operation op = i < size ? linker.code.get(i) : basis[i - size];
+                Integer earlier = first.putIfAbsent(op, i);
+                if (earlier == null) {
+                    saver.saveByte(NEW_OP);
+                    saver.saveOperation(op);
+                } else {
+                    saver.saveByte(SHARED_OP);
+                    saver.saveInt(earlier);
+                }
+            }
+            linker.debug.setLineCount(size);
+            linker.debug.append(Basis.debug);
+            linker.debug.save(saver);
+            data.close();
+        } catch (IOException | LinkError e) {
+            throw e;
+        } catch (Exception e) {
+            // Operations and Saver declare Exception for unknown operations
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Compiles the source file @fileName to the executable @output */
+    public static void compile(String fileName, Path output, NanoMorphoCompiler.Options options) throws IOException {
+        NanoMorphoAST.Function[] program = NanoMorphoCompiler.parse(fileName, options, name -> Basis.module.hasExport(name));
+        NanoMorphoCompiler compiler = NanoMorphoCompiler.create(NanoMorphoEmitter.toNull(), options, fileName);
+        compiler.memoize(program);
+        // The functions in the order NanoMorphoCompiler writes them
+        List<NanoMorphoAST.Function> functions = new ArrayList<>();
+        List<List<NanoMorphoInstr>> bodies = new ArrayList<>();
+        for (NanoMorphoAST.Function f : program) {
+            if (compiler.isMemoized(f)) {
+                functions.add(new NanoMorphoAST.Function(NanoMorphoCompiler.memoBody(f.name), f.argCount, f.varCount, f.exprs));
+                bodies.add(compiler.generateCode(f));
+                functions.add(f);
+                bodies.add(compiler.generateMemo(f));
+            } else {
+                functions.add(f);
+                bodies.add(compiler.generateCode(f));
+            }
+        }
+        for (NanoMorphoAST.Function f : compiler.supportFunctions()) {
+            functions.add(f);
+            bodies.add(compiler.generateSupport(f));
+        }
+        try (OutputStream out = Files.newOutputStream(output)) {
+            write(NanoMorphoCompiler.moduleName(fileName), functions.toArray(new NanoMorphoAST.Function[0]), bodies, out);
+        }
+    }
+
+    // Instructions the assembler leaves out: everything after (Go _n) up to
+    // the next label, and (Fetch n) or (Store n) right after an instruction
+    // that already has slot n in the accumulator
+    private static boolean[] dropped(List<NanoMorphoInstr> body) {
+        boolean[] res = new boolean[body.size()];
+        boolean dead = false;
+        NanoMorphoInstr prev = null;
+        for (int i = 0; i < res.length; i++) {
+            NanoMorphoInstr in = body.get(i);
+            if (in.isLabel()) {
+                dead = false;
+                prev = null;
+                continue;
+            }
+            res[i] = dead || (prev != null && holdsSlot(prev, in));
+            if (res[i]) continue;
+            prev = in;
+            if (in.op == NanoMorphoInstr.Op.GO) dead = true;
+        }
+        return res;
+    }
+
+    private static boolean holdsSlot(NanoMorphoInstr prev, NanoMorphoInstr in) {
+        if (in.op != NanoMorphoInstr.Op.FETCH && in.op != NanoMorphoInstr.Op.STORE) return false;
+        switch (prev.op) {
+            case FETCH: case FETCHP: case STORE: case STOREP:
+                return prev.arg == in.arg;
+            default:
+                return false;
+        }
+    }
+
+    private void link(String file, NanoMorphoAST.Function[] program, List<List<NanoMorphoInstr>> bodies) throws Exception {
+        // First pass: where every function starts and every label is
+        List<Map<Integer, Integer>> labels = new ArrayList<>();
+        List<boolean[]> dropped = new ArrayList<>();
+        int pos = STUB_SIZE;
+        for (int i = 0; i < program.length; i++) {
+            functions.put(program[i].name + "[f" + program[i].argCount + "]", pos);
+            List<NanoMorphoInstr> body = bodies.get(i);
+            boolean[] skip = dropped(body);
+            Map<Integer, Integer> at = new HashMap<>();
+            for (int j = 0; j < body.size(); j++) {
+                if (body.get(j).isLabel()) at.put(body.get(j).arg, pos);
+                else if (!skip[j]) pos++;
+            }
+            labels.add(at);
+            dropped.add(skip);
+        }
+        int basisStart = pos;
+
+        Integer main = functions.get("main[f0]");
+        if (main == null) throw new LinkError("A function main() with zero arguments was not found.");
+        // No function of the program has this name, so it is only there with --profile or --memo
+        Integer entry = functions.getOrDefault(NanoMorphoCompiler.START + "[f0]", main);
+        add(call("Call", entry - 1, 0));
+        add(op("MakeVal", 0));
+        add(call("CallR", basisFunction("exit[f1]", 2, basisStart), 1));
+
+        // Lines 1 and 2 of the .masm are the module header, then for each
+        // function a header, "[", one line per instruction or label and "];"
+        int line = 3;
+        for (int i = 0; i < program.length; i++) {
+            List<NanoMorphoInstr> body = bodies.get(i);
+            boolean[] skip = dropped.get(i);
+            line += 2;
+            boolean afterOp = false;
+            for (int j = 0; j < body.size(); j++, line++) {
+                NanoMorphoInstr in = body.get(j);
+                if (in.isLabel()) {
+                    afterOp = false;
+                    continue;
+                }
+                if (skip[j]) continue;
+                // The assembler gives the line of an instruction without
+                // arguments to the instruction on the line before it
+                if (afterOp && in.op.arg == NanoMorphoInstr.Arg.NONE) {
+                    debug.setStartFileLine(code.size() - 1, line);
+                    debug.setEndFileLine(code.size() - 1, line);
+                }
+                debug.setFilename(code.size(), file);
+                debug.setFunctionOrMethod(code.size(), UNKNOWN_FUNCTION);
+                debug.setStartFileLine(code.size(), 0);
+                debug.setEndFileLine(code.size(), 0);
+                add(operation(in, labels.get(i), basisStart));
+                afterOp = true;
+            }
+            line++;
+        }
+    }
+
+    private void add(Operation op) {
+        code.add(op);
+    }
+
+    private Operation operation(NanoMorphoInstr in, Map<Integer, Integer> labels, int basisStart) throws Exception {
+        int next = code.size() + 1;
+        switch (in.op.arg) {
+            case NONE:
+                return Operations.createOp(in.op.text + "/0");
+            case INT:
+                return op(in.op.text, in.arg);
+            case LITERAL:
+                return op(in.op.text, NanoMorphoRuntime.literal(in.name));
+            case CALL: {
+                String name = in.name + "[f" + in.arg + "]";
+                Integer target = functions.get(name);
+                int offset = target != null ? target - next : basisFunction(name, next, basisStart);
+                return call(in.op.text, offset, in.arg);
+            }
+            case GLOBAL:
+                return op(in.op.text, globals.computeIfAbsent(in.name, k -> Basis.nextKey + globals.size()));
+            case JAVA: {
+                String[] names = in.name.split(" ");
+                Operation op = Operations.createOp(in.op.text + "/" + names.length);
+                for (int k = 0; k < names.length; k++)
+                    op.setArg(k, names[k]);
+                return op;
+            }
+            case LABEL:
+            default: {
+                Integer target = labels.get(in.arg);
+                if (target == null) throw new IllegalStateException("Undefined label _" + in.arg);
+                Operation op = Operations.createOp(in.op.text + "/2");
+                op.setArg(0, target - next);
+                op.setArg(1, 0);
+                return op;
+            }
+        }
+    }
+
+    // Builtins such as +[f2] are exported with negative codes that are
+    // used as they are, BASIS functions with their position in BASIS
+    private static int basisFunction(String name, int next, int basisStart) {
+        if (!Basis.module.hasExport(name)) throw new LinkError("Undefined function " + name);
+        int loc = Basis.module.getExportLocation(name);
+        return loc < 0 ? loc : basisStart + loc - next;
+    }
+
+    private static Operation op(String name, Comparable arg) throws Exception {
+        Operation op = Operations.createOp(name + "/1");
+        op.setArg(0, arg);
+        return op;
+    }
+
+    private static Operation call(String name, int offset, int argc) throws Exception {
+        Operation op = Operations.createOp(name + "/3");
+        op.setArg(0, offset);
+        op.setArg(1, argc);
+        op.setArg(2, 0);
+        return op;
+    }
+
+    // One decoded executable, for --compare
+    private static final class Executable {
+        final int[] header = new int[5];
+        final String type;
+        final int entry;
+        final Operation[] code;
+        // Index of the equal earlier operation, or -1 for a new one
+        final int[] shared;
+        final byte[] debug;
+
+        Executable(Path file) throws Exception {
+            try (InputStream in = new InflaterInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                DataInputStream data = new DataInputStream(in);
+                Loader loader = new Loader(data);
+                header[0] = loader.loadInt();
+                type = loader.loadString();
+                for (int i = 1; i < 4; i++) header[i] = loader.loadInt();
+                entry = loader.loadInt();
+                code = new Operation[loader.loadInt()];
+                shared = new int[code.length];
+                for (int i = 0; i < code.length; i++) {
+                    if (loader.loadByte() == NEW_OP) {
+                        code[i] = loader.loadOperation();
+                        shared[i] = -1;
+                    } else {
+                        shared[i] = loader.loadInt();
+                        code[i] = code[shared[i]];
+                    }
+                }
+                ByteArrayOutputStream rest = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                for (int n; (n = data.read(buf)) > 0; ) rest.write(buf, 0, n);
+                debug = rest.toByteArray();
+            }
+        }
+    }
+
+    /**
+     * Compares two executables, treating BASIS keys as equal if they are
+     * renamed consistently. Returns null if they match, otherwise a
+     * description of the first difference.
+     */
+    public static String compare(Path a, Path b) throws Exception {
+        registerOps();
+        Executable x = new Executable(a);
+        Executable y = new Executable(b);
+        if (x.header[0] != y.header[0] || !x.type.equals(y.type) || x.header[1] != y.header[1]
+                || x.header[2] != y.header[2] || x.header[3] != y.header[3] || x.entry != y.entry)
+            return "headers differ";
+        if (x.code.length != y.code.length)
+            return "operation count " + x.code.length + " != " + y.code.length;
+        Map<Integer, Integer> keys = new HashMap<>();
+        Map<Integer, Integer> keysBack = new HashMap<>();
+        for (int i = 0; i < x.code.length; i++) {
+            Operation p = x.code[i];
+            Operation q = y.code[i];
+            String where = "operation " + i + ": " + p + " != " + q;
+            if (x.shared[i] != y.shared[i]) return where + " (shared with " + x.shared[i] + " != " + y.shared[i] + ")";
+            if (x.shared[i] >= 0) continue;
+            String name = Operations.findOpName(p);
+            if (!name.equals(Operations.findOpName(q)) || p.argCount() != q.argCount()) return where;
+            boolean keyed = keyed(name);
+            for (int k = 0; k < p.argCount(); k++) {
+                Object u = p.getArg(k);
+                Object v = q.getArg(k);
+                if (keyed && u instanceof Integer && v instanceof Integer
+                        && (Integer) u >= FIRST_KEY && (Integer) v >= FIRST_KEY) {
+                    Integer mapped = keys.putIfAbsent((Integer) u, (Integer) v);
+                    Integer back = keysBack.putIfAbsent((Integer) v, (Integer) u);
+                    if ((mapped != null && !mapped.equals(v)) || (back != null && !back.equals(u)))
+                        return where + " (keys renamed inconsistently)";
+                } else if (u == null ? v != null : !u.equals(v)) {
+                    return where;
+                }
+            }
+        }
+        if (!Arrays.equals(x.debug, y.debug)) return "debug information differs";
+        return null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 1 && args[0].equals("--exports")) {
+            List<String> names = new ArrayList<>();
+            for (Object name : Basis.module.getExportedFunctions()) names.add(name.toString());
+            names.sort(null);
+            for (String name : names) System.out.println(name);
+            return;
+        }
+        if (args.length == 3 && args[0].equals("--compare")) {
+            String diff;
+            try {
+                diff = compare(Paths.get(args[1]), Paths.get(args[2]));
+            } catch (NoSuchFileException e) {
+                System.err.println("File not found: " + e.getFile());
+                System.exit(1);
+                return;
+            }
+            if (diff == null) {
+                System.out.println(args[1] + " and " + args[2] + " match");
+            } else {
+                System.out.println(args[1] + " and " + args[2] + " differ: " + diff);
+                System.exit(1);
+            }
+            return;
+        }
+
+        NanoMorphoCompiler.Options options = new NanoMorphoCompiler.Options();
+        String input = null;
+        String output = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o") && i + 1 < args.length) output = args[++i];
+            else if (options.set(args[i])) continue;
+            else if (args[i].startsWith("--")) NanoMorphoCompiler.unknownOption(args[i]);
+            else input = args[i];
+        }
+        if (input == null) {
+            System.err.println("Usage: java -cp .:morpho.jar NanoMorphoMexe [-O] [--profile] [--memo[=N]] [-o out.mexe] file.s");
+            System.err.println("       java -cp .:morpho.jar NanoMorphoMexe --compare a.mexe b.mexe");
+            System.exit(1);
+        }
+        if (output == null) output = NanoMorphoCompiler.moduleName(input) + ".mexe";
+
+        try {
+            compile(input, Paths.get(output), options);
+        } catch (NanoMorphoParser.SyntaxError | LinkError e) {
+            Files.deleteIfExists(Paths.get(output));
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (StackOverflowError e) {
+            Files.deleteIfExists(Paths.get(output));
+            System.err.println("Error: nested too deeply to compile");
+            System.exit(1);
+        } catch (FileNotFoundException e) {
+            System.err.println("File not found");
+            System.exit(1);
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error reading file");
+            System.exit(1);
+        }
+    }
+}
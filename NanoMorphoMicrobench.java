@@ -0,0 +1,260 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Throughput and allocation benchmarks for the lexer, the parser and the
+ * code generator, run much as JMH runs them.
+ *
+ * Benchmarks, each given the whole text of an input:
+ *   lexer    scans it to EOF; tokens/s is given besides ops/s
+ *   parser   NanoMorphoParser.parse of the text
+ *   astload  what --ast-cache does instead of parsing an unchanged
+ *            source: the SHA-256 of its bytes and NanoMorphoASTCache.decode
+ *            of its tree, held in a direct buffer as a mapping would be
+ *   codegen  NanoMorphoCompiler.generateProgram of the parsed program,
+ *            written to NanoMorphoEmitter.toNull()
+ * Inputs are the programs in test/ that parse and the synthetic programs
+ * of NanoMorphoBenchmark.writeSynthetic with 100 and 2000 functions, and
+ * the operator-heavy expressions500 of NanoMorphoBenchmark.writeExpressions.
+ *
+ * Every benchmark runs on every input in a JVM of its own, so the JIT
+ * only ever sees the code under test; -f 0 runs them all in this one.
+ * A run is -wi warmup iterations and then -i measured ones, each calling
+ * the benchmark for -r milliseconds. Reported are the mean and standard
+ * deviation of ops/s over the measured iterations, and allocation as the
+ * gc profiler of JMH reports it, in MB/s and bytes per op, counted for
+ * the benchmark thread by com.sun.management.ThreadMXBean.
+ *
+ * Arguments other than options are regular expressions; only runs whose
+ * "benchmark:input" name contains a match of one of them are made.
+ *
+ * Usage: java NanoMorphoMicrobench [-wi n] [-i n] [-r ms] [-f 0|1] [regex ...]
+ */
+public class NanoMorphoMicrobench {
+
+    private static final String[] BENCHMARKS = {"lexer", "parser", "astload", "codegen"};
+    private static final int[] SYNTHETIC = {100, 2000};
+    private static final int[] EXPRESSIONS = {500};
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Results go here, so the JIT cannot drop the work that made them
+    private static volatile long sink;
+
+    // One iteration: calls to the benchmark, their time and allocation
+    private static final class Iteration {
+        long ops;
+        long nanos;
+        long bytes;
+        long tokens;
+    }
+
+    // The text of every input, by name, in the order they are run
+    private static Map<String, String> inputs() throws IOException {
+        Map<String, String> inputs = new LinkedHashMap<>();
+        File[] tests = new File("test").listFiles((dir, name) -> name.endsWith(".s"));
+        if (tests != null) {
+            Arrays.sort(tests);
+            for (File f : tests) {
+                String text = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+                try {
+                    new NanoMorphoParser().parse((CharSequence) text);
+                } catch (NanoMorphoParser.SyntaxError e) {
+                    continue;
+                }
+                inputs.put(f.getName().replace(".s", ""), text);
+            }
+        }
+        for (int n : SYNTHETIC) {
+            StringWriter w = new StringWriter();
+            NanoMorphoBenchmark.writeSynthetic(w, n);
+            inputs.put("synthetic" + n, w.toString());
+        }
+        for (int n : EXPRESSIONS) {
+            StringWriter w = new StringWriter();
+            NanoMorphoBenchmark.writeExpressions(w, n);
+            inputs.put("expressions" + n, w.toString());
+        }
+        return inputs;
+    }
+
+    // Tokens in @text
+    private static long lex(String text) throws IOException {
+        NanoMorphoLexer lexer = NanoMorphoLexer.newLexer((CharSequence) text);
+        long tokens = 0;
+        while (lexer.getToken() != NanoMorphoLexer.EOF) {
+            lexer.next();
+            tokens++;
+        }
+        lexer.yyclose();
+        return tokens;
+    }
+
+    // The bytes of @text and its NanoMorphoASTCache encoding in a direct buffer
+    private static ByteBuffer[] encoded(String text) {
+        NanoMorphoParser parser = new NanoMorphoParser();
+        NanoMorphoAST.Function[] program = parser.parse((CharSequence) text);
+        List<String> names = new ArrayList<>();
+        List<int[]> calls = new ArrayList<>();
+        parser.getSymbols().forEachCall((name, arity, line, column) -> {
+            names.add(name);
+            calls.add(new int[] {arity, line, column});
+        });
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        byte[] data = NanoMorphoASTCache.encode(new byte[32], program, names, calls);
+        ByteBuffer source = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+        ByteBuffer tree = ByteBuffer.allocateDirect(data.length).put(data).flip();
+        return new ByteBuffer[] {source, tree};
+    }
+
+    // SHA-256 of the bytes in @source, which keeps its position
+    private static byte[] hash(ByteBuffer source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.duplicate());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Runs @benchmark on @text for @millis milliseconds
+    private static Iteration iteration(String benchmark, String text, NanoMorphoAST.Function[] program,
+            ByteBuffer[] encoded, long millis) throws IOException {
+        Iteration it = new Iteration();
+        long thread = Thread.currentThread().getId();
+        long deadline = millis * 1000000;
+        long a0 = THREADS.getThreadAllocatedBytes(thread);
+        long t0 = System.nanoTime();
+        long t;
+        do {
+            switch (benchmark) {
+                case "lexer":
+                    it.tokens += lex(text);
+                    break;
+                case "parser":
+                    sink += new NanoMorphoParser().parse((CharSequence) text).length;
+                    break;
+                case "astload":
+                    sink += hash(encoded[0])[0];
+                    sink += NanoMorphoASTCache.decode(encoded[1], new NanoMorphoSymbols()).length;
+                    break;
+                case "codegen":
+                    new NanoMorphoCompiler(NanoMorphoEmitter.toNull()).generateProgram("bench", program);
+                    sink += program.length;
+                    break;
+                default:
+                    throw new IllegalArgumentException("No benchmark " + benchmark);
+            }
+            it.ops++;
+            t = System.nanoTime() - t0;
+        } while (t < deadline);
+        it.bytes = THREADS.getThreadAllocatedBytes(thread) - a0;
+        it.nanos = t;
+        sink += it.tokens;
+        return it;
+    }
+
+    /*
+        Runs @benchmark on @input in this JVM and returns the result line:
+        ops/s mean and deviation, tokens/s, MB/s and bytes per op.
+    */
+    private static String run(String benchmark, String text, int warmups, int iterations, long millis) throws IOException {
+        NanoMorphoAST.Function[] program = benchmark.equals("codegen") ? new NanoMorphoParser().parse((CharSequence) text) : null;
+        ByteBuffer[] encoded = benchmark.equals("astload") ? encoded(text) : null;
+        for (int i = 0; i < warmups; i++) iteration(benchmark, text, program, encoded, millis);
+        double[] rates = new double[iterations];
+        double sum = 0, tokens = 0, bytes = 0, ops = 0, seconds = 0;
+        for (int i = 0; i < iterations; i++) {
+            Iteration it = iteration(benchmark, text, program, encoded, millis);
+            rates[i] = it.ops / (it.nanos / 1e9);
+            sum += rates[i];
+            tokens += it.tokens;
+            bytes += it.bytes;
+            ops += it.ops;
+            seconds += it.nanos / 1e9;
+        }
+        double mean = sum / iterations;
+        double squares = 0;
+        for (double r : rates) squares += (r - mean) * (r - mean);
+        double deviation = iterations > 1 ? Math.sqrt(squares / (iterations - 1)) : 0;
+        return String.format("%.3f %.3f %.1f %.1f %.1f", mean, deviation, tokens / seconds,
+            bytes / seconds / (1 << 20), bytes / ops);
+    }
+
+    // Runs @benchmark on @input in a new JVM, with the same options
+    private static String fork(String benchmark, String input, int warmups, int iterations, long millis)
+            throws IOException, InterruptedException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = List.of(java, "-cp", System.getProperty("java.class.path"), "NanoMorphoMicrobench",
+            "--run", benchmark, input, "-wi", "" + warmups, "-i", "" + iterations, "-r", "" + millis);
+        Process p = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        String output;
+        try (InputStream in = p.getInputStream()) {
+            output = new String(in.readAllBytes()).trim();
+        }
+        if (p.waitFor() != 0) throw new IOException(benchmark + ":" + input + " failed");
+        return output;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int warmups = 5, iterations = 5, forks = 1;
+        long millis = 1000;
+        String runBenchmark = null, runInput = null;
+        List<Pattern> filters = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-wi": warmups = Integer.parseInt(args[++i]); break;
+                case "-i": iterations = Integer.parseInt(args[++i]); break;
+                case "-r": millis = Long.parseLong(args[++i]); break;
+                case "-f": forks = Integer.parseInt(args[++i]); break;
+                case "--run":
+                    runBenchmark = args[++i];
+                    runInput = args[++i];
+                    break;
+                default: filters.add(Pattern.compile(args[i]));
+            }
+        }
+
+        Map<String, String> inputs = inputs();
+        if (runBenchmark != null) {
+            // A forked run: one result line for the parent
+            String text = inputs.get(runInput);
+            if (text == null) throw new IllegalArgumentException("No input " + runInput);
+            System.out.println(run(runBenchmark, text, warmups, iterations, millis));
+            return;
+        }
+
+        System.out.printf("# %d warmup and %d measured iterations of %d ms, %s%n", warmups, iterations, millis,
+            forks > 0 ? "a JVM per run" : "all in one JVM");
+        System.out.printf("%-24s %14s %12s %14s %10s %12s%n", "Benchmark", "ops/s", "± stdev", "tokens/s", "MB/s", "B/op");
+        for (String benchmark : BENCHMARKS) {
+            for (Map.Entry<String, String> input : inputs.entrySet()) {
+                String name = benchmark + ":" + input.getKey();
+                if (!filters.isEmpty() && filters.stream().noneMatch(f -> f.matcher(name).find())) continue;
+                String result = forks > 0
+                    ? fork(benchmark, input.getKey(), warmups, iterations, millis)
+                    : run(benchmark, input.getValue(), warmups, iterations, millis);
+                String[] r = result.split(" ");
+                System.out.printf("%-24s %14s %12s %14s %10s %12s%n", name, r[0], r[1],
+                    benchmark.equals("lexer") ? r[2] : "", r[3], r[4]);
+            }
+        }
+    }
+}
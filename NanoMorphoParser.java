@@ -5,33 +5,124 @@
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Vector;
+import java.util.function.Consumer;
 
 
 public class NanoMorphoParser {
+
+    /**
+     * Villa í forritstexta. Kastað í stað þess að stöðva keyrslu svo hægt
+     * sé að þýða mörg forrit í sömu JVM. Inniheldur allar villur sem fundust
+     * í þáttuninni, ein lína í skilaboðunum fyrir hverja.
+     */
+    public static class SyntaxError extends RuntimeException {
+        private final List<Diagnostic> diagnostics;
+
+        public SyntaxError(String message) {
+            super(message);
+            this.diagnostics = List.of();
+        }
+
+        public SyntaxError(List<Diagnostic> diagnostics) {
+            super(join(diagnostics));
+            this.diagnostics = List.copyOf(diagnostics);
+        }
+
+        /** Villurnar í þeirri röð sem þær fundust */
+        public List<Diagnostic> getDiagnostics() {
+            return diagnostics;
+        }
+
+        private static String join(List<Diagnostic> diagnostics) {
+            StringBuilder sb = new StringBuilder();
+            for (Diagnostic d : diagnostics) {
+                if (sb.length() > 0) sb.append('\n');
+                sb.append(d);
+            }
+            return sb.toString();
+        }
+    }
+
+    /** Ein villa með línu og dálki, talið frá 1 */
+    public static final class Diagnostic {
+        public final int line;
+        public final int column;
+        public final String message;
+
+        public Diagnostic(int line, int column, String message) {
+            this.line = line;
+            this.column = column;
+            this.message = message;
+        }
+
+        public String toString() {
+            return "Error in line: " + line + " in column: " + column + ". " + message;
+        }
+    }
+
+    /*
+        Kastað eftir að villa hefur verið skráð, og gripið þar sem þáttun
+        getur haldið áfram: við næstu setningu eða næsta fall. Alltaf sama
+        tilvikið, án stack trace, svo villur kosta lítið.
+    */
+    private static final class Panic extends RuntimeException {
+        Panic() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Panic PANIC = new Panic();
+
+    // Þáttun hættir eftir þetta margar villur
+    private static final int MAX_ERRORS = 100;
+
     private NanoMorphoLexer lexer;
     private int lastToken;
     private String lastLexeme;
-    private Vector<String> vars;
+    private int lastLine;
+    private int lastColumn;
+    // Breytur fallsins sem verið er að þátta og öll föll forritsins
+    private NanoMorphoSymbols.Scope vars;
+    private NanoMorphoSymbols symbols;
+    private List<Diagnostic> diagnostics;
+    // Mælingar, ef beðið er um þær, og fjöldi lesinna tokens
+    private NanoMorphoStats stats;
+    private int tokens;
+    // Tími sem fór í að taka við föllum, ekki í þáttun
+    private long sinkNanos;
     public NanoMorphoParser() {
         
     }
 
     /**
-     * Prentar villustreng og stöðvar keyrslu
-     * @param errorString
+     * Skráir villu í línu @line, dálki @column án þess að hætta þáttun.
+     * @param message
+     */
+    private void report(int line, int column, String message) {
+        diagnostics.add(new Diagnostic(line, column, message));
+        if (diagnostics.size() >= MAX_ERRORS) throw new SyntaxError(diagnostics);
+    }
+
+    /**
+     * Skráir villu við núverandi token og kastar Panic, sem er gripið
+     * þar sem þáttun getur haldið áfram.
+     * @param message
      */
-    private void error(String errorString) {
-        System.err.println(errorString);
-        System.exit(0);
+    private void error(String message) {
+        report(lexer.getLine(), lexer.getColumn(), message);
+        throw PANIC;
     }
 
     /**
      * Prentar villustreng.
      */
     private void parseError() {
-        error("Error in line: " + lexer.getLine() + " in column: " + lexer.getColumn() + 
-            ". Found " + lexer.getLexeme());
+        error("Found " + lexer.getLexeme());
     }
 
     /**
@@ -41,135 +132,190 @@ public class NanoMorphoParser {
      */
     private boolean accept(int token) {
         if (lexer.getToken() == token) {
-            try {
-                lastToken = lexer.getToken();
-                lastLexeme = lexer.getLexeme();
-                lexer.next();
-                return true;
-            } catch (IOException e) {
-                error(e.toString());
-            }
+            lastToken = lexer.getToken();
+            lastLexeme = lexer.getLexeme();
+            lastLine = lexer.getLine();
+            lastColumn = lexer.getColumn();
+            advance();
+            return true;
         }
         return false;
     }
 
     /**
-     * Spyr lexer hvort @token passi við síðasta lesna token í lexer
-     * og hvort @lexeme passi við síðast lesna lexeme í lexer
-     * @param token token á að skoða
-     * @param lexeme lexeme sem á að skoða
-     * @return true ef já, annars false
+     * Les næsta token
      */
-    private boolean accept(int token, String lexeme) {
-        if (lexer.getToken() == token) {
-            if (lexeme.equals(lexer.getLexeme())) {
-                try {
-                    lastToken = lexer.getToken();
-                    lastLexeme = lexer.getLexeme();
-                    lexer.next();
-                    return true;
-                } catch (IOException e) {
-                    error(e.toString());
-                }
-            }
+    private void advance() {
+        tokens++;
+        try {
+            lexer.next();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return false;
     }
 
     /**
      * Kallar á NanoMorphoLexer.accept með @token. Ef það skilar ekki true
-     * þá mun prentast villuskilaboð og forrit endar.
+     * er villa skráð og Panic kastað. Ef @token hefur fastan
+     * texta (lykilorð og afmörkunartákn) er hann nefndur í villuboðunum.
      * @param token
      * @return
      */
     private void expect(int token) {
-        if (!accept(token)) {
-            error("Error in line: " + lexer.getLine() + " in column: " + lexer.getColumn() + 
-            ". Found " + lexer.getLexeme());
-        }
+        if (!accept(token)) expected(token);
     }
 
     /**
-     * Kallar á NanoMorphoLexer.accept með @token og @lexeme. Ef aðferð
-     * skilar ekki true mun prentast villuskilaboð og forrit endar.
+     * Villa um að @token hafi átt að koma næst
      * @param token
-     * @param lexeme
-     * @return
      */
-    private void expect(int token, String lexeme) {
-        if (!accept(token, lexeme)) {
-            error("Error in line: " + lexer.getLine() + " in column: " + lexer.getColumn() + 
-            ". Found '" + lexer.getLexeme() + "' but expected '"+ lexeme + "'.");
-        }
+    private void expected(int token) {
+        String text = NanoMorphoLexer.text(token);
+        if (text == null) parseError();
+        error("Found '" + lexer.getLexeme() + "' but expected '"+ text + "'.");
     }
 
-    int varPos(String name)
+    /**
+     * Sæti breytunnar @name, sem stendur í línu @line, dálki @column.
+     * Óskilgreind breyta er skráð sem villa en þáttun heldur áfram.
+     */
+    int varPos(String name, int line, int column)
     {
-        for (int i = 0; i < vars.size(); i++) {
-            if(vars.get(i).equals(name)) return i;
+        int pos = vars.slot(name);
+        if (pos < 0) {
+            report(line, column, "Variable "+name+" is not defined");
+            return 0;
+        }
+        return pos;
+    }
+
+    /*
+        Hoppar yfir tokens eftir villu í setningu: að ';' sem er ekki inni
+        í svigum eða slaufusvigum, og yfir hann, eða að '}' sem lokar
+        stofninum sem setningin er í.
+    */
+    private void skipStatement() {
+        int depth = 0;
+        for (int token = lexer.getToken(); token != NanoMorphoLexer.EOF; token = lexer.getToken()) {
+            if (depth == 0 && token == NanoMorphoLexer.SEMICOLON) {
+                advance();
+                return;
+            }
+            if (depth == 0 && token == NanoMorphoLexer.RBRACE) return;
+            if (token == NanoMorphoLexer.LPAREN || token == NanoMorphoLexer.LBRACE) depth++;
+            else if ((token == NanoMorphoLexer.RPAREN || token == NanoMorphoLexer.RBRACE) && depth > 0) depth--;
+            advance();
+        }
+    }
+
+    /*
+        Hoppar yfir tokens eftir villu utan setninga, t.d. í haus falls:
+        að næsta NAME á efsta stigi sem kemur á eftir '}', þar sem næsta
+        fall ætti að byrja.
+    */
+    private void skipFunction() {
+        int depth = 0;
+        boolean closed = false;
+        for (int token = lexer.getToken(); token != NanoMorphoLexer.EOF; token = lexer.getToken()) {
+            if (token == NanoMorphoLexer.NAME && closed && depth <= 0) return;
+            closed = token == NanoMorphoLexer.RBRACE;
+            if (token == NanoMorphoLexer.LBRACE) depth++;
+            else if (token == NanoMorphoLexer.RBRACE) depth--;
+            advance();
         }
-        error("Variable "+name+" is not defined");
-        return -1;
     }
 
     /* 
         program		=	{ function } 
     */
-    private Object[] program() {
-        Vector<Object> f = new Vector<>();
-        Object[] fun = function();
-        while (fun != null) {
-            f.add(fun);
-            fun = function();
+    private NanoMorphoAST.Function[] program() {
+        Vector<NanoMorphoAST.Function> f = new Vector<>();
+        program(f::add);
+        return f.toArray(new NanoMorphoAST.Function[0]);
+    }
+
+    /*
+        Sama og program() en hvert fall fer í @sink um leið og það hefur
+        verið þáttað, svo tréð þarf ekki að geyma. Eftir fyrstu villu fara
+        föll ekki lengur í @sink, en þáttað er áfram til að finna fleiri villur.
+    */
+    private void program(Consumer<NanoMorphoAST.Function> sink) {
+        while (lexer.getToken() != NanoMorphoLexer.EOF) {
+            try {
+                NanoMorphoAST.Function fun = function();
+                if (fun == null) parseError();
+                if (diagnostics.isEmpty()) {
+                    long t0 = System.nanoTime();
+                    sink.accept(fun);
+                    sinkNanos += System.nanoTime() - t0;
+                }
+            } catch (Panic e) {
+                skipFunction();
+            }
         }
-        expect(NanoMorphoLexer.EOF);
+        if (!diagnostics.isEmpty()) throw new SyntaxError(diagnostics);
+    }
 
-        //generateProgram(f);
-        return f.toArray();
+    /*
+        exprs	=	{ expr, ';' }
+
+        Stofn falls eða bálks, fram að '}'. Eftir villu er haldið áfram
+        með næstu setningu.
+    */
+    private NanoMorphoAST.Expr[] exprs() {
+        Vector<NanoMorphoAST.Expr> exprs = new Vector<>();
+        while (lexer.getToken() != NanoMorphoLexer.RBRACE && lexer.getToken() != NanoMorphoLexer.EOF) {
+            try {
+                NanoMorphoAST.Expr ex = expr();
+                if (ex == null) expected(NanoMorphoLexer.RBRACE);
+                exprs.add(ex);
+                expect(NanoMorphoLexer.SEMICOLON);
+            } catch (Panic e) {
+                skipStatement();
+            }
+        }
+        return exprs.toArray(new NanoMorphoAST.Expr[0]);
     }
 
     /*  
         function	= 	NAME, '(', [ NAME, { ',', NAME } ] ')'
         '{', { decl, ';' }, { expr, ';' }, '}' 
     */
-    private Object[] function() {
+    private NanoMorphoAST.Function function() {
         if (accept(NanoMorphoLexer.NAME)) {
             String functionName = lastLexeme;
-            Vector<Object> fun = new Vector<>();
+            int line = lastLine, column = lastColumn;
             int argCount = 0;
             int varCount = 0;
-            vars = new Vector<>();
-            expect(NanoMorphoLexer.DELIM, "(");
+            vars = new NanoMorphoSymbols.Scope();
+            expect(NanoMorphoLexer.LPAREN);
             if (accept(NanoMorphoLexer.NAME)) {
-                vars.add(lastLexeme);
+                vars.declare(lastLexeme);
                 argCount++;
-                while(accept(NanoMorphoLexer.DELIM, ",")) {
+                while(accept(NanoMorphoLexer.COMMA)) {
                     argCount++;
                     expect(NanoMorphoLexer.NAME);
-                    vars.add(lastLexeme);
+                    vars.declare(lastLexeme);
                 }
             }
-            expect(NanoMorphoLexer.DELIM, ")");
-            expect(NanoMorphoLexer.DELIM, "{");
-
-            int varDecls = decl();
-            while (varDecls > 0) {
-                varCount += varDecls;
-                expect(NanoMorphoLexer.DELIM, ";");
-                varDecls = decl();
-            }
-            
-            Vector<Object> expressions = new Vector<>();
-            Object[] ex = expr();
-            while (ex != null) {
-                expressions.add(ex);
-                expect(NanoMorphoLexer.DELIM, ";");
-                ex = expr();
-            }
+            expect(NanoMorphoLexer.RPAREN);
+            symbols.define(functionName, argCount);
+            expect(NanoMorphoLexer.LBRACE);
 
+            boolean decls = true;
+            while (decls) {
+                try {
+                    decls = decl() > 0;
+                    if (decls) expect(NanoMorphoLexer.SEMICOLON);
+                } catch (Panic e) {
+                    skipStatement();
+                }
+            }
+            varCount = vars.size() - argCount;
 
-            expect(NanoMorphoLexer.DELIM, "}");
-            return new Object[] {functionName, argCount, varCount, expressions.toArray()};
+            NanoMorphoAST.Expr[] expressions = exprs();
+            expect(NanoMorphoLexer.RBRACE);
+            return new NanoMorphoAST.Function(functionName, argCount, varCount, expressions, line, column);
 
         };
 
@@ -184,11 +330,11 @@ public class NanoMorphoParser {
         if (accept(NanoMorphoLexer.VAR)) {
             expect(NanoMorphoLexer.NAME);
             decls++;
-            vars.add(lastLexeme);
-            while ( accept(NanoMorphoLexer.DELIM, ",") ) {
+            vars.declare(lastLexeme);
+            while ( accept(NanoMorphoLexer.COMMA) ) {
                 expect(NanoMorphoLexer.NAME);
                 decls++;
-                vars.add(lastLexeme);
+                vars.declare(lastLexeme);
             }
         }
         return decls;
@@ -198,12 +344,12 @@ public class NanoMorphoParser {
         expr    =	'return', orexpr
                 |	orexpr
     */
-    private Object[] expr() {
-        Object[] ex = null;
+    private NanoMorphoAST.Expr expr() {
+        NanoMorphoAST.Expr ex = null;
         if (accept(NanoMorphoLexer.RETURN)) {
             ex = orexpr();
             if (ex == null) parseError();
-            return new Object[] {"RETURN", ex};
+            return new NanoMorphoAST.Return(ex);
         }
         else {
             ex = orexpr();
@@ -211,179 +357,136 @@ public class NanoMorphoParser {
         return ex;
     }
 
-    /* 
-        orexpr	=	andexpr, [ '||', orexpr ]
-    */
-    private Object[] orexpr() {
-        Object[] ex = andexpr();
-        if (ex != null) {
-            if (accept(NanoMorphoLexer.OPNAME_OR)) {
-                Object[] ex2 = orexpr();
-                if (ex2 == null) parseError();
-                return new Object[] {"OR", ex, ex2};
-            }
-            return ex;
-        }
-        return null;
-    }
-    
-
     /*
-        andexpr	= notexpr, [ '&&', andexpr ]
+        orexpr      =   andexpr, [ '||', orexpr ]
+        andexpr     =   notexpr, [ '&&', andexpr ]
+        notexpr     =   '!', notexpr | binopexpr1
+        binopexpr1  =   binopexpr2, { OPNAME1, binopexpr2 }
+        binopexpr2  =   binopexpr3, [ OPNAME2, binopexpr2 ]
+        binopexpr3  =   binopexpr4, { OPNAME3, binopexpr4 }
+        binopexpr4  =   binopexpr5, { OPNAME4, binopexpr5 }
+        binopexpr5  =   binopexpr6, { OPNAME5, binopexpr6 }
+        binopexpr6  =   binopexpr7, { OPNAME6, binopexpr7 }
+        binopexpr7  =   smallexpr, { OPNAME7, smallexpr }
+
+        Þáttað með forgangsklifri eftir töflunni PRECEDENCE, með virkja og
+        segðir á hlöðum í stað endurkvæmni, svo langar keðjur eins og
+        a:b:...:null eða a||b||... tæma ekki Java hlaðann. Virki á hlaða er
+        beitt (reduce) þegar næsti virki binst lausar, eða jafnfast og
+        tengist til vinstri. '!' er forskeyti með forgang á milli '&&' og
+        OPNAME1, og má aðeins standa fremst eða á eftir '!', '&&' og '||'.
+        OPNAME2 verður alltaf kall á ':'.
     */
-    private Object[] andexpr() {
-        Object[] ex = notexpr();
-        if (ex != null) {
-            if (accept((NanoMorphoLexer.OPNAME_AND))) {
-                Object[] ex2 = andexpr();
-                if (ex2 == null) parseError();
-                return new Object[] {"AND", ex, ex2};
+    private NanoMorphoAST.Expr orexpr() {
+        int opBase = ops, exprBase = exprs;
+        try {
+            for (;;) {
+                // '!' má aðeins koma þar sem notexpr má koma: fremst eða á eftir
+                // '&&', '||' eða '!', sem eru tókarnir frá OPNAME_AND og upp
+                if (ops == opBase || opTokens[ops-1] >= NanoMorphoLexer.OPNAME_AND) {
+                    while (accept(NanoMorphoLexer.OPNAME_NOT)) pushOp(NanoMorphoLexer.OPNAME_NOT, null);
+                }
+                NanoMorphoAST.Expr ex = smallexpr();
+                if (ex == null) {
+                    if (ops == opBase) return null;
+                    parseError();
+                }
+                pushExpr(ex);
+
+                int token = lexer.getToken();
+                int prec = token == NanoMorphoLexer.OPNAME_NOT ? 0 : precedence(token);
+                if (prec == 0) break;
+                while (ops > opBase) {
+                    int top = precedence(opTokens[ops-1]);
+                    if (top < prec || top == prec && RIGHT[prec]) break;
+                    reduce();
+                }
+                accept(token);
+                if (token == NanoMorphoLexer.OPNAME_AND || token == NanoMorphoLexer.OPNAME_OR) {
+                    pushOp(token, null);
+                }
+                else {
+                    String op = token == NanoMorphoLexer.OPNAME2 ? ":" : lastLexeme;
+                    symbols.call(op, 2, lastLine, lastColumn);
+                    pushOp(token, op);
+                }
             }
-            return ex;
+            while (ops > opBase) reduce();
+            return exprStack[--exprs];
+        } finally {
+            // Líka eftir villu, svo hlaðarnir haldist réttir
+            while (exprs > exprBase) exprStack[--exprs] = null;
+            while (ops > opBase) opNames[--ops] = null;
         }
-        return null;
     }
 
-    /* 
-        notexpr		=	'!', notexpr | binopexpr1
-     */
-    private Object[] notexpr() {
-        Object[] ex = null;
-        if (accept(NanoMorphoLexer.OPNAME_NOT)) {
-            ex = notexpr();
-            if (ex == null) parseError();
-            return new Object[] {"NOT", ex};
-        }
-
-        ex = binopexpr1();
-        if (ex != null) return ex;
-
-        return null;
+    // Forgangur tóka frá OPNAME1 til OPNAME_NOT, 0 ef tókinn er ekki virki
+    private static final int[] PRECEDENCE = new int[NanoMorphoLexer.OPNAME_NOT - NanoMorphoLexer.OPNAME1 + 1];
+    // RIGHT[p] ef virkjar með forgang p tengjast til hægri
+    private static final boolean[] RIGHT = new boolean[11];
+
+    static {
+        PRECEDENCE[NanoMorphoLexer.OPNAME_OR - NanoMorphoLexer.OPNAME1] = 1;
+        PRECEDENCE[NanoMorphoLexer.OPNAME_AND - NanoMorphoLexer.OPNAME1] = 2;
+        PRECEDENCE[NanoMorphoLexer.OPNAME_NOT - NanoMorphoLexer.OPNAME1] = 3;
+        for (int k = 0; k < 7; k++) PRECEDENCE[k] = 4 + k;
+        RIGHT[1] = true;
+        RIGHT[2] = true;
+        RIGHT[5] = true;
     }
 
-    /* 
-        binopexpr1	=	binopexpr2, { OPNAME1 binopexpr2 }
-     */
-    private Object[] binopexpr1() {
-        Object[] ex = binopexpr2();
-        if (ex != null) {
-            while (accept(NanoMorphoLexer.OPNAME1)) {
-                String op = lastLexeme;
-                Object[] ex2 = binopexpr2();
-                if (ex2 == null) parseError();
-                Object[] args = new Object[] {ex, ex2};
-                ex = new Object[] {"CALL", op, args};
-            }
-            return ex;
-        }
-        return null;
+    private static int precedence(int token) {
+        int k = token - NanoMorphoLexer.OPNAME1;
+        return k >= 0 && k < PRECEDENCE.length ? PRECEDENCE[k] : 0;
     }
 
-    /* 
-        binopexpr2	=	binopexpr3, [ OPNAME2, binopexpr2 ]
-     */
-    private Object[] binopexpr2() {
-        Object[] ex = binopexpr3();
-        if (ex != null) {
-            if (accept(NanoMorphoLexer.OPNAME2)) {
-                Object[] ex2 = binopexpr2();
-                if (ex2 == null) parseError();
-                Object[] args = new Object[] { ex, ex2};
-                ex = new Object[] {"CALL", ":", args};
-            }
-            return ex;
+    // Hlaðar forgangsþáttunar, sameiginlegir öllum segðum sem eru í þáttun.
+    // Staðsetning virkja er lína << 32 | dálkur
+    private int[] opTokens = new int[16];
+    private String[] opNames = new String[16];
+    private long[] opPositions = new long[16];
+    private int ops;
+    private NanoMorphoAST.Expr[] exprStack = new NanoMorphoAST.Expr[16];
+    private int exprs;
+
+    // Virkinn @token, sem kallar á @name, er síðasti lesni tóki
+    private void pushOp(int token, String name) {
+        if (ops == opTokens.length) {
+            opTokens = Arrays.copyOf(opTokens, 2 * ops);
+            opNames = Arrays.copyOf(opNames, 2 * ops);
+            opPositions = Arrays.copyOf(opPositions, 2 * ops);
         }
-        return null;
-    }
-    
-    /* 
-        binopexpr3 = binopexpr4, { OPNAME3, binopexpr4 }
-     */
-    private Object[] binopexpr3() {
-        Object[] ex = binopexpr4();
-        if (ex != null) {
-            while(accept(NanoMorphoLexer.OPNAME3)) {
-                String op = lastLexeme;
-                Object[] ex2 = binopexpr4();
-                if (ex2 == null) parseError();
-                Object[] args = {ex, ex2};
-                ex = new Object[] {"CALL", op, args};
-            }
-            return ex;
-        }
-        return null;
+        opTokens[ops] = token;
+        opPositions[ops] = (long) lastLine << 32 | lastColumn;
+        opNames[ops++] = name;
     }
 
-    /* 
-        binopexpr4	=	binopexpr5, { OPNAME4, binopexpr5 }
-     */
-    private Object[] binopexpr4() {
-        Object[] ex = binopexpr5();
-        if (ex != null) {
-            while(accept(NanoMorphoLexer.OPNAME4)) {
-                String op = lastLexeme;
-                Object[] ex2 = binopexpr5();
-                if (ex2 == null) parseError();
-                Object[] args = new Object[] {ex, ex2};
-                ex = new Object[] {"CALL", op, args};
-            }
-            return ex;
-        }
-        return null;
+    // Kall á virkjann í sæti @i á hlaðanum með viðföngin @args
+    private NanoMorphoAST.Call opCall(int i, NanoMorphoAST.Expr... args) {
+        return new NanoMorphoAST.Call(opNames[i], args, (int) (opPositions[i] >>> 32), (int) opPositions[i]);
     }
 
-    /*
-        binopexpr5	=	binopexpr6, { OPNAME5, binopexpr6 }
-    */
-    private Object[] binopexpr5() {
-        Object[] ex = binopexpr6();
-        if (ex != null) {
-            while(accept(NanoMorphoLexer.OPNAME5)) {
-                String op = lastLexeme;
-                Object[] ex2 = binopexpr6();
-                if (ex2 == null) parseError();
-                Object[] args = new Object[] {ex, ex2};
-                ex = new Object[] {"CALL", op, args};
-            }
-            return ex;
-        }
-        return null;
+    private void pushExpr(NanoMorphoAST.Expr ex) {
+        if (exprs == exprStack.length) exprStack = Arrays.copyOf(exprStack, 2 * exprs);
+        exprStack[exprs++] = ex;
     }
 
-    /*
-        binopexpr6	=	binopexpr7, { OPNAME6, binopexpr7 }
-    */
-    private Object[] binopexpr6() {
-        Object[] ex = binopexpr7();
-        if (ex != null) {
-            while(accept(NanoMorphoLexer.OPNAME6)) {
-                String op = lastLexeme;
-                Object[] ex2 = binopexpr7();
-                if (ex2 == null) parseError();
-                Object[] args = new Object[] {ex, ex2};
-                ex = new Object[] {"CALL", op, args};
-            }
-            return ex;
+    // Beitir efsta virkjanum á hlaðanum á efstu segðina eða tvær
+    private void reduce() {
+        int token = opTokens[--ops];
+        if (token == NanoMorphoLexer.OPNAME_NOT) {
+            exprStack[exprs-1] = new NanoMorphoAST.Not(exprStack[exprs-1]);
+            return;
         }
-        return null;
-    }
-
-    /*
-        binopexpr7	=	smallexpr, { OPNAME7, smallexpr }
-    */
-    private Object[] binopexpr7() {
-        Object[] ex = smallexpr();
-        if (ex != null) {
-            while(accept(NanoMorphoLexer.OPNAME7)) {
-                String op = lastLexeme;
-                Object[] ex2 = smallexpr();
-                if (ex2 == null) parseError();
-                Object[] args = new Object[] {ex, ex2};
-                ex = new Object[] {"CALL", op, args};
-            }
-            return ex;
+        NanoMorphoAST.Expr right = exprStack[--exprs];
+        exprStack[exprs] = null;
+        NanoMorphoAST.Expr left = exprStack[exprs-1];
+        if (token == NanoMorphoLexer.OPNAME_AND) exprStack[exprs-1] = new NanoMorphoAST.And(left, right);
+        else if (token == NanoMorphoLexer.OPNAME_OR) exprStack[exprs-1] = new NanoMorphoAST.Or(left, right);
+        else {
+            exprStack[exprs-1] = opCall(ops, left, right);
+            opNames[ops] = null;
         }
-        return null;
     }
 
     /* 
@@ -392,28 +495,46 @@ public class NanoMorphoParser {
                     |	'(', expr, ')'
                     |	ifexpr
                     |	'while', '(', expr, ')', body
+
+        Forskeytum er safnað á virkjahlaðann og beitt innst fyrst, svo
+        langar raðir þeirra kalla ekki á endurkvæmni.
      */
-    private Object[] smallexpr() {
-        Object[] ex = smallexpr_2();
-        if (ex != null) {
+    private NanoMorphoAST.Expr smallexpr() {
+        int opBase = ops;
+        try {
+            while (opname()) {
+                String op = lastLexeme;
+                symbols.call(op, 1, lastLine, lastColumn);
+                pushOp(lastToken, op);
+            }
+            NanoMorphoAST.Expr ex = primary();
+            if (ex == null) {
+                if (ops == opBase) return null;
+                parseError();
+            }
+            while (ops > opBase) {
+                ex = opCall(--ops, ex);
+                opNames[ops] = null;
+            }
             return ex;
+        } finally {
+            while (ops > opBase) opNames[--ops] = null;
         }
+    }
 
-
-        if (opname()) {
-            String op = lastLexeme;
-            ex = smallexpr();
-            if (ex == null) parseError();
-            Object[] args = new Object[] {ex};
-            return new Object[] {"CALL", op, args};
+    // smallexpr án forskeyta
+    private NanoMorphoAST.Expr primary() {
+        NanoMorphoAST.Expr ex = smallexpr_2();
+        if (ex != null) {
+            return ex;
         }
 
-        if (accept(NanoMorphoLexer.LITERAL)) return new Object[] {"LITERAL", lastLexeme};
+        if (accept(NanoMorphoLexer.LITERAL)) return new NanoMorphoAST.Literal(lastLexeme);
 
-        if (accept(NanoMorphoLexer.DELIM, "(")) {
+        if (accept(NanoMorphoLexer.LPAREN)) {
             ex = expr();
             if (ex ==null) parseError();
-            expect(NanoMorphoLexer.DELIM, ")");
+            expect(NanoMorphoLexer.RPAREN);
             return ex;
         }
 
@@ -423,13 +544,14 @@ public class NanoMorphoParser {
         }
 
         if (accept(NanoMorphoLexer.WHILE)) {
-            expect(NanoMorphoLexer.DELIM, "(");
+            int line = lastLine, column = lastColumn;
+            expect(NanoMorphoLexer.LPAREN);
             ex = expr();
             if (ex == null) parseError();
-            expect(NanoMorphoLexer.DELIM, ")");
-            Object[] bod = body();
+            expect(NanoMorphoLexer.RPAREN);
+            NanoMorphoAST.Body bod = body();
             if (bod == null) parseError();
-            return new Object[] {"WHILE", ex, bod};
+            return new NanoMorphoAST.While(ex, bod, line, column);
         }
 
         return null;
@@ -441,34 +563,36 @@ public class NanoMorphoParser {
 				        |	NAME, '(', [ expr, { ',', expr } ], ')'
                         |	NAME, '=', expr
      */
-    private Object[] smallexpr_2() {
+    private NanoMorphoAST.Expr smallexpr_2() {
         if (accept(NanoMorphoLexer.NAME)) {
-            Object[] ex = null;
-            Vector<Object> args = new Vector<>();
+            NanoMorphoAST.Expr ex = null;
+            Vector<NanoMorphoAST.Expr> args = new Vector<>();
             String name = lastLexeme;
-            if (accept(NanoMorphoLexer.DELIM, "(")) {
+            int line = lastLine, column = lastColumn;
+            if (accept(NanoMorphoLexer.LPAREN)) {
                 ex = expr();
                 if (ex != null) {
                     args.add(ex);
-                    while (accept(NanoMorphoLexer.DELIM, ",")) {
+                    while (accept(NanoMorphoLexer.COMMA)) {
                         ex = expr();
                         if (ex == null) parseError();
                         args.add(ex);
                     }
                 }
-                expect(NanoMorphoLexer.DELIM, ")");
+                expect(NanoMorphoLexer.RPAREN);
 
-                return new Object[] {"CALL", name, args.toArray()};
+                symbols.call(name, args.size(), line, column);
+                return new NanoMorphoAST.Call(name, args.toArray(new NanoMorphoAST.Expr[0]), line, column);
             }
             
-            else if (accept(NanoMorphoLexer.DELIM, "=")) {
+            else if (accept(NanoMorphoLexer.ASSIGN)) {
                 ex = expr();
-                int pos = varPos(name);
+                int pos = varPos(name, line, column);
                 if (ex == null) parseError();
-                return new Object[] {"STORE", pos, ex};
+                return new NanoMorphoAST.Store(pos, ex);
             }
 
-            return new Object[] {"FETCH", varPos(name)};
+            return new NanoMorphoAST.Fetch(varPos(name, line, column));
         }
 
         return null;
@@ -501,37 +625,32 @@ public class NanoMorphoParser {
 				    { 'elsif', '(', expr, ')', body }, 
                     [ 'else', body ]
     */
-    private Object[] ifexpr() {
-        Object[] ifex = null;
+    private NanoMorphoAST.Expr ifexpr() {
         if (accept(NanoMorphoLexer.IF)) {
-            expect(NanoMorphoLexer.DELIM, "(");
-            Object[] ex1 = expr();
-            if (ex1 == null) parseError();
-            expect(NanoMorphoLexer.DELIM, ")");
-            Object[] ex2 = body();
-            if (ex2 == null) parseError();
-            ifex = new Object[] {"IF", ex1, ex2, null};
-
-            Object[] tail = ifex;
-            while (accept(NanoMorphoLexer.ELSIF)) {
-                expect(NanoMorphoLexer.DELIM, "(");
-                ex1 = expr();
+            Vector<NanoMorphoAST.Expr> conds = new Vector<>();
+            Vector<NanoMorphoAST.Body> bodies = new Vector<>();
+            do {
+                expect(NanoMorphoLexer.LPAREN);
+                NanoMorphoAST.Expr ex1 = expr();
                 if (ex1 == null) parseError();
-                expect(NanoMorphoLexer.DELIM, ")");
-                ex2 = body();
+                expect(NanoMorphoLexer.RPAREN);
+                NanoMorphoAST.Body ex2 = body();
                 if (ex2 == null) parseError();
-                Object[] elif = new Object[] {"IF", ex1, ex2, null};
-                tail[3] = elif;
-                tail = elif;
-            }
+                conds.add(ex1);
+                bodies.add(ex2);
+            } while (accept(NanoMorphoLexer.ELSIF));
 
+            NanoMorphoAST.Expr tail = null;
             if (accept(NanoMorphoLexer.ELSE)) {
-                Object[] ex3 = body();
-                if (ex3 == null) parseError();
-                tail[3] = ex3;
+                tail = body();
+                if (tail == null) parseError();
             }
 
-            return ifex;
+            // elsif keðjan verður að hreiðruðum IF hnútum, byggð aftan frá
+            for (int i = conds.size() - 1; i >= 0; i--) {
+                tail = new NanoMorphoAST.If(conds.get(i), bodies.get(i), tail);
+            }
+            return tail;
         }
         return null;
     }
@@ -539,31 +658,158 @@ public class NanoMorphoParser {
     /* 
         body = '{', { expr, ';' }, '}'
      */
-    private Object[] body() {
-        Vector<Object> exprs = new Vector<>();
-        expect(NanoMorphoLexer.DELIM, "{");
-        Object ex = expr();
-        while (ex != null) { 
-            exprs.add(ex);
-            expect(NanoMorphoLexer.DELIM, ";");
-            ex = expr();
-        }
-        expect(NanoMorphoLexer.DELIM, "}");
+    private NanoMorphoAST.Body body() {
+        expect(NanoMorphoLexer.LBRACE);
+        NanoMorphoAST.Expr[] exprs = exprs();
+        expect(NanoMorphoLexer.RBRACE);
 
-        return new Object[] {"BODY", exprs.toArray()};
+        return new NanoMorphoAST.Body(exprs);
     }
 
 
     /**
      * Þáttar forritstexta sem finnst í skjali @fileName
      * @param fileName
-     * @return true ef gilt forrit
+     * @return föllin í forritinu
      * @throws FileNotFoundException
      * @throws IOException
      */
-    public Object[] parse(String fileName)throws FileNotFoundException, IOException{
-        this.lexer = NanoMorphoLexer.newLexer(fileName);
-        return program();
+    public NanoMorphoAST.Function[] parse(String fileName)throws FileNotFoundException, IOException{
+        long t0 = System.nanoTime();
+        NanoMorphoLexer lexer = NanoMorphoLexer.newLexer(fileName);
+        if (stats != null) stats.add(NanoMorphoStats.Phase.READ, System.nanoTime() - t0);
+        return parse(lexer);
+    }
+
+    /**
+     * Þáttar forritstexta í skjali @fileName og lætur @sink fá hvert fall
+     * um leið og það hefur verið þáttað, í röð. Tréð er því aldrei allt
+     * til í einu. Ef villa finnst fær @sink engin föll eftir það og
+     * SyntaxError er kastað í lokin, en þau sem á undan komu eru farin.
+     * @param fileName
+     * @param sink
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public void parse(String fileName, Consumer<NanoMorphoAST.Function> sink) throws FileNotFoundException, IOException {
+        long t0 = System.nanoTime();
+        NanoMorphoLexer lexer = NanoMorphoLexer.newLexer(fileName);
+        if (stats != null) stats.add(NanoMorphoStats.Phase.READ, System.nanoTime() - t0);
+        t0 = System.nanoTime();
+        start(lexer, new NanoMorphoSymbols());
+        try {
+            program(sink);
+        } finally {
+            if (stats != null) {
+                stats.add(NanoMorphoStats.Phase.PARSE, System.nanoTime() - t0 - sinkNanos);
+                stats.tokens += tokens;
+            }
+            finish();
+        }
+    }
+
+    /**
+     * Næstu þáttanir skrá tíma sinn og fjölda tokens í @stats, null til
+     * að hætta því.
+     * @param stats
+     */
+    public void setStats(NanoMorphoStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Þáttar forritstextann @source beint úr minni, án skráarkerfisins.
+     * Ath. að String viðfang velur parse(String) sem les skrá, texti í
+     * String er þáttaður með parse((CharSequence) texti).
+     * @param source
+     * @return föllin í forritinu
+     */
+    public NanoMorphoAST.Function[] parse(CharSequence source) {
+        try {
+            return parse(NanoMorphoLexer.newLexer(source));
+        } catch (IOException e) {
+            // Lesgreinirinn les ekkert utan úr heimi þegar textinn er í minni
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Táknataflan sem síðasta þáttun fyllti: föll forritsins og köll á
+     * þau, svo hægt sé að athuga köllin eftir þáttun
+     * @return táknataflan, eða null ef ekkert hefur verið þáttað
+     */
+    public NanoMorphoSymbols getSymbols() {
+        return symbols;
+    }
+
+    /**
+     * Þáttar eitt fall, @source, sem er hluti af stærri skrá og byrjar í
+     * línu @line, dálki @column hennar. Villur fá staðsetningu í skránni.
+     * Skilgreining fallsins og köll í því eru skráð í @symbols.
+     * @return fallið
+     */
+    public NanoMorphoAST.Function parseFunction(CharSequence source, int line, int column, NanoMorphoSymbols symbols) {
+        long t0 = System.nanoTime();
+        try {
+            start(NanoMorphoLexer.newLexer(source, line, column), symbols);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            NanoMorphoAST.Function f = null;
+            try {
+                f = function();
+                if (f == null || lexer.getToken() != NanoMorphoLexer.EOF) parseError();
+            } catch (Panic e) {
+                // Villan er skráð
+            }
+            if (!diagnostics.isEmpty()) throw new SyntaxError(diagnostics);
+            return f;
+        } finally {
+            if (stats != null) {
+                stats.add(NanoMorphoStats.Phase.PARSE, System.nanoTime() - t0);
+                stats.tokens += tokens;
+            }
+            finish();
+        }
+    }
+
+    private void start(NanoMorphoLexer lexer, NanoMorphoSymbols symbols) {
+        this.lexer = lexer;
+        this.lastToken = 0;
+        this.lastLexeme = null;
+        this.vars = null;
+        this.symbols = symbols;
+        this.diagnostics = new ArrayList<>();
+        this.tokens = 0;
+        this.sinkNanos = 0;
+    }
+
+    private void finish() {
+        // Ekkert ástand lifir á milli þáttana
+        try {
+            this.lexer.yyclose();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            this.lexer = null;
+        }
+        this.vars = null;
+        this.diagnostics = null;
+    }
+
+    private NanoMorphoAST.Function[] parse(NanoMorphoLexer lexer) throws IOException {
+        long t0 = System.nanoTime();
+        start(lexer, new NanoMorphoSymbols());
+        try {
+            return program();
+        } finally {
+            if (stats != null) {
+                stats.add(NanoMorphoStats.Phase.PARSE, System.nanoTime() - t0);
+                stats.tokens += tokens;
+            }
+            finish();
+        }
     }
 
 
@@ -572,8 +818,12 @@ public class NanoMorphoParser {
             NanoMorphoParser parser = new NanoMorphoParser();
             parser.parse(args[0]);
             System.out.println("Successfully parsed " + args[0]);
+        } catch (SyntaxError e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
         } catch (Exception e) {
             System.out.println("File not found");
+            System.exit(1);
         }
     }
 }
@@ -0,0 +1,285 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Peephole optimizer over the instructions of one function.
+ *
+ * Runs a configurable set of rules repeatedly until none of them changes
+ * anything, and counts for every rule how often it fired and how many
+ * instructions it removed.
+ *
+ * Rules:
+ *   jump-to-next    (Go _n) directly followed by _n: is dropped, also GoTrue/GoFalse
+ *   jump-threading  a jump to a label followed by (Go _m) jumps to _m directly,
+ *                   and (Go _n) to a label followed by (Return) becomes (Return)
+ *   unreachable     code after Go, Return or an R variant up to the next label
+ *   unused-labels   labels no jump refers to
+ *   push-fusion     (Push) then (Fetch n)/(MakeVal x) becomes (FetchP n)/(MakeValP x)
+ *   return-fusion   (Fetch n)/(Store n)/(MakeVal x)/(Call ..) then (Return)
+ *                   becomes the R variant
+ */
+public class NanoMorphoPeephole {
+
+    /** One rewrite rule. Returns the rewritten list, or @code itself if nothing changed. */
+    public interface Rule {
+        String name();
+        List<NanoMorphoInstr> apply(List<NanoMorphoInstr> code);
+    }
+
+    private static final int MAX_ROUNDS = 16;
+
+    private final List<Rule> rules;
+    private final Map<String, int[]> stats = new LinkedHashMap<>();
+
+    /** Engine with all rules */
+    public NanoMorphoPeephole() {
+        this(allRules());
+    }
+
+    public NanoMorphoPeephole(List<Rule> rules) {
+        this.rules = rules;
+        for (Rule r : rules) stats.put(r.name(), new int[2]);
+    }
+
+    /** Engine with the rules named in @names, e.g. "unreachable,unused-labels" */
+    public static NanoMorphoPeephole withRules(String names) {
+        Map<String, Rule> byName = new HashMap<>();
+        for (Rule r : allRules()) byName.put(r.name(), r);
+        List<Rule> rules = new ArrayList<>();
+        for (String name : names.split(",")) {
+            Rule r = byName.get(name.trim());
+            if (r == null) throw new IllegalArgumentException("Unknown peephole rule: " + name);
+            rules.add(r);
+        }
+        return new NanoMorphoPeephole(rules);
+    }
+
+    public static List<Rule> allRules() {
+        List<Rule> rules = new ArrayList<>();
+        rules.add(new JumpThreading());
+        rules.add(new JumpToNext());
+        rules.add(new Unreachable());
+        rules.add(new UnusedLabels());
+        rules.add(new PushFusion());
+        rules.add(new ReturnFusion());
+        return rules;
+    }
+
+    /** Optimizes the body of one function */
+    public List<NanoMorphoInstr> optimize(List<NanoMorphoInstr> code) {
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            boolean changed = false;
+            for (Rule r : rules) {
+                List<NanoMorphoInstr> res = r.apply(code);
+                if (res != code) {
+                    // One engine may be shared by the workers of NanoMorphoBatch
+                    synchronized (stats) {
+                        int[] s = stats.get(r.name());
+                        s[0]++;
+                        s[1] += code.size() - res.size();
+                    }
+                    code = res;
+                    changed = true;
+                }
+            }
+            if (!changed) break;
+        }
+        return code;
+    }
+
+    /** Rule name -> {times applied, instructions removed} */
+    public Map<String, int[]> getStats() {
+        return stats;
+    }
+
+    public String statsReport() {
+        StringBuilder sb = new StringBuilder("peephole:");
+        int total = 0;
+        synchronized (stats) {
+            for (Map.Entry<String, int[]> e : stats.entrySet()) {
+                sb.append(String.format("%n  %-15s applied %5d, removed %6d", e.getKey(), e.getValue()[0], e.getValue()[1]));
+                total += e.getValue()[1];
+            }
+        }
+        sb.append(String.format("%n  %-15s removed %6d", "total", total));
+        return sb.toString();
+    }
+
+    // Index of the first non-label instruction at or after @i
+    private static int skipLabels(List<NanoMorphoInstr> code, int i) {
+        while (i < code.size() && code.get(i).isLabel()) i++;
+        return i;
+    }
+
+    // Label number -> position of the label in @code
+    private static Map<Integer, Integer> labelPositions(List<NanoMorphoInstr> code) {
+        Map<Integer, Integer> pos = new HashMap<>();
+        for (int i = 0; i < code.size(); i++) {
+            if (code.get(i).isLabel()) pos.put(code.get(i).arg, i);
+        }
+        return pos;
+    }
+
+    static class JumpToNext implements Rule {
+        public String name() {
+            return "jump-to-next";
+        }
+
+        public List<NanoMorphoInstr> apply(List<NanoMorphoInstr> code) {
+            List<NanoMorphoInstr> res = null;
+            for (int i = 0; i < code.size(); i++) {
+                NanoMorphoInstr in = code.get(i);
+                boolean drop = false;
+                if (in.op.isJump()) {
+                    for (int j = i + 1; j < code.size() && code.get(j).isLabel(); j++) {
+                        if (code.get(j).arg == in.arg) {
+                            drop = true;
+                            break;
+                        }
+                    }
+                }
+                if (drop && res == null) res = new ArrayList<>(code.subList(0, i));
+                else if (!drop && res != null) res.add(in);
+            }
+            return res == null ? code : res;
+        }
+    }
+
+    static class JumpThreading implements Rule {
+        public String name() {
+            return "jump-threading";
+        }
+
+        public List<NanoMorphoInstr> apply(List<NanoMorphoInstr> code) {
+            Map<Integer, Integer> labels = labelPositions(code);
+            List<NanoMorphoInstr> res = code;
+            for (int i = 0; i < code.size(); i++) {
+                NanoMorphoInstr in = code.get(i);
+                if (!in.op.isJump()) continue;
+                Integer at = labels.get(in.arg);
+                if (at == null) continue;
+                int t = skipLabels(code, at);
+                if (t >= code.size()) continue;
+                NanoMorphoInstr target = code.get(t);
+                NanoMorphoInstr replacement = null;
+                if (target.op == NanoMorphoInstr.Op.GO && target.arg != in.arg) {
+                    replacement = in.withLabel(target.arg);
+                } else if (in.op == NanoMorphoInstr.Op.GO && target.op == NanoMorphoInstr.Op.RETURN) {
+                    replacement = target;
+                }
+                if (replacement != null) {
+                    if (res == code) res = new ArrayList<>(code);
+                    res.set(i, replacement);
+                }
+            }
+            return res;
+        }
+    }
+
+    static class Unreachable implements Rule {
+        public String name() {
+            return "unreachable";
+        }
+
+        public List<NanoMorphoInstr> apply(List<NanoMorphoInstr> code) {
+            List<NanoMorphoInstr> res = null;
+            boolean dead = false;
+            for (int i = 0; i < code.size(); i++) {
+                NanoMorphoInstr in = code.get(i);
+                if (in.isLabel()) dead = false;
+                if (dead) {
+                    if (res == null) res = new ArrayList<>(code.subList(0, i));
+                    continue;
+                }
+                if (res != null) res.add(in);
+                if (in.op.endsBlock()) dead = true;
+            }
+            return res == null ? code : res;
+        }
+    }
+
+    static class UnusedLabels implements Rule {
+        public String name() {
+            return "unused-labels";
+        }
+
+        public List<NanoMorphoInstr> apply(List<NanoMorphoInstr> code) {
+            Set<Integer> used = new HashSet<>();
+            for (NanoMorphoInstr in : code) {
+                if (in.op.isJump()) used.add(in.arg);
+            }
+            List<NanoMorphoInstr> res = null;
+            for (int i = 0; i < code.size(); i++) {
+                NanoMorphoInstr in = code.get(i);
+                boolean drop = in.isLabel() && !used.contains(in.arg);
+                if (drop && res == null) res = new ArrayList<>(code.subList(0, i));
+                else if (!drop && res != null) res.add(in);
+            }
+            return res == null ? code : res;
+        }
+    }
+
+    static class PushFusion implements Rule {
+        public String name() {
+            return "push-fusion";
+        }
+
+        public List<NanoMorphoInstr> apply(List<NanoMorphoInstr> code) {
+            List<NanoMorphoInstr> res = null;
+            for (int i = 0; i < code.size(); i++) {
+                NanoMorphoInstr in = code.get(i);
+                NanoMorphoInstr fused = null;
+                if (in.op == NanoMorphoInstr.Op.PUSH && i + 1 < code.size()) {
+                    NanoMorphoInstr next = code.get(i + 1);
+                    if (next.op == NanoMorphoInstr.Op.FETCH) fused = next.withOp(NanoMorphoInstr.Op.FETCHP);
+                    else if (next.op == NanoMorphoInstr.Op.MAKEVAL) fused = next.withOp(NanoMorphoInstr.Op.MAKEVALP);
+                }
+                if (fused != null) {
+                    if (res == null) res = new ArrayList<>(code.subList(0, i));
+                    res.add(fused);
+                    i++;
+                } else if (res != null) {
+                    res.add(in);
+                }
+            }
+            return res == null ? code : res;
+        }
+    }
+
+    static class ReturnFusion implements Rule {
+        public String name() {
+            return "return-fusion";
+        }
+
+        private static NanoMorphoInstr.Op returning(NanoMorphoInstr.Op op) {
+            switch (op) {
+                case FETCH: return NanoMorphoInstr.Op.FETCHR;
+                case STORE: return NanoMorphoInstr.Op.STORER;
+                case MAKEVAL: return NanoMorphoInstr.Op.MAKEVALR;
+                case CALL: return NanoMorphoInstr.Op.CALLR;
+                default: return null;
+            }
+        }
+
+        public List<NanoMorphoInstr> apply(List<NanoMorphoInstr> code) {
+            List<NanoMorphoInstr> res = null;
+            for (int i = 0; i < code.size(); i++) {
+                NanoMorphoInstr in = code.get(i);
+                NanoMorphoInstr.Op r = returning(in.op);
+                if (r != null && i + 1 < code.size() && code.get(i + 1).op == NanoMorphoInstr.Op.RETURN) {
+                    if (res == null) res = new ArrayList<>(code.subList(0, i));
+                    res.add(in.withOp(r));
+                    i++;
+                } else if (res != null) {
+                    res.add(in);
+                }
+            }
+            return res == null ? code : res;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counters of a program compiled with --profile, and the report of them
+ * that is written when the program exits.
+ *
+ * The generated code counts at three kinds of points: the entry of every
+ * function, which counts its calls, self tail calls included; the back
+ * edge of every loop, which counts its iterations; and every call site,
+ * builtins included. Each point has the source line it was compiled
+ * from. The counters are a long[] that the generated class holds in its
+ * static field FIELD and increments inline, so a point costs a few
+ * instructions and no call. NanoMorphoCompiler keeps them in a Morpho
+ * array in the global variable COUNTS instead, and generates the code
+ * that writes the report from rows.
+ */
+public final class NanoMorphoProfile {
+
+    /** Static field of the generated class holding the counters */
+    public static final String FIELD = "PROFILE";
+    /** Global variable of a Morpho program holding the counters */
+    public static final String COUNTS = "profile_counts";
+
+    // Formats of the report lines, for report and rows
+    private static final String HEADER = "  %-15s %12s %16s";
+    private static final String FUNCTION = "  %-15s %12d %16d";
+    private static final String LINE = "  %-15d %12d %16d  %s";
+
+    public enum Kind {
+        /** Entry of a function */
+        ENTRY,
+        /** Back edge of a while loop */
+        LOOP,
+        /** A call, of a function of the program or a builtin */
+        CALL
+    }
+
+    private static final class Point {
+        final Kind kind;
+        final String function;
+        final int line;
+
+        Point(Kind kind, String function, int line) {
+            this.kind = kind;
+            this.function = function;
+            this.line = line;
+        }
+    }
+
+    private final String sourceFile;
+    private final List<Point> points = new ArrayList<>();
+    private long[] counts;
+
+    /** Profile of a program compiled from @sourceFile */
+    public NanoMorphoProfile(String sourceFile) {
+        this.sourceFile = sourceFile;
+    }
+
+    /**
+     * Adds a point of @kind in @function, e.g. "fibo[f1]", at @line of
+     * the source, 0 if not known, and returns the number of its counter.
+     */
+    public int point(Kind kind, String function, int line) {
+        points.add(new Point(kind, function, line));
+        return points.size() - 1;
+    }
+
+    /** Number of counters */
+    public int size() {
+        return points.size();
+    }
+
+    /** Gives the loaded class @program, generated with this profile, its counters */
+    public void attach(Class<?> program) throws ReflectiveOperationException {
+        counts = new long[points.size()];
+        program.getField(FIELD).set(null, counts);
+    }
+
+    /**
+     * Calls and loop iterations per function, most called first, and per
+     * source line, with the text of the line if @source has it:
+     *   profile of testFIBO.s:
+     *     function        calls  loop iterations
+     *     fibo[f1]           41                0
+     *     ...
+     *     line            calls  loop iterations
+     *     5                  82                0  return fibo(n-1)+fibo(n-2);
+     * A line counts the calls made from it and the iterations of the loops
+     * that start on it.
+     */
+    public String report(List<String> source) {
+        // function -> {calls, loop iterations}, in the order they were compiled
+        Map<String, long[]> functions = new LinkedHashMap<>();
+        Map<Integer, long[]> lines = new TreeMap<>();
+        for (int i = 0; i < points.size(); i++) {
+            Point p = points.get(i);
+            long n = counts == null ? 0 : counts[i];
+            long[] f = functions.computeIfAbsent(p.function, k -> new long[2]);
+            if (p.kind == Kind.ENTRY) {
+                f[0] += n;
+                continue;
+            }
+            if (p.kind == Kind.LOOP) f[1] += n;
+            if (n == 0 || p.line == 0) continue;
+            long[] l = lines.computeIfAbsent(p.line, k -> new long[2]);
+            l[p.kind == Kind.CALL ? 0 : 1] += n;
+        }
+
+        List<Map.Entry<String, long[]>> byCalls = new ArrayList<>(functions.entrySet());
+        byCalls.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        StringBuilder sb = new StringBuilder("profile of ").append(sourceFile).append(':');
+        sb.append(String.format("%n" + HEADER, "function", "calls", "loop iterations"));
+        for (Map.Entry<String, long[]> e : byCalls)
+            sb.append(String.format("%n" + FUNCTION, e.getKey(), e.getValue()[0], e.getValue()[1]));
+        sb.append(String.format("%n" + HEADER, "line", "calls", "loop iterations"));
+        for (Map.Entry<Integer, long[]> e : lines.entrySet()) {
+            int line = e.getKey();
+            sb.append(String.format("%n" + LINE, line, e.getValue()[0], e.getValue()[1], text(source, line)));
+        }
+        return sb.toString();
+    }
+
+    // The trimmed text of @line in @source, "" if not there
+    private static String text(List<String> source, int line) {
+        return source != null && line <= source.size() ? source.get(line - 1).trim() : "";
+    }
+
+    /**
+     * A line of the report. If calls is null it is text; otherwise text
+     * is a format for String.format with two %d, for the sum of the
+     * counters numbered in calls and the sum of those in loops.
+     */
+    public static final class Row {
+        public final String text;
+        public final int[] calls, loops;
+        /** The line is left out when both sums are 0 */
+        public final boolean optional;
+
+        Row(String text, int[] calls, int[] loops, boolean optional) {
+            this.text = text;
+            this.calls = calls;
+            this.loops = loops;
+            this.optional = optional;
+        }
+    }
+
+    /**
+     * The lines of report(@source), for a program that adds up its own
+     * counters. The functions are in the order they were compiled instead
+     * of most called first; the other lines are as report writes them.
+     */
+    public List<Row> rows(List<String> source) {
+        Map<String, List<Integer>[]> functions = new LinkedHashMap<>();
+        Map<Integer, List<Integer>[]> lines = new TreeMap<>();
+        for (int i = 0; i < points.size(); i++) {
+            Point p = points.get(i);
+            List<Integer>[] f = functions.computeIfAbsent(p.function, k -> sums());
+            if (p.kind == Kind.ENTRY) {
+                f[0].add(i);
+                continue;
+            }
+            if (p.kind == Kind.LOOP) f[1].add(i);
+            if (p.line == 0) continue;
+            lines.computeIfAbsent(p.line, k -> sums())[p.kind == Kind.CALL ? 0 : 1].add(i);
+        }
+
+        List<Row> rows = new ArrayList<>();
+        rows.add(new Row("profile of " + sourceFile + ":", null, null, false));
+        rows.add(new Row(String.format(HEADER, "function", "calls", "loop iterations"), null, null, false));
+        for (Map.Entry<String, List<Integer>[]> e : functions.entrySet()) {
+            String format = FUNCTION.replace("%-15s", String.format("%-15s", e.getKey()).replace("%", "%%"));
+            rows.add(new Row(format, numbers(e.getValue()[0]), numbers(e.getValue()[1]), false));
+        }
+        rows.add(new Row(String.format(HEADER, "line", "calls", "loop iterations"), null, null, false));
+        for (Map.Entry<Integer, List<Integer>[]> e : lines.entrySet()) {
+            int line = e.getKey();
+            String format = LINE.replace("%-15d", String.format("%-15d", line))
+                .replace("%s", text(source, line).replace("%", "%%"));
+            rows.add(new Row(format, numbers(e.getValue()[0]), numbers(e.getValue()[1]), true));
+        }
+        return rows;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Integer>[] sums() {
+        return new List[] {new ArrayList<Integer>(), new ArrayList<Integer>()};
+    }
+
+    private static int[] numbers(List<Integer> list) {
+        return list.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
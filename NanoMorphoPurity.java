@@ -0,0 +1,111 @@
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Which functions of a program are pure: give the same value whenever
+ * they are called with the same arguments, and do nothing else.
+ *
+ * A function is pure if every function it calls is. Calls outside the
+ * program are pure if the caller's predicate says so; write and writeln,
+ * EFFECTS, never are. Functions that only call each other are pure
+ * together, so the pure functions are found by assuming all are and
+ * taking back every one that calls, or calls a caller of, one that is not.
+ * Calls in code that can never run, as NanoMorphoDeadCode finds it, are
+ * not counted.
+ *
+ * Stores do not count either. A NanoMorpho function has no closures and
+ * its values cannot be changed once made, so a store into an argument or
+ * a local only changes a slot of the running call, and nothing stored
+ * escapes it.
+ *
+ * memoize picks the pure functions that NanoMorphoJvm and
+ * NanoMorphoCompiler give a result cache with --memo, see NanoMorphoMemo.
+ */
+public final class NanoMorphoPurity {
+
+    /** Builtins that do something besides giving their value */
+    public static final Set<String> EFFECTS = Set.of("write[f1]", "writeln[f1]");
+
+    /** Line that asks for a function to be memoized, in the comments just above its name */
+    public static final String ANNOTATION = ";;; @memo";
+
+    private NanoMorphoPurity() {
+    }
+
+    /**
+     * The pure functions of @graph, where calls for which @external
+     * holds, e.g. "+[f2]", are pure. If @reasons is not null, reasons[i]
+     * says why function i is not pure, e.g. "calls writeln[f1]".
+     */
+    public static boolean[] pure(NanoMorphoCallGraph graph, Predicate<String> external, String[] reasons) {
+        boolean[] pure = new boolean[graph.size()];
+        int[] stack = new int[graph.size()];
+        int top = 0;
+        for (int i = 0; i < pure.length; i++) {
+            pure[i] = true;
+            for (String call : graph.externalCalls(i)) {
+                if (!EFFECTS.contains(call) && external.test(call)) continue;
+                pure[i] = false;
+                if (reasons != null) reasons[i] = "calls " + call;
+                stack[top++] = i;
+                break;
+            }
+        }
+        while (top > 0) {
+            int j = stack[--top];
+            for (int c : graph.callers(j)) {
+                if (!pure[c]) continue;
+                pure[c] = false;
+                if (reasons != null) reasons[c] = "calls " + graph.function(j);
+                stack[top++] = c;
+            }
+        }
+        return pure;
+    }
+
+    /**
+     * The functions of @program to memoize: those with arguments that are
+     * pure with @external, as for pure, and either call themselves or have
+     * ANNOTATION on a comment line just above their name in @source, its
+     * lines, or null if not known. @report, unless null, gets a line for
+     * every function that calls itself or is annotated, e.g.
+     *   fibo[f1]: memoized, calls itself
+     *   show[f1]: not memoized, calls writeln[f1]
+     */
+    public static boolean[] memoize(NanoMorphoAST.Function[] program, List<String> source, Predicate<String> external,
+            List<String> report) {
+        NanoMorphoCallGraph graph = NanoMorphoCallGraph.of(new NanoMorphoDeadCode().eliminate(program));
+        String[] reasons = new String[program.length];
+        boolean[] pure = pure(graph, external, reasons);
+        boolean[] res = new boolean[program.length];
+        for (int i = 0; i < program.length; i++) {
+            boolean recursive = false;
+            for (int c : graph.callees(i)) recursive |= c == i;
+            boolean annotated = annotated(program[i], source);
+            if (!recursive && !annotated) continue;
+            String why = annotated ? "annotated" : "calls itself";
+            if (program[i].argCount == 0) {
+                why = "not memoized, has no arguments";
+            } else if (!pure[i]) {
+                why = "not memoized, " + reasons[i];
+            } else {
+                res[i] = true;
+                why = "memoized, " + why;
+            }
+            if (report != null) report.add(graph.function(i) + ": " + why);
+        }
+        return res;
+    }
+
+    // True if ANNOTATION is one of the comment lines just above the name of @f
+    private static boolean annotated(NanoMorphoAST.Function f, List<String> source) {
+        if (source == null || f.line <= 0 || f.line > source.size()) return false;
+        for (int i = f.line - 2; i >= 0; i--) {
+            String line = source.get(i).trim();
+            if (!line.startsWith(";;;")) return false;
+            if (line.equals(ANNOTATION)) return true;
+        }
+        return false;
+    }
+}
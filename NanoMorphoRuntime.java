@@ -0,0 +1,303 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Values and builtin functions for NanoMorpho programs compiled to JVM
+ * classes by NanoMorphoJvm.
+ *
+ * Values are plain Java objects as in the Morpho VM: Integer (32 bit,
+ * wrapping), Double, String, Character, Boolean, null and Pair for the
+ * lists built with ':'. Only false and null are false. The builtins follow
+ * the Morpho ones of the same name, restricted to the value types above.
+ */
+public final class NanoMorphoRuntime {
+
+    private NanoMorphoRuntime() {
+    }
+
+    /** Error raised by a builtin, e.g. for an argument of the wrong type */
+    public static class MorphoError extends RuntimeException {
+        public MorphoError(String message) {
+            super(message);
+        }
+    }
+
+    /** A cell of a list, written [1,2] or [1 $ 2] when the tail is not a list */
+    public static final class Pair {
+        public final Object head;
+        public final Object tail;
+
+        public Pair(Object head, Object tail) {
+            this.head = head;
+            this.tail = tail;
+        }
+
+        public String toString() {
+            return display(this);
+        }
+    }
+
+    /** Where write and writeln print, buffered; flushed by flush() */
+    public static PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+
+    public static void flush() {
+        out.flush();
+    }
+
+    /**
+     * Builtins by Morpho name and arity, e.g. "+[f2]", to the name of the
+     * static method implementing them. Every method takes and returns Object.
+     */
+    public static final Map<String, String> BUILTINS = new HashMap<>();
+
+    static {
+        String[][] builtins = {
+            {"+", "2", "add"}, {"-", "2", "sub"}, {"*", "2", "mul"}, {"/", "2", "div"}, {"%", "2", "mod"},
+            {"-", "1", "neg"}, {"==", "2", "eq"}, {"!=", "2", "ne"}, {"<", "2", "lt"}, {"<=", "2", "le"},
+            {">", "2", "gt"}, {">=", "2", "ge"}, {":", "2", "cons"}, {"++", "2", "concat"},
+            {"head", "1", "head"}, {"tail", "1", "tail"}, {"isPair", "1", "isPair"},
+            {"isString", "1", "isString"}, {"isChar", "1", "isChar"}, {"isInteger", "1", "isInteger"},
+            {"isDouble", "1", "isDouble"}, {"isBoolean", "1", "isBoolean"},
+            {"inc", "1", "inc"}, {"dec", "1", "dec"}, {"write", "1", "write"}, {"writeln", "1", "writeln"},
+        };
+        for (String[] b : builtins) BUILTINS.put(b[0] + "[f" + b[1] + "]", b[2]);
+    }
+
+    /**
+     * Value of a NanoMorpho literal as the Morpho assembler reads it:
+     * integers are truncated to 32 bits, strings and characters use the
+     * Java escapes accepted by the lexer.
+     */
+    public static Comparable literal(String text) {
+        switch (text) {
+            case "null": return null;
+            case "true": return Boolean.TRUE;
+            case "false": return Boolean.FALSE;
+        }
+        char c = text.charAt(0);
+        if (c == '"') return unescape(text);
+        if (c == '\'') return unescape(text).charAt(0);
+        if (text.indexOf('.') >= 0 || text.indexOf('e') >= 0 || text.indexOf('E') >= 0)
+            return Double.valueOf(text);
+        return new BigInteger(text).intValue();
+    }
+
+    // Contents of a quoted string or character literal
+    private static String unescape(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        int end = text.length() - 1;
+        for (int i = 1; i < end; i++) {
+            char c = text.charAt(i);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            c = text.charAt(++i);
+            switch (c) {
+                case 'b': sb.append('\b'); break;
+                case 't': sb.append('\t'); break;
+                case 'n': sb.append('\n'); break;
+                case 'f': sb.append('\f'); break;
+                case 'r': sb.append('\r'); break;
+                default:
+                    if (c >= '0' && c <= '7') {
+                        // Up to three octal digits, at most \377
+                        int v = c - '0';
+                        int max = c <= '3' ? 3 : 2;
+                        for (int n = 1; n < max && i + 1 < end && text.charAt(i + 1) >= '0' && text.charAt(i + 1) <= '7'; n++)
+                            v = v * 8 + text.charAt(++i) - '0';
+                        sb.append((char) v);
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Morpho truth: everything but false and null is true */
+    public static boolean truth(Object x) {
+        return x != null && x != Boolean.FALSE;
+    }
+
+    public static Object not(Object x) {
+        return truth(x) ? Boolean.FALSE : Boolean.TRUE;
+    }
+
+    /** How writeln shows @x */
+    public static String display(Object x) {
+        if (!(x instanceof Pair)) return String.valueOf(x);
+        StringBuilder sb = new StringBuilder("[");
+        Object rest = x;
+        while (rest instanceof Pair) {
+            Pair p = (Pair) rest;
+            if (rest != x) sb.append(',');
+            sb.append(display(p.head));
+            rest = p.tail;
+        }
+        if (rest != null) sb.append(" $ ").append(display(rest));
+        return sb.append(']').toString();
+    }
+
+    private static MorphoError badArgument(String builtin) {
+        return new MorphoError("Invalid type of argument for builtin " + builtin);
+    }
+
+    private static boolean isNumber(Object x) {
+        return x instanceof Integer || x instanceof Double;
+    }
+
+    private static double toDouble(Object x) {
+        return ((Number) x).doubleValue();
+    }
+
+    public static Object add(Object a, Object b) {
+        if (a instanceof Integer && b instanceof Integer) return (Integer) a + (Integer) b;
+        if (isNumber(a) && isNumber(b)) return toDouble(a) + toDouble(b);
+        throw badArgument("ADD");
+    }
+
+    public static Object sub(Object a, Object b) {
+        if (a instanceof Integer && b instanceof Integer) return (Integer) a - (Integer) b;
+        if (isNumber(a) && isNumber(b)) return toDouble(a) - toDouble(b);
+        throw badArgument("SUB");
+    }
+
+    public static Object mul(Object a, Object b) {
+        if (a instanceof Integer && b instanceof Integer) return (Integer) a * (Integer) b;
+        if (isNumber(a) && isNumber(b)) return toDouble(a) * toDouble(b);
+        throw badArgument("MUL");
+    }
+
+    public static Object div(Object a, Object b) {
+        if (a instanceof Integer && b instanceof Integer) return (Integer) a / (Integer) b;
+        if (isNumber(a) && isNumber(b)) return toDouble(a) / toDouble(b);
+        throw badArgument("DIV");
+    }
+
+    public static Object mod(Object a, Object b) {
+        if (a instanceof Integer && b instanceof Integer) return (Integer) a % (Integer) b;
+        if (isNumber(a) && isNumber(b)) return toDouble(a) % toDouble(b);
+        throw badArgument("MOD");
+    }
+
+    public static Object neg(Object a) {
+        if (a instanceof Integer) return -(Integer) a;
+        if (a instanceof Double) return -(Double) a;
+        throw badArgument("NEG");
+    }
+
+    public static Object inc(Object a) {
+        if (a instanceof Integer) return (Integer) a + 1;
+        throw badArgument("INC");
+    }
+
+    public static Object dec(Object a) {
+        if (a instanceof Integer) return (Integer) a - 1;
+        throw badArgument("DEC");
+    }
+
+    // Numbers compare by value, anything else with compareTo as in Morpho,
+    // so "a" < 1 fails with a ClassCastException
+    @SuppressWarnings("unchecked")
+    private static int compare(Object a, Object b) {
+        if (a instanceof Integer && b instanceof Integer) return Integer.compare((Integer) a, (Integer) b);
+        if (isNumber(a) && isNumber(b)) {
+            double x = toDouble(a), y = toDouble(b);
+            return x < y ? -1 : x > y ? 1 : x == y ? 0 : 2;
+        }
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    public static Object lt(Object a, Object b) {
+        int c = compare(a, b);
+        return c < 0 ? Boolean.TRUE : Boolean.FALSE;
+    }
+
+    public static Object le(Object a, Object b) {
+        int c = compare(a, b);
+        return c <= 0 ? Boolean.TRUE : Boolean.FALSE;
+    }
+
+    public static Object gt(Object a, Object b) {
+        int c = compare(a, b);
+        return c > 0 && c != 2 ? Boolean.TRUE : Boolean.FALSE;
+    }
+
+    public static Object ge(Object a, Object b) {
+        int c = compare(a, b);
+        return c >= 0 && c != 2 ? Boolean.TRUE : Boolean.FALSE;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        if (a == null || b == null) return a == b;
+        if (isNumber(a) && isNumber(b)) {
+            if (a instanceof Integer && b instanceof Integer) return ((Integer) a).intValue() == (Integer) b;
+            return toDouble(a) == toDouble(b);
+        }
+        return a.equals(b);
+    }
+
+    public static Object eq(Object a, Object b) {
+        return equal(a, b) ? Boolean.TRUE : Boolean.FALSE;
+    }
+
+    public static Object ne(Object a, Object b) {
+        return equal(a, b) ? Boolean.FALSE : Boolean.TRUE;
+    }
+
+    public static Object cons(Object head, Object tail) {
+        return new Pair(head, tail);
+    }
+
+    public static Object concat(Object a, Object b) {
+        return String.valueOf(a) + b;
+    }
+
+    public static Object head(Object p) {
+        return ((Pair) p).head;
+    }
+
+    public static Object tail(Object p) {
+        return ((Pair) p).tail;
+    }
+
+    public static Object isPair(Object x) {
+        return x instanceof Pair ? Boolean.TRUE : Boolean.FALSE;
+    }
+
+    public static Object isString(Object x) {
+        return x instanceof String ? Boolean.TRUE : Boolean.FALSE;
+    }
+
+    public static Object isChar(Object x) {
+        return x instanceof Character ? Boolean.TRUE : Boolean.FALSE;
+    }
+
+    public static Object isInteger(Object x) {
+        return x instanceof Integer ? Boolean.TRUE : Boolean.FALSE;
+    }
+
+    public static Object isDouble(Object x) {
+        return x instanceof Double ? Boolean.TRUE : Boolean.FALSE;
+    }
+
+    public static Object isBoolean(Object x) {
+        return x instanceof Boolean ? Boolean.TRUE : Boolean.FALSE;
+    }
+
+    public static Object write(Object x) {
+        out.print(display(x));
+        return x;
+    }
+
+    public static Object writeln(Object x) {
+        out.println(display(x));
+        return x;
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.BitSet;
+
+/**
+ * Gives locals whose values are never needed at the same time the same
+ * slot, so functions push fewer locals on entry and have smaller frames.
+ * Runs with -O after NanoMorphoDeadCode, which has already dropped the
+ * locals that are never read.
+ *
+ * A local is live where the value in its slot may still be fetched.
+ * Liveness is found backwards over the tree, with loops iterated until
+ * nothing changes. Two locals interfere if one is stored into while the
+ * other is live; locals that do not interfere may share a slot. Every
+ * local starts out null, so locals that are only read before they are
+ * stored into can share too. Arguments keep their slots and locals never
+ * take one of theirs, since a self tail call sets every local to null.
+ *
+ * Locals are given the lowest slot none of their interfering locals has,
+ * in the order they were declared.
+ */
+public class NanoMorphoSlots {
+
+    public static NanoMorphoAST.Function[] allocate(NanoMorphoAST.Function[] program) {
+        NanoMorphoAST.Function[] res = new NanoMorphoAST.Function[program.length];
+        for (int i = 0; i < program.length; i++)
+            res[i] = allocate(program[i]);
+        return res;
+    }
+
+    /** @f with its locals packed into as few slots as their lifetimes allow */
+    public static NanoMorphoAST.Function allocate(NanoMorphoAST.Function f) {
+        if (f.varCount < 2) return f;
+        Liveness liveness = new Liveness(f.argCount, f.varCount);
+        liveness.live(f.exprs, new BitSet());
+
+        // slots[local] is the slot of local, counted from the first local
+        int[] slots = new int[f.varCount];
+        int count = 0;
+        BitSet taken = new BitSet();
+        for (int v = 0; v < f.varCount; v++) {
+            taken.clear();
+            BitSet edges = liveness.interference[v];
+            for (int w = edges.nextSetBit(0); w >= 0 && w < v; w = edges.nextSetBit(w + 1))
+                taken.set(slots[w]);
+            slots[v] = taken.nextClearBit(0);
+            count = Math.max(count, slots[v] + 1);
+        }
+        if (count == f.varCount) return f;
+
+        int[] map = new int[f.argCount + f.varCount];
+        for (int i = 0; i < f.argCount; i++) map[i] = i;
+        for (int v = 0; v < f.varCount; v++) map[f.argCount + v] = f.argCount + slots[v];
+        NanoMorphoAST.Expr[] exprs = new NanoMorphoDeadCode.Renumber(map).rewrite(f.exprs);
+        return new NanoMorphoAST.Function(f.name, f.argCount, count, exprs, f.line, f.column);
+    }
+
+    /*
+        Backward liveness of the locals of one function, by local number
+        from 0. live(e, out) is the set live before @e given the set @out
+        live after it; neither set is changed. Stores record interference.
+    */
+    private static final class Liveness {
+        private final int argCount;
+        final BitSet[] interference;
+
+        Liveness(int argCount, int varCount) {
+            this.argCount = argCount;
+            this.interference = new BitSet[varCount];
+            for (int v = 0; v < varCount; v++) interference[v] = new BitSet();
+        }
+
+        BitSet live(NanoMorphoAST.Expr[] exprs, BitSet out) {
+            for (int i = exprs.length - 1; i >= 0; i--) out = live(exprs[i], out);
+            return out;
+        }
+
+        private static BitSet union(BitSet a, BitSet b) {
+            BitSet res = (BitSet) a.clone();
+            res.or(b);
+            return res;
+        }
+
+        BitSet live(NanoMorphoAST.Expr e, BitSet out) {
+            if (e instanceof NanoMorphoAST.Fetch) {
+                int v = ((NanoMorphoAST.Fetch) e).pos - argCount;
+                if (v < 0 || out.get(v)) return out;
+                BitSet in = (BitSet) out.clone();
+                in.set(v);
+                return in;
+            }
+            if (e instanceof NanoMorphoAST.Store) {
+                NanoMorphoAST.Store s = (NanoMorphoAST.Store) e;
+                int v = s.pos - argCount;
+                if (v < 0) return live(s.value, out);
+                for (int w = out.nextSetBit(0); w >= 0; w = out.nextSetBit(w + 1)) {
+                    if (w == v) continue;
+                    interference[v].set(w);
+                    interference[w].set(v);
+                }
+                BitSet before = out;
+                if (out.get(v)) {
+                    before = (BitSet) out.clone();
+                    before.clear(v);
+                }
+                return live(s.value, before);
+            }
+            if (e instanceof NanoMorphoAST.Literal) return out;
+            // Nothing after a return is reached from it
+            if (e instanceof NanoMorphoAST.Return) return live(((NanoMorphoAST.Return) e).value, new BitSet());
+            if (e instanceof NanoMorphoAST.Not) return live(((NanoMorphoAST.Not) e).value, out);
+            if (e instanceof NanoMorphoAST.Call) return live(((NanoMorphoAST.Call) e).args, out);
+            if (e instanceof NanoMorphoAST.Body) return live(((NanoMorphoAST.Body) e).exprs, out);
+            // The right operand may be skipped
+            if (e instanceof NanoMorphoAST.And) {
+                NanoMorphoAST.And a = (NanoMorphoAST.And) e;
+                return live(a.left, union(live(a.right, out), out));
+            }
+            if (e instanceof NanoMorphoAST.Or) {
+                NanoMorphoAST.Or o = (NanoMorphoAST.Or) e;
+                return live(o.left, union(live(o.right, out), out));
+            }
+            if (e instanceof NanoMorphoAST.If) {
+                NanoMorphoAST.If i = (NanoMorphoAST.If) e;
+                BitSet then = live(i.thenPart, out);
+                BitSet other = i.elsePart != null ? live(i.elsePart, out) : out;
+                return live(i.cond, union(then, other));
+            }
+            // The condition is evaluated on entry and after every pass
+            // through the body, which gets what is live before it
+            NanoMorphoAST.While w = (NanoMorphoAST.While) e;
+            BitSet head = new BitSet();
+            for (;;) {
+                BitSet in = live(w.cond, union(out, live(w.body, head)));
+                if (in.equals(head)) return in;
+                head = in;
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+import java.util.Locale;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * What one compile did and how long each of its phases took, to find out
+ * where a slow compile spends its time.
+ *
+ * NanoMorphoCompiler.compile fills one when the driver asks for it, as
+ * --stats does, and whenever a JDK Flight Recorder recording has the
+ * nanomorpho.Compile event enabled. The numbers are committed as a
+ * Compile event and one Phase event per phase, and toJson gives them
+ * as one line of JSON.
+ *
+ * Lexing is part of the parse phase: the parser pulls tokens one at a
+ * time, and timing every token would cost more than scanning it.
+ * NanoMorphoMicrobench measures the lexer on its own.
+ */
+public final class NanoMorphoStats {
+
+    /** Phases of a compile. Code generation and writing alternate per function and are summed. */
+    public enum Phase {
+        /** Reading the source into memory */
+        READ,
+        /** Lexing and parsing */
+        PARSE,
+        /** Checking calls against the functions defined */
+        CHECK,
+        /** Constant folding, dead code removal and slot allocation, with -O */
+        FOLD,
+        /** Generating function bodies, peephole rules included */
+        CODEGEN,
+        /** Writing the assembly */
+        EMIT
+    }
+
+    @Name("nanomorpho.Compile")
+    @Label("NanoMorpho Compile")
+    @Category("NanoMorpho")
+    @Description("A compile of one source file, with what it produced")
+    @StackTrace(false)
+    public static final class CompileEvent extends Event {
+        @Label("Module")
+        String module;
+        @Label("Tokens")
+        long tokens;
+        @Label("AST Nodes")
+        long nodes;
+        @Label("Expression Depth")
+        @Description("Deepest nesting of expressions, the recursion depth of code generation")
+        long depth;
+        @Label("Functions")
+        long functions;
+        @Label("Instructions")
+        long instructions;
+        @Label("Labels")
+        long labels;
+    }
+
+    @Name("nanomorpho.Phase")
+    @Label("NanoMorpho Phase")
+    @Category("NanoMorpho")
+    @Description("Time spent in one phase of a compile")
+    @StackTrace(false)
+    public static final class PhaseEvent extends Event {
+        @Label("Module")
+        String module;
+        @Label("Phase")
+        String phase;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    private static final EventType COMPILE = EventType.getEventType(CompileEvent.class);
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long[] nanos = new long[PHASES.length];
+    private String module = "";
+    private CompileEvent event;
+    private long start;
+    private long total;
+
+    /** Tokens read by the parser */
+    public long tokens;
+    /** Expression nodes in the tree that was compiled */
+    public long nodes;
+    /** Deepest nesting of expressions */
+    public long depth;
+    /** Functions written */
+    public long functions;
+    /** Instructions written, labels not counted */
+    public long instructions;
+    /** Labels written */
+    public long labels;
+
+    /** True if a Flight Recorder recording wants Compile events */
+    public static boolean isRecording() {
+        return COMPILE.isEnabled();
+    }
+
+    /** New stats if @wanted or a recording wants them, else null */
+    public static NanoMorphoStats create(boolean wanted) {
+        return wanted || isRecording() ? new NanoMorphoStats() : null;
+    }
+
+    /** Starts the compile of the module @module */
+    public void begin(String module) {
+        this.module = module;
+        event = new CompileEvent();
+        event.begin();
+        start = System.nanoTime();
+    }
+
+    /** Ends the compile and commits its events */
+    public void end() {
+        total = System.nanoTime() - start;
+        if (event == null || !event.isEnabled()) return;
+        for (Phase p : PHASES) {
+            PhaseEvent e = new PhaseEvent();
+            e.module = module;
+            e.phase = p.name().toLowerCase(Locale.ROOT);
+            e.time = nanos[p.ordinal()];
+            e.commit();
+        }
+        event.module = module;
+        event.tokens = tokens;
+        event.nodes = nodes;
+        event.depth = depth;
+        event.functions = functions;
+        event.instructions = instructions;
+        event.labels = labels;
+        event.commit();
+    }
+
+    /** Adds @nanos to the time of @phase */
+    public void add(Phase phase, long nanos) {
+        this.nanos[phase.ordinal()] += nanos;
+    }
+
+    /** Time spent in @phase, in nanoseconds */
+    public long time(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    /** Time from begin to end, in nanoseconds */
+    public long total() {
+        return total;
+    }
+
+    /** Counts the nodes of @program and the depth of its deepest expression */
+    public void count(NanoMorphoAST.Function[] program) {
+        Counter counter = new Counter();
+        for (NanoMorphoAST.Function f : program)
+            for (NanoMorphoAST.Expr e : f.exprs) depth = Math.max(depth, e.accept(counter));
+        nodes += counter.nodes;
+    }
+
+    // Counts nodes, returns the depth of the tree below a node
+    private static final class Counter implements NanoMorphoAST.Visitor<Integer> {
+        long nodes;
+
+        private int visit(NanoMorphoAST.Expr... es) {
+            nodes++;
+            int depth = 0;
+            for (NanoMorphoAST.Expr e : es)
+                if (e != null) depth = Math.max(depth, e.accept(this));
+            return depth + 1;
+        }
+
+        public Integer visitFetch(NanoMorphoAST.Fetch e) { return visit(); }
+        public Integer visitStore(NanoMorphoAST.Store e) { return visit(e.value); }
+        public Integer visitLiteral(NanoMorphoAST.Literal e) { return visit(); }
+        public Integer visitIf(NanoMorphoAST.If e) { return visit(e.cond, e.thenPart, e.elsePart); }
+        public Integer visitWhile(NanoMorphoAST.While e) { return visit(e.cond, e.body); }
+        public Integer visitBody(NanoMorphoAST.Body e) { return visit(e.exprs); }
+        public Integer visitCall(NanoMorphoAST.Call e) { return visit(e.args); }
+        public Integer visitReturn(NanoMorphoAST.Return e) { return visit(e.value); }
+        public Integer visitAnd(NanoMorphoAST.And e) { return visit(e.left, e.right); }
+        public Integer visitOr(NanoMorphoAST.Or e) { return visit(e.left, e.right); }
+        public Integer visitNot(NanoMorphoAST.Not e) { return visit(e.value); }
+    }
+
+    /**
+     * The numbers as one line of JSON, times in nanoseconds:
+     * {"module":"testFIBO","total_ns":...,"phases_ns":{"read":...,...},"tokens":...,...}
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{\"module\":\"");
+        for (char c : module.toCharArray()) {
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < ' ') sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        sb.append("\",\"total_ns\":").append(total).append(",\"phases_ns\":{");
+        for (Phase p : PHASES) {
+            if (p.ordinal() > 0) sb.append(',');
+            sb.append('"').append(p.name().toLowerCase(Locale.ROOT)).append("\":").append(nanos[p.ordinal()]);
+        }
+        sb.append("},\"tokens\":").append(tokens)
+            .append(",\"nodes\":").append(nodes)
+            .append(",\"depth\":").append(depth)
+            .append(",\"functions\":").append(functions)
+            .append(",\"instructions\":").append(instructions)
+            .append(",\"labels\":").append(labels)
+            .append('}');
+        return sb.toString();
+    }
+}
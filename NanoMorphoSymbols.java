@@ -0,0 +1,210 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Symbol table of a NanoMorpho program, filled by NanoMorphoParser.
+ *
+ * Variables live in a Scope per function, mapping names to the slots
+ * that FETCH and STORE use. Functions are recorded by name and arity,
+ * together with the first call of every name and arity, so that calls
+ * can be checked once the whole program has been read.
+ *
+ * Both tables use open addressing with linear probing. Names come
+ * interned from NanoMorphoLexer, so lookups mostly succeed on identity.
+ */
+public final class NanoMorphoSymbols {
+
+    /** Variables of one function, arguments first, in the order declared */
+    public static final class Scope {
+        private String[] names = new String[16];
+        private int[] slots = new int[16];
+        private int entries;
+        private int count;
+
+        /**
+         * Gives @name the next slot and returns it. A name declared twice
+         * still takes a slot, but references go to the first one.
+         */
+        public int declare(String name) {
+            int slot = count++;
+            int i = find(names, name);
+            if (names[i] == null) {
+                names[i] = name;
+                slots[i] = slot;
+                if (++entries * 2 > names.length) grow();
+            }
+            return slot;
+        }
+
+        /** Slot of @name, or -1 if it is not declared */
+        public int slot(String name) {
+            int i = find(names, name);
+            return names[i] == null ? -1 : slots[i];
+        }
+
+        /** Number of slots given out */
+        public int size() {
+            return count;
+        }
+
+        private void grow() {
+            String[] oldNames = names;
+            int[] oldSlots = slots;
+            names = new String[oldNames.length * 2];
+            slots = new int[oldNames.length * 2];
+            for (int j = 0; j < oldNames.length; j++) {
+                if (oldNames[j] == null) continue;
+                int i = find(names, oldNames[j]);
+                names[i] = oldNames[j];
+                slots[i] = oldSlots[j];
+            }
+        }
+    }
+
+    // Index of @name in @names, or of the empty entry where it belongs
+    private static int find(String[] names, String name) {
+        int mask = names.length - 1;
+        int h = name.hashCode();
+        int i = (h ^ (h >>> 16)) & mask;
+        for (String s = names[i]; s != null; s = names[i]) {
+            if (s == name || s.equals(name)) return i;
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    // A function name and arity: whether the program defines it and
+    // where it is first called, if anywhere
+    private static final class Function {
+        final String name;
+        final int arity;
+        boolean defined;
+        int callLine = -1;
+        int callColumn;
+
+        Function(String name, int arity) {
+            this.name = name;
+            this.arity = arity;
+        }
+    }
+
+    private Function[] table = new Function[64];
+    // Entries in the order they were first seen, which is source order
+    private Function[] order = new Function[32];
+    private int size;
+    // Names defined by the program, with any arity
+    private String[] definedNames = new String[64];
+    private int definedCount;
+
+    /** Records that the program defines @name with @arity arguments */
+    public void define(String name, int arity) {
+        lookup(name, arity).defined = true;
+        int i = find(definedNames, name);
+        if (definedNames[i] == null) {
+            definedNames[i] = name;
+            if (++definedCount * 2 > definedNames.length) {
+                String[] old = definedNames;
+                definedNames = new String[old.length * 2];
+                for (String s : old)
+                    if (s != null) definedNames[find(definedNames, s)] = s;
+            }
+        }
+    }
+
+    /** Records a call of @name with @arity arguments at @line, @column */
+    public void call(String name, int arity, int line, int column) {
+        Function f = lookup(name, arity);
+        if (f.callLine < 0) {
+            f.callLine = line;
+            f.callColumn = column;
+        }
+    }
+
+    /** Receives the calls recorded in a table, see forEachCall */
+    public interface CallVisitor {
+        void call(String name, int arity, int line, int column);
+    }
+
+    /** Gives @v the first call of every name and arity, in source order */
+    public void forEachCall(CallVisitor v) {
+        for (int i = 0; i < size; i++) {
+            Function f = order[i];
+            if (f.callLine >= 0) v.call(f.name, f.arity, f.callLine, f.callColumn);
+        }
+    }
+
+    /** True if the program defines @name with @arity arguments */
+    public boolean isDefined(String name, int arity) {
+        Function f = table[index(name, arity)];
+        return f != null && f.defined;
+    }
+
+    /** True if the program defines @name with any number of arguments */
+    public boolean isDefined(String name) {
+        return definedNames[find(definedNames, name)] != null;
+    }
+
+    /**
+     * Checks that every call is of a function the program defines, or of
+     * one for which @external holds. @external gets names as the Morpho
+     * linker knows them, e.g. "writeln[f1]". Throws a SyntaxError listing
+     * the first call of every name and arity that fails, in source order.
+     */
+    public void checkCalls(Predicate<String> external) {
+        check(external, true);
+    }
+
+    /**
+     * As checkCalls, but only for names the program defines, leaving the
+     * rest to a linker that knows more functions than @external.
+     */
+    public void checkArities(Predicate<String> external) {
+        check(external, false);
+    }
+
+    private void check(Predicate<String> external, boolean all) {
+        List<NanoMorphoParser.Diagnostic> errors = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            Function f = order[i];
+            if (f.defined || f.callLine < 0) continue;
+            boolean named = isDefined(f.name);
+            if (!all && !named) continue;
+            if (external.test(f.name + "[f" + f.arity + "]")) continue;
+            String message = named
+                ? "Function " + f.name + " is not defined with " + f.arity + (f.arity == 1 ? " argument" : " arguments")
+                : "Function " + f.name + " is not defined";
+            errors.add(new NanoMorphoParser.Diagnostic(f.callLine, f.callColumn, message));
+        }
+        if (!errors.isEmpty()) throw new NanoMorphoParser.SyntaxError(errors);
+    }
+
+    private int index(String name, int arity) {
+        int mask = table.length - 1;
+        int h = name.hashCode() * 31 + arity;
+        int i = (h ^ (h >>> 16)) & mask;
+        for (Function f = table[i]; f != null; f = table[i]) {
+            if (f.arity == arity && (f.name == name || f.name.equals(name))) return i;
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private Function lookup(String name, int arity) {
+        int i = index(name, arity);
+        Function f = table[i];
+        if (f != null) return f;
+        f = new Function(name, arity);
+        table[i] = f;
+        if (size == order.length) order = Arrays.copyOf(order, size * 2);
+        order[size++] = f;
+        if (size * 2 > table.length) {
+            Function[] old = table;
+            table = new Function[old.length * 2];
+            for (Function g : old)
+                if (g != null) table[index(g.name, g.arity)] = g;
+        }
+        return f;
+    }
+}
@@ -0,0 +1,8 @@
+main () {
+    writeln(abs(-3.0));
+    writeln(abs(-1, 4));
+}
+
+abs(x, y){
+    x + y;
+}
@@ -0,0 +1,50 @@
+;;; Fallföll sem --memo geymir niðurstöður úr
+
+main () {
+    writeln(fibo(30));
+    writeln(binom(24, 12));
+    writeln(square(7) + square(7));
+    writeln(sum(100, 0));
+    writeln(show(3));
+    writeln(range(3));
+    writeln(half(3) + half(3.0));
+}
+
+fibo(n){
+    if(n <= 2){
+        return 1;
+    } else {
+        return fibo(n-1) + fibo(n-2);
+    };
+}
+
+binom(n, k){
+    if(k == 0 || k == n){
+        return 1;
+    };
+    binom(n-1, k-1) + binom(n-1, k);
+}
+
+;;; Kallar ekki á sig sjálft
+;;; @memo
+square(x){
+    x * x;
+}
+
+sum(n, acc){
+    if(n == 0){ acc; } else { sum(n-1, acc+n); };
+}
+
+;;; @memo
+show(x){
+    writeln(x);
+}
+
+range(n){
+    if(n == 0){ null; } else { n : range(n-1); };
+}
+
+;;; @memo
+half(x){
+    x / 2;
+}